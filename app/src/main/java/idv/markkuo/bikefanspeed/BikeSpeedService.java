@@ -5,12 +5,13 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.AsyncTask;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -23,38 +24,327 @@ import com.dsi.ant.plugins.antplus.pcc.defines.RequestAccessResult;
 import com.dsi.ant.plugins.antplus.pccbase.AntPluginPcc;
 import com.dsi.ant.plugins.antplus.pccbase.PccReleaseHandle;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.math.BigDecimal;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Reads the ANT+ sensors and drives the fan. Clients in this process bind to it, read the state
+ * snapshot and send commands through direct method calls; it is not exported.
+ */
 public class BikeSpeedService extends Service {
     private static final String TAG = BikeSpeedService.class.getSimpleName();
     private static final int ONGOING_NOTIFICATION_ID = 8888;
     private static final String CHANNEL_DEFAULT_IMPORTANCE = "bike_fan_speed_channel";
-
-    // Ant+ speed sensor
-    private AntPlusBikeSpeedDistancePcc bsdPcc = null;
+    // how often the ride and latency summary in the notification is refreshed
+    private static final long NOTIFICATION_UPDATE_MS = 5000;
+    // how often the session statistics in the UI are refreshed
+    private static final long STATS_UPDATE_MS = 1000;
+    // samples queued between the sensor callbacks and the processing thread, 30 s of speed and power at 4 Hz
+    private static final int SENSOR_RING_SIZE = 256;
+    private static final long SENSOR_STOP_TIMEOUT_MS = 1000;
+    // samples kept per sensor for the live chart, 12 minutes at 4 Hz
+    private static final int SAMPLE_HISTORY_SIZE = 4096;
+    // source of the phone's own sensors in the ring, gym riders have their own
+    private static final int OWN_SENSORS = 0;
+
+    // Ant+ speed sensor, only held while the fan follows speed or in warm standby
+    private volatile AntPlusBikeSpeedDistancePcc bsdPcc = null;
     private PccReleaseHandle<AntPlusBikeSpeedDistancePcc> bsdReleaseHandle = null;
 
-    // Ant+ power sensor
-    private AntPlusBikePowerPcc pwrPcc = null;
+    // Ant+ power sensor, only held while the fan follows power or in warm standby
+    private volatile AntPlusBikePowerPcc pwrPcc = null;
     private PccReleaseHandle<AntPlusBikePowerPcc> bpReleaseHandle = null;
+    // System.nanoTime() of the last speed/power switch until the first sample of the new source
+    private volatile long switchStart = 0;
+    // how long to look for the sensor paired last before searching for any
+    private static final long PAIRED_SENSOR_TIMEOUT_MS = 5000;
+    // a checkpoint older than this is from another ride, only the servo position is taken from it
+    private static final long MAX_CHECKPOINT_AGE_MS = 10 * 60 * 1000;
+    // device number asked for, 0 for a search; main thread only
+    private int bsdRequested = 0;
+    private int bpRequested = 0;
+    // System.nanoTime() of the service start until the first sample
+    private volatile long startTime = 0;
+    private volatile long firstSampleMs = -1;
+    // control state written when it changes, read back after the OS killed the service
+    private ControlCheckpointStore checkpoints;
+    // restarted with the modes of a run the OS killed
+    private boolean warmStart = false;
+
+    // owns the fan state and all servo I/O
+    private FanCommandDispatcher fanDispatcher;
+    // latency of every stage from sensor sample to servo
+    private final PipelineStats pipelineStats = new PipelineStats();
+    // distance, averages and time at each fan speed of this ride, whichever source drives the fan
+    private final SessionStats sessionStats = new SessionStats();
+    // the last few minutes of each sensor for the live chart
+    private final SampleHistory speedHistory = new SampleHistory(SAMPLE_HISTORY_SIZE);
+    private final SampleHistory powerHistory = new SampleHistory(SAMPLE_HISTORY_SIZE);
+
+    private Notification.Builder notificationBuilder;
+    private final Handler notificationHandler = new Handler(Looper.getMainLooper());
+    // timeouts of the sensor requests
+    private final Handler sensorHandler = new Handler(Looper.getMainLooper());
+    private long notifiedCount = 0;
+    private final Runnable updateNotification = new Runnable() {
+        @Override
+        public void run() {
+            long count = pipelineStats.endToEnd.getCount() + pipelineStats.failed.get()
+                    + sessionStats.getSampleCount();
+            if (count != notifiedCount) {
+                notifiedCount = count;
+                notificationBuilder.setContentText(sessionStats.summary() + ", " + pipelineStats.summary());
+                NotificationManager manager = getSystemService(NotificationManager.class);
+                if (manager != null)
+                    manager.notify(ONGOING_NOTIFICATION_ID, notificationBuilder.build());
+            }
+            notificationHandler.postDelayed(this, NOTIFICATION_UPDATE_MS);
+        }
+    };
+    private long statsSampleCount = 0;
+    private final Runnable updateStats = new Runnable() {
+        @Override
+        public void run() {
+            long count = sessionStats.getSampleCount();
+            if (count != statsSampleCount && !stateListeners.isEmpty()) {
+                statsSampleCount = count;
+                uiUpdates.setStats(sessionStats.toString());
+            }
+            notificationHandler.postDelayed(this, STATS_UPDATE_MS);
+        }
+    };
 
-    // 700x23c circumference in meter
-    private static final BigDecimal CIRCUMFERENCE = new BigDecimal(2.095);
-    // m/s to km/h ratio
-    private static final BigDecimal MS_TO_KMS_RATIO = new BigDecimal(3.6);
+    private Settings settings;
 
-    // bike speed threshold
-    private static final float SPEED_THRESHOLD_LOW = 3.0f;
-    private static final float SPEED_THRESHOLD_HIGH = 10.0f;
-    // bike power threshold
-    private static final float POWER_THRESHOLD_LOW = 80.0f;
-    private static final float POWER_THRESHOLD_HIGH = 180.0f;
+    /**
+     * Called on the main thread, at most once per frame, while registered.
+     */
+    public interface StateListener {
+        void onStateChanged(FanState state);
+    }
+
+    public class LocalBinder extends Binder {
+        public BikeSpeedService getService() {
+            return BikeSpeedService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final CopyOnWriteArrayList<StateListener> stateListeners = new CopyOnWriteArrayList<>();
+
+    // latest values for the listeners, delivered at most once per frame while any is registered
+    private final UiUpdateConflator uiUpdates = new UiUpdateConflator(new UiUpdateConflator.Sink() {
+        @Override
+        public void deliver(int dirty, FanState state) {
+            for (StateListener l : stateListeners)
+                l.onStateChanged(state);
+        }
+    });
+    // primitive speed engine on raw wheel revolutions
+    private final WheelSpeedCalculator wheelSpeed = new WheelSpeedCalculator();
+
+    // timeouts of every sensor, advanced by the processing thread
+    private final TimerWheel sensorTimers = new TimerWheel(TimerWheel.DEFAULT_TICK_MS, TimerWheel.DEFAULT_SLOTS,
+            SensorProcessor.now());
+    // the sensor callbacks only queue their samples, the processing thread runs the rest
+    private final SensorProcessor sensorProcessor = new SensorProcessor(new SensorRing(SENSOR_RING_SIZE),
+            new SensorRing.Consumer() {
+                @Override
+                public void onEvent(int source, int kind, long time, float value, long a, long b, long queued) {
+                    if (source != OWN_SENSORS) {
+                        gymRiders.onEvent(source, kind, time, value, a, b, queued);
+                        return;
+                    }
+                    pipelineStats.handoff.record(System.nanoTime() - queued);
+                    switch (kind) {
+                        case SensorRing.RAW_SPEED:
+                            onNewSpeed(time, wheelSpeed.update(time, a, b));
+                            break;
+                        case SensorRing.SPEED:
+                            onNewSpeed(time, value);
+                            break;
+                        case SensorRing.POWER:
+                            onNewPower(time, value);
+                            break;
+                        case SensorRing.SPEED_LOST:
+                            // stop fan
+                            fanControl.onSpeedLost();
+                            break;
+                        case SensorRing.POWER_LOST:
+                            fanControl.onPowerLost();
+                            break;
+                    }
+                }
+            }, new SensorProcessor.Meter() {
+                @Override
+                public long cpuNanos() {
+                    return Debug.threadCpuTimeNanos();
+                }
 
-    private boolean manualFanControl = false;
-    private boolean usePower = false;
+                @SuppressWarnings("deprecation")
+                @Override
+                public long allocatedBytes() {
+                    // counted since onCreate() started allocation counting
+                    return Debug.getThreadAllocSize();
+                }
+            }, sensorTimers, "SensorProcessor", Thread.NORM_PRIORITY - 1);
+    // coast the fan down when the sensor driving it stops sending without going DEAD
+    private final SensorWatchdog.Listener sensorSilence = new SensorWatchdog.Listener() {
+        @Override
+        public boolean onSilent(SensorWatchdog watchdog, int steps) {
+            Log.i(TAG, "[" + watchdog.getName() + "] silent for " + steps * watchdog.getSilence() / 1000
+                    + "s, fan " + fanDispatcher.getFanSpeed());
+            return fanControl.coastDown(watchdog == powerWatchdog);
+        }
+    };
+    private final SensorWatchdog speedWatchdog = new SensorWatchdog("Speed", sensorTimers,
+            SensorWatchdog.DEFAULT_SILENCE_MS, sensorSilence);
+    private final SensorWatchdog powerWatchdog = new SensorWatchdog("Power", sensorTimers,
+            SensorWatchdog.DEFAULT_SILENCE_MS, sensorSilence);
+    // checked once, Log.isLoggable() reads a system property on every call
+    private boolean verbose;
+
+    // smoothing, hysteresis, dwell time and fan curves in front of the dispatcher
+    private volatile FanControl fanControl;
+    private final FanControl.Factory fanControlFactory = new FanControl.Factory() {
+        @Override
+        public FanControl create(FanCommandDispatcher dispatcher) {
+            FanPolicy speedPolicy = policies.get(FanPolicy.Metric.SPEED);
+            FanPolicy powerPolicy = policies.get(FanPolicy.Metric.POWER);
+            boolean useFanCurve = settings.useFanCurve();
+            // the levels decide the fan speed; in three-step mode only with positions it can send
+            return FanControl.create(dispatcher, useFanCurve,
+                    useFanCurve ? speedPolicy : policies.getThreeStep(FanPolicy.Metric.SPEED),
+                    useFanCurve ? powerPolicy : policies.getThreeStep(FanPolicy.Metric.POWER),
+                    settings.getHysteresis(), settings.getMinDwell(),
+                    settings.createSmoother(), settings.createSmoother(),
+                    new ProportionalFanController(settings.getFanCurve(false, speedPolicy),
+                            settings.createSmoother(), settings.createRateLimiter()),
+                    new ProportionalFanController(settings.getFanCurve(true, powerPolicy),
+                            settings.createSmoother(), settings.createRateLimiter()),
+                    settings.getPreSpinHorizon());
+        }
+    };
+    // the riders of gym mode with their own sensors and fans
+    private GymRiders gymRiders;
+    // fan levels of speed and power, reloaded when fan_policy.json is saved
+    private FanPolicyStore policies;
+
+    // every speed and power sample of this ride, null if the file could not be created
+    private volatile RideRecorder recorder;
+    private volatile float lastSpeed = -1.0f;
+    private volatile float lastPower = -1.0f;
+
+    // kept as a field since SharedPreferences only holds a weak reference to it
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (Settings.KEY_WHEEL_CIRCUMFERENCE.equals(key)) {
+                wheelSpeed.setCircumference(settings.getWheelCircumference());
+                gymRiders.setWheelCircumference(wheelSpeed.getCircumference());
+                Log.i(TAG, "Wheel circumference:" + wheelSpeed.getCircumference());
+            } else if (Settings.isFanControlKey(key)) {
+                createFanControl();
+                gymRiders.createFanControls();
+            } else if (Settings.KEY_SENSOR_TIMEOUT.equals(key)) {
+                setSensorTimeout(settings.getSensorTimeout());
+            } else if (Settings.KEY_GYM_RIDERS.equals(key)) {
+                gymRiders.start();
+            } else if (Settings.KEY_UI_UPDATE_RATE.equals(key)) {
+                uiUpdates.setInterval(settings.getUiUpdateInterval());
+            } else if (Settings.KEY_WARM_STANDBY.equals(key)) {
+                updateSensors();
+            } else if (Settings.isServoKey(key)) {
+                fanDispatcher.setActuator(settings.createActuator());
+            }
+        }
+    };
+
+    private void createFanControl() {
+        if (fanControl != null)
+            Log.i(TAG, "Fan control " + fanControl);
+        fanControl = fanControlFactory.create(fanDispatcher);
+        Log.i(TAG, "Fan control " + fanControl);
+    }
+
+    // appends the latest speed, power and fan state to the ride file
+    private void record(long estTimestamp) {
+        RideRecorder r = recorder;
+        if (r == null)
+            return;
+        try {
+            r.append(estTimestamp, lastSpeed, lastPower, fanDispatcher.getFanSpeed(), fanDispatcher.getPosition());
+        } catch (IOException e) {
+            Log.e(TAG, "Stopped recording:" + e.getMessage());
+            recorder = null;
+        }
+    }
+
+    private void startRecording() {
+        File dir = getExternalFilesDir("rides");
+        if (dir == null)
+            dir = new File(getFilesDir(), "rides");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + dir);
+            return;
+        }
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        try {
+            recorder = new RideRecorder(new File(dir, name + ".ride"));
+            Log.i(TAG, "Recording to " + recorder.getFile());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record ride:" + e.getMessage());
+        }
+    }
+
+    // closes the ride file and exports it to CSV, FIT and a chart index next to it, off the main thread
+    private void stopRecording() {
+        final RideRecorder r = recorder;
+        recorder = null;
+        if (r == null)
+            return;
+        try {
+            r.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close ride:" + e.getMessage());
+            return;
+        }
+        if (r.getCount() == 0) {
+            if (!r.getFile().delete())
+                Log.w(TAG, "Unable to delete empty ride " + r.getFile());
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File ride = r.getFile();
+                String base = ride.getPath().substring(0, ride.getPath().length() - ".ride".length());
+                try (OutputStream csv = new BufferedOutputStream(new FileOutputStream(base + ".csv"));
+                     OutputStream fit = new BufferedOutputStream(new FileOutputStream(base + ".fit"))) {
+                    long start = System.nanoTime();
+                    RideExporter.writeCsv(ride, csv);
+                    RideExporter.writeFit(ride, fit);
+                    // for charting the ride at any zoom without reading all of it
+                    RidePyramid.build(ride, new File(base + ".pyr"));
+                    Log.i(TAG, "Exported " + r.getCount() + " records of " + ride + " in "
+                            + (System.nanoTime() - start) / 1000000 + "ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export " + ride + ":" + e.getMessage());
+                }
+            }
+        }, "RideExport").start();
+    }
 
     private AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikePowerPcc> mPowerResultReceiver = new AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikePowerPcc>() {
         @Override
@@ -62,48 +352,19 @@ public class BikeSpeedService extends Service {
                                      RequestAccessResult resultCode, DeviceState initialDeviceState) {
             if (resultCode == RequestAccessResult.SUCCESS) {
                 pwrPcc = result;
-                Log.i(TAG, "[Power]" + result.getDeviceName() + ": " + initialDeviceState);
-                subscribeToEvents();
+                Log.i(TAG, "[Power]" + result.getDeviceName() + " #" + result.getAntDeviceNumber() + ": " + initialDeviceState);
+                settings.setPairedDevice(true, result.getAntDeviceNumber());
+                subscribePower(fanDispatcher.isUsePower());
             } else {
                 Log.w(TAG, "power sensor state changed:" + initialDeviceState + ", resultCode:" + resultCode);
+                // the sensor paired last is not around, search right away
+                sensorHandler.post(powerSearch);
             }
-            // send broadcast
-            if (usePower) {
-                Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-                i.putExtra("service_status", initialDeviceState.toString());
-                sendBroadcast(i);
+            // update UI
+            if (fanDispatcher.isUsePower()) {
+                uiUpdates.setStatus(initialDeviceState.toString());
             }
         }
-
-        private void subscribeToEvents() {
-            pwrPcc.subscribeCalculatedPowerEvent(new AntPlusBikePowerPcc.ICalculatedPowerReceiver() {
-                @Override
-                public void onNewCalculatedPower(
-                        final long estTimestamp, final EnumSet<EventFlag> eventFlags,
-                        final AntPlusBikePowerPcc.DataSource dataSource,
-                        final BigDecimal calculatedPower) {
-                    float power = calculatedPower.floatValue();
-                    Log.v(TAG, "Power:" + power);
-                    // send broadcast
-                    if (usePower) {
-                        // update fan speed according to this speed
-                        if (!manualFanControl) {
-                            if (power < POWER_THRESHOLD_LOW) {
-                                new FanSpeedTask().execute(FanSpeed.FAN_STOP);
-                            } else if (power < POWER_THRESHOLD_HIGH) {
-                                new FanSpeedTask().execute(FanSpeed.FAN_1);
-                            } else {
-                                new FanSpeedTask().execute(FanSpeed.FAN_2);
-                            }
-                        }
-                        Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-                        i.putExtra("speed", calculatedPower.floatValue());
-                        i.putExtra("timestamp", estTimestamp);
-                        sendBroadcast(i);
-                    }
-                }
-            });
-        }
     };
 
     private AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikeSpeedDistancePcc> mSpeedResultReceiver = new AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikeSpeedDistancePcc>() {
@@ -112,68 +373,138 @@ public class BikeSpeedService extends Service {
                                      RequestAccessResult resultCode, DeviceState initialDeviceState) {
             if (resultCode == RequestAccessResult.SUCCESS) {
                 bsdPcc = result;
-                Log.i(TAG, "[Speed]" + result.getDeviceName() + ": " + initialDeviceState);
-                subscribeToEvents();
+                Log.i(TAG, "[Speed]" + result.getDeviceName() + " #" + result.getAntDeviceNumber() + ": " + initialDeviceState);
+                settings.setPairedDevice(false, result.getAntDeviceNumber());
+                subscribeSpeed(!fanDispatcher.isUsePower());
             } else {
                 Log.w(TAG, "speed sensor state changed:" + initialDeviceState + ", resultCode:" + resultCode);
+                // the sensor paired last is not around, search right away
+                sensorHandler.post(speedSearch);
             }
-            // send broadcast
-            if (!usePower) {
-                Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-                i.putExtra("service_status", initialDeviceState.toString());
-                sendBroadcast(i);
+            // update UI
+            if (!fanDispatcher.isUsePower()) {
+                uiUpdates.setStatus(initialDeviceState.toString());
             }
         }
+    };
 
-        private void subscribeToEvents() {
-            bsdPcc.subscribeCalculatedSpeedEvent(new AntPlusBikeSpeedDistancePcc.CalculatedSpeedReceiver(CIRCUMFERENCE) {
+    // decodes speed events only while the fan follows speed
+    private void subscribeSpeed(boolean subscribe) {
+        AntPlusBikeSpeedDistancePcc pcc = bsdPcc;
+        if (pcc == null)
+            return;
+        if (!subscribe) {
+            pcc.subscribeRawSpeedAndDistanceDataEvent(null);
+            pcc.subscribeCalculatedSpeedEvent(null);
+            Log.i(TAG, "[Speed] standby");
+            return;
+        }
+        if (settings.useRawSpeed()) {
+            wheelSpeed.reset();
+            pcc.subscribeRawSpeedAndDistanceDataEvent(new AntPlusBikeSpeedDistancePcc.IRawSpeedAndDistanceDataReceiver() {
+                @Override
+                public void onNewRawSpeedAndDistanceData(final long estTimestamp,
+                                                         final EnumSet<EventFlag> eventFlags,
+                                                         final BigDecimal timestampOfLastEvent,
+                                                         final long cumulativeRevolutions) {
+                    // the plugin reports the event time in seconds with 1/1024s resolution
+                    long eventTime = Math.round(timestampOfLastEvent.doubleValue() * WheelSpeedCalculator.TICKS_PER_SECOND);
+                    sensorProcessor.offer(OWN_SENSORS, SensorRing.RAW_SPEED, estTimestamp, 0.0f, eventTime, cumulativeRevolutions);
+                }
+            });
+        } else {
+            BigDecimal circumference = new BigDecimal(wheelSpeed.getCircumference());
+            pcc.subscribeCalculatedSpeedEvent(new AntPlusBikeSpeedDistancePcc.CalculatedSpeedReceiver(circumference) {
                 @Override
                 public void onNewCalculatedSpeed(final long estTimestamp,
                                                  final EnumSet<EventFlag> eventFlags, final BigDecimal calculatedSpeed) {
                     // convert m/s to km/h
-                    float speed = calculatedSpeed.multiply(MS_TO_KMS_RATIO).floatValue();
-                    Log.v(TAG, "Speed:" + speed);
-                    if (!usePower) {
-                        // update fan speed according to this speed
-                        if (!manualFanControl) {
-                            if (speed < SPEED_THRESHOLD_LOW) {
-                                new FanSpeedTask().execute(FanSpeed.FAN_STOP);
-                            } else if (speed < SPEED_THRESHOLD_HIGH) {
-                                new FanSpeedTask().execute(FanSpeed.FAN_1);
-                            } else {
-                                new FanSpeedTask().execute(FanSpeed.FAN_2);
-                            }
-                        }
-                        // send broadcast
-                        Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-                        i.putExtra("speed", speed);
-                        i.putExtra("timestamp", estTimestamp);
-                        sendBroadcast(i);
-                    }
+                    sensorProcessor.offer(OWN_SENSORS, SensorRing.SPEED, estTimestamp,
+                            WheelSpeedCalculator.msToKmh(calculatedSpeed.floatValue()), 0, 0);
                 }
             });
+        }
+    }
 
+    // decodes power events only while the fan follows power
+    private void subscribePower(boolean subscribe) {
+        AntPlusBikePowerPcc pcc = pwrPcc;
+        if (pcc == null)
+            return;
+        if (!subscribe) {
+            pcc.subscribeCalculatedPowerEvent(null);
+            Log.i(TAG, "[Power] standby");
+            return;
         }
-    };
+        pcc.subscribeCalculatedPowerEvent(new AntPlusBikePowerPcc.ICalculatedPowerReceiver() {
+            @Override
+            public void onNewCalculatedPower(
+                    final long estTimestamp, final EnumSet<EventFlag> eventFlags,
+                    final AntPlusBikePowerPcc.DataSource dataSource,
+                    final BigDecimal calculatedPower) {
+                sensorProcessor.offer(OWN_SENSORS, SensorRing.POWER, estTimestamp,
+                        calculatedPower.floatValue(), 0, 0);
+            }
+        });
+    }
+
+    // on the sensor processing thread
+    private void onNewPower(long estTimestamp, float power) {
+        powerWatchdog.onSample(estTimestamp);
+        if (verbose)
+            Log.v(TAG, "Power:" + power);
+        lastPower = power;
+        record(estTimestamp);
+        sessionStats.onPower(estTimestamp, power, fanDispatcher.getFanSpeed());
+        powerHistory.add(estTimestamp, power, fanDispatcher.getFanSpeed());
+        // update UI
+        if (fanDispatcher.isUsePower()) {
+            onFirstSample("power");
+            onSwitchDone("power");
+            // update fan speed according to this power
+            long start = System.nanoTime();
+            fanControl.onPower(estTimestamp, power);
+            pipelineStats.decision.record(System.nanoTime() - start);
+            uiUpdates.setValue(power, estTimestamp);
+        }
+    }
+
+    // on the sensor processing thread
+    private void onNewSpeed(long estTimestamp, float speed) {
+        speedWatchdog.onSample(estTimestamp);
+        if (verbose)
+            Log.v(TAG, "Speed:" + speed);
+        lastSpeed = speed;
+        record(estTimestamp);
+        sessionStats.onSpeed(estTimestamp, speed, fanDispatcher.getFanSpeed());
+        speedHistory.add(estTimestamp, speed, fanDispatcher.getFanSpeed());
+        if (!fanDispatcher.isUsePower()) {
+            onFirstSample("speed");
+            onSwitchDone("speed");
+            // update fan speed according to this speed
+            long start = System.nanoTime();
+            fanControl.onSpeed(estTimestamp, speed);
+            pipelineStats.decision.record(System.nanoTime() - start);
+            // update UI
+            uiUpdates.setValue(speed, estTimestamp);
+        }
+    }
 
     // Receives state changes and shows it on the status display line
     private AntPluginPcc.IDeviceStateChangeReceiver mSpeedDeviceStateChangeReceiver = new AntPluginPcc.IDeviceStateChangeReceiver() {
         @Override
         public void onDeviceStateChange(final DeviceState newDeviceState) {
-            Log.d(TAG, bsdPcc.getDeviceName() + " onDeviceStateChange:" + newDeviceState);
-            // send broadcast
-            if (!usePower) {
-                Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-                i.putExtra("service_status", newDeviceState.name());
-                sendBroadcast(i);
+            Log.d(TAG, "[Speed] onDeviceStateChange:" + newDeviceState);
+            // update UI
+            if (!fanDispatcher.isUsePower()) {
+                uiUpdates.setStatus(newDeviceState.name());
             }
 
             // if the device is dead (closed)
             if (newDeviceState == DeviceState.DEAD) {
                 bsdPcc = null;
-                // stop fan
-                if (!usePower && !manualFanControl)
-                    new FanSpeedTask().execute(FanSpeed.FAN_STOP);
+                // the fan state belongs to the processing thread
+                sensorProcessor.put(OWN_SENSORS, SensorRing.SPEED_LOST, System.currentTimeMillis());
             }
         }
     };
@@ -181,48 +512,89 @@ public class BikeSpeedService extends Service {
     private AntPluginPcc.IDeviceStateChangeReceiver mPowerDeviceStateChangeReceiver = new AntPluginPcc.IDeviceStateChangeReceiver() {
         @Override
         public void onDeviceStateChange(final DeviceState newDeviceState) {
-            Log.d(TAG, pwrPcc.getDeviceName() + " onDeviceStateChange:" + newDeviceState);
-            // send broadcast
-            if (usePower) {
-                Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-                i.putExtra("service_status", newDeviceState.name());
-                sendBroadcast(i);
+            Log.d(TAG, "[Power] onDeviceStateChange:" + newDeviceState);
+            // update UI
+            if (fanDispatcher.isUsePower()) {
+                uiUpdates.setStatus(newDeviceState.name());
             }
 
             // if the device is dead (closed)
             if (newDeviceState == DeviceState.DEAD) {
                 pwrPcc = null;
-                // stop fan
-                if (usePower && !manualFanControl)
-                    new FanSpeedTask().execute(FanSpeed.FAN_STOP);
+                sensorProcessor.put(OWN_SENSORS, SensorRing.POWER_LOST, System.currentTimeMillis());
             }
         }
     };
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "Service onStartCommand");
-        return Service.START_NOT_STICKY;
+        Log.d(TAG, "Service onStartCommand" + (intent == null ? " after a restart" : ""));
+        // restarted after the OS killed it, onCreate() continues from the checkpoint
+        return Service.START_STICKY;
     }
 
 
-    private class BikeSpeedServiceReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.hasExtra("manual")) {
-                manualFanControl = intent.getBooleanExtra("manual", false);
-                Log.i(TAG, "Manual Fan Control:" + manualFanControl);
-            }
-            if (intent.hasExtra("use_power")) {
-                usePower = intent.getBooleanExtra("use_power", false);
-                Log.i(TAG, "Use Power:" + usePower);
-            }
-            if (intent.hasExtra("fanspeed")) {
-                FanSpeed fanspeed = (FanSpeed) intent.getSerializableExtra("fanspeed");
-                Log.d(TAG, "Got speed request:" + fanspeed);
-                new FanSpeedTask().execute(fanspeed);
-            }
-        }
+    /**
+     * Latest state snapshot, safe to call from any thread.
+     */
+    public FanState getState() {
+        return uiUpdates.getState();
+    }
+
+    // recent speed or power samples for a chart, safe to read from any thread
+    public SampleHistory getHistory(boolean power) {
+        return power ? powerHistory : speedHistory;
+    }
+
+    // latency histograms and failure counters, safe to read from any thread
+    public PipelineStats getPipelineStats() {
+        return pipelineStats;
+    }
+
+    /**
+     * Registers a listener and delivers the current state to it on the next frame. Main thread only.
+     */
+    public void addStateListener(StateListener listener) {
+        stateListeners.addIfAbsent(listener);
+        uiUpdates.setVisible(true);
+    }
+
+    // main thread only
+    public void removeStateListener(StateListener listener) {
+        stateListeners.remove(listener);
+        if (stateListeners.isEmpty())
+            uiUpdates.setVisible(false);
+    }
+
+    public void setManualFanControl(boolean manual) {
+        if (manual == fanDispatcher.isManualFanControl())
+            return;
+        fanDispatcher.setManualFanControl(manual);
+        Log.i(TAG, "Manual Fan Control:" + manual);
+        onControlChanged();
+    }
+
+    public void setUsePower(boolean usePower) {
+        if (usePower == fanDispatcher.isUsePower())
+            return;
+        fanDispatcher.setUsePower(usePower);
+        Log.i(TAG, "Use Power:" + usePower);
+        switchStart = System.nanoTime();
+        updateSensors();
+        onControlChanged();
+    }
+
+    // only takes effect in manual fan control
+    public void requestFanSpeed(FanSpeed fanSpeed) {
+        Log.d(TAG, "Got speed request:" + fanSpeed);
+        fanDispatcher.requestManual(fanSpeed);
+    }
+
+    private void onControlChanged() {
+        // make the fan curve send its current position again
+        fanControl.resetCurves();
+        uiUpdates.setControl(fanDispatcher.isManualFanControl(), fanDispatcher.isUsePower());
+        checkpoint();
     }
 
     @Override
@@ -230,10 +602,49 @@ public class BikeSpeedService extends Service {
         Log.d(TAG, "Service started");
         super.onCreate();
 
-        BikeSpeedServiceReceiver serviceReceiver = new BikeSpeedServiceReceiver();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("idv.markkuo.bikefanspeed.fanspeed");
-        registerReceiver(serviceReceiver, filter);
+        settings = new Settings(this);
+        verbose = Log.isLoggable(TAG, Log.VERBOSE);
+        speedWatchdog.setSilence(settings.getSensorTimeout());
+        powerWatchdog.setSilence(settings.getSensorTimeout());
+        wheelSpeed.setCircumference(settings.getWheelCircumference());
+        policies = new FanPolicyStore(this, new FanPolicyStore.Listener() {
+            @Override
+            public void onPoliciesChanged() {
+                createFanControl();
+                gymRiders.createFanControls();
+            }
+        });
+        policies.start();
+
+        fanDispatcher = new FanCommandDispatcher(settings.createActuator(), new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+                Log.d(TAG, "Fan Speed:" + speed);
+                uiUpdates.setFanSpeed(speed);
+                checkpoint();
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+                Log.e(TAG, "Error setting Servo position:" + position + ", " + error);
+                checkpoint();
+            }
+        }, pipelineStats);
+        checkpoints = new ControlCheckpointStore(this);
+        ControlCheckpoint restored = checkpoints.load();
+        if (restored != null)
+            restore(restored);
+        fanDispatcher.start();
+        createFanControl();
+        if (restored != null && !fanDispatcher.isManualFanControl()
+                && fanDispatcher.getFanSpeed() != FanSpeed.FAN_STOP) {
+            fanControl.restore(fanDispatcher.getFanSpeed());
+            // the fan runs: back under control when the sensor comes back, or coasting down if not
+            (fanDispatcher.isUsePower() ? powerWatchdog : speedWatchdog).arm();
+        }
+        settings.getPreferences().registerOnSharedPreferenceChangeListener(mSettingsListener);
+        uiUpdates.setInterval(settings.getUiUpdateInterval());
+        startRecording();
 
         Intent notificationIntent = new Intent(this, BikeSpeedService.class);
         PendingIntent pendingIntent =
@@ -247,18 +658,48 @@ public class BikeSpeedService extends Service {
         assert notificationManager != null;
         notificationManager.createNotificationChannel(channel);
         // build a notification
-        Notification notification =
+        notificationBuilder =
                 new Notification.Builder(this, CHANNEL_DEFAULT_IMPORTANCE)
                         .setContentTitle(getText(R.string.app_name))
                         .setContentText("Active")
                         //.setSmallIcon(R.drawable.icon)
                         .setContentIntent(pendingIntent)
                         .setTicker(getText(R.string.app_name))
-                        .build();
+                        .setOnlyAlertOnce(true);
         // start this service as a foreground one
-        startForeground(ONGOING_NOTIFICATION_ID, notification);
+        startForeground(ONGOING_NOTIFICATION_ID, notificationBuilder.build());
+        notificationHandler.postDelayed(updateNotification, NOTIFICATION_UPDATE_MS);
+        notificationHandler.postDelayed(updateStats, STATS_UPDATE_MS);
 
+        // for the allocation budget of the sensor processing thread
+        Debug.startAllocCounting();
+        sensorProcessor.start();
         initAntPlus();
+        gymRiders = new GymRiders(this, settings, fanControlFactory, sensorProcessor, sensorTimers);
+        gymRiders.start();
+    }
+
+    /**
+     * Continues where the last run left the servo, and after a kill within MAX_CHECKPOINT_AGE_MS
+     * with its modes and last samples too. Before the dispatcher and the sensors start.
+     */
+    private void restore(ControlCheckpoint checkpoint) {
+        fanDispatcher.restore(checkpoint.position, checkpoint.positionKnown);
+        warmStart = !checkpoint.clean && System.currentTimeMillis() - checkpoint.time < MAX_CHECKPOINT_AGE_MS;
+        if (warmStart) {
+            fanDispatcher.setManualFanControl(checkpoint.manualFanControl);
+            fanDispatcher.setUsePower(checkpoint.usePower);
+            lastSpeed = checkpoint.lastSpeed;
+            lastPower = checkpoint.lastPower;
+        }
+        uiUpdates.setControl(fanDispatcher.isManualFanControl(), fanDispatcher.isUsePower());
+        uiUpdates.setFanSpeed(fanDispatcher.getFanSpeed());
+        Log.i(TAG, (warmStart ? "Warm" : "Cold") + " start from checkpoint " + checkpoint);
+    }
+
+    // any thread; only written when the control state changed
+    private void checkpoint() {
+        checkpoints.save(ControlCheckpoint.of(fanDispatcher, lastSpeed, lastPower, System.currentTimeMillis(), false));
     }
 
     @Override
@@ -273,123 +714,190 @@ public class BikeSpeedService extends Service {
     public void onDestroy() {
         Log.d(TAG, "Service destroyed");
         super.onDestroy();
+        stateListeners.clear();
+        uiUpdates.stop();
+        notificationHandler.removeCallbacks(updateNotification);
+        notificationHandler.removeCallbacks(updateStats);
+        settings.getPreferences().unregisterOnSharedPreferenceChangeListener(mSettingsListener);
+        policies.stop();
         cleanHandles();
+        gymRiders.stop();
+        sensorProcessor.stop(SENSOR_STOP_TIMEOUT_MS);
+        Debug.stopAllocCounting();
+        Log.i(TAG, "Sensor processing " + sensorProcessor);
+        stopRecording();
+        fanDispatcher.stop();
+        checkpoints.close(ControlCheckpoint.of(fanDispatcher, lastSpeed, lastPower, System.currentTimeMillis(), true));
+        Log.i(TAG, "Fan commands " + fanDispatcher);
+        Log.i(TAG, "Latency\n" + pipelineStats.dump());
+        Log.i(TAG, "Fan control " + fanControl);
+        Log.i(TAG, "Ride " + sessionStats);
     }
 
     private void cleanHandles() {
         //Release the old access if it exists
-        if(bsdReleaseHandle != null)
+        releaseSpeedSensor();
+        releasePowerSensor();
+    }
+
+    private void releaseSpeedSensor() {
+        sensorHandler.removeCallbacks(speedSearch);
+        if (bsdReleaseHandle != null) {
             bsdReleaseHandle.close();
-        if(bpReleaseHandle != null)
+            Log.d(TAG, "released speed sensor");
+        }
+        bsdReleaseHandle = null;
+        bsdPcc = null;
+    }
+
+    private void releasePowerSensor() {
+        sensorHandler.removeCallbacks(powerSearch);
+        if (bpReleaseHandle != null) {
             bpReleaseHandle.close();
+            Log.d(TAG, "released power sensor");
+        }
+        bpReleaseHandle = null;
+        pwrPcc = null;
     }
 
     private void initAntPlus() {
         cleanHandles();
+        startTime = System.nanoTime();
+        firstSampleMs = -1;
+        updateSensors();
+    }
 
-        Log.d(TAG, "requesting ANT+ access");
-        // starts speed sensor search
-        bsdReleaseHandle = AntPlusBikeSpeedDistancePcc.requestAccess(this, 0, 0, false,
+    // asks for the sensor paired last, or searches for any if there is none; main thread only
+    private void requestSpeedSensor(int deviceNumber) {
+        Log.d(TAG, "requesting ANT+ speed sensor access, device:" + deviceNumber);
+        bsdRequested = deviceNumber;
+        bsdReleaseHandle = AntPlusBikeSpeedDistancePcc.requestAccess(this, deviceNumber, 0, false,
                 mSpeedResultReceiver, mSpeedDeviceStateChangeReceiver);
-        bpReleaseHandle = AntPlusBikePowerPcc.requestAccess(this, 0, 0,
-                mPowerResultReceiver, mPowerDeviceStateChangeReceiver);
-
-        // send initial state for UI
-        Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-        i.putExtra("service_status", "SEARCHING");
-        sendBroadcast(i);
+        if (deviceNumber != 0)
+            sensorHandler.postDelayed(speedSearch, PAIRED_SENSOR_TIMEOUT_MS);
     }
 
-    // last speed
-    private FanSpeed lastSpeed = FanSpeed.FAN_STOP;
-
-    // fan speed supported
-    enum FanSpeed {
-        FAN_STOP,
-        FAN_1,
-        FAN_2,
+    private void requestPowerSensor(int deviceNumber) {
+        Log.d(TAG, "requesting ANT+ power sensor access, device:" + deviceNumber);
+        bpRequested = deviceNumber;
+        bpReleaseHandle = AntPlusBikePowerPcc.requestAccess(this, deviceNumber, 0,
+                mPowerResultReceiver, mPowerDeviceStateChangeReceiver);
+        if (deviceNumber != 0)
+            sensorHandler.postDelayed(powerSearch, PAIRED_SENSOR_TIMEOUT_MS);
     }
-    // the async task to set fan speed by requesting a private http endpoint
-    private final class FanSpeedTask extends AsyncTask<FanSpeed, Void, Void> {
-        private static final String uri = "http://192.168.1.201:8080/servo?pin=11&pos=";
 
+    // falls back to a search if the sensor paired last did not turn up
+    private final Runnable speedSearch = new Runnable() {
         @Override
-        protected Void doInBackground(FanSpeed... speed) {
-            setFanSpeed(speed[0]);
-            return null;
+        public void run() {
+            if (bsdPcc != null || bsdReleaseHandle == null || bsdRequested == 0)
+                return;
+            Log.i(TAG, "[Speed] device " + bsdRequested + " not found, searching");
+            releaseSpeedSensor();
+            requestSpeedSensor(0);
         }
+    };
 
-        private void setFanSpeed(FanSpeed speed) {
-            if (speed == lastSpeed)
+    private final Runnable powerSearch = new Runnable() {
+        @Override
+        public void run() {
+            if (pwrPcc != null || bpReleaseHandle == null || bpRequested == 0)
                 return;
-            Intent i = new Intent("idv.markkuo.bikefanspeed.ANTDATA");
-            i.putExtra("fan_speed", speed);
-            sendBroadcast(i);
-            switch (speed) {
-                case FAN_STOP:
-                    Log.d(TAG, "Stop Fan");
-                    if (lastSpeed == FanSpeed.FAN_2) {
-                        // do not allow direct jump to stop
-                        setFanSpeed(FanSpeed.FAN_1);
-                        return;
-                    }
-                    if (lastSpeed == FanSpeed.FAN_1) {
-                        // rewind a bit
-                        setServoPosition(55);
-                        try {
-                            Thread.sleep(500);
-                        } catch (Exception ignored) {
-                        }
-                    }
-                    setServoPosition(10);
-                    break;
-                case FAN_1:
-                    Log.d(TAG, "Fan Speed 1");
-                    if (lastSpeed == FanSpeed.FAN_STOP)
-                        setServoPosition(55);
-                    else if (lastSpeed == FanSpeed.FAN_2)
-                        setServoPosition(45);
-                    break;
-                case FAN_2:
-                    if (lastSpeed == FanSpeed.FAN_STOP) {
-                        // do not allow direct jump to FAN_2
-                        setFanSpeed(FanSpeed.FAN_1);
-                        return;
-                    }
-//                    if (lastSpeed == FanSpeed.FAN_1) {
-//                        // rewind a bit
-//                        setServoPosition(40);
-//                        try {
-//                            Thread.sleep(500);
-//                        } catch (Exception e) {
-//                        }
-//                    }
-
-                    Log.d(TAG, "Fan Speed 2");
-                    setServoPosition(85);
-                    break;
-            }
-            lastSpeed = speed;
+            Log.i(TAG, "[Power] device " + bpRequested + " not found, searching");
+            releasePowerSensor();
+            requestPowerSensor(0);
         }
+    };
 
-        private void setServoPosition(int position) {
-            try {
-                URL url = new URL(uri + position);
-                HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                if (con.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                    Log.v(TAG, "Successfully setting Servo position:" + position);
-                } else {
-                    Log.e(TAG, "Error setting Servo position:" + position + ", Error:" + con.getResponseCode() + ", Reason:" + con.getContent().toString());
-                }
-            } catch (Exception e) {
-                Log.e(TAG, e.toString());
+    // called with every sample of the active source, logs the first one after the start
+    private void onFirstSample(String source) {
+        long start = startTime;
+        if (start == 0)
+            return;
+        startTime = 0;
+        firstSampleMs = (System.nanoTime() - start) / 1000000;
+        int requested = "power".equals(source) ? bpRequested : bsdRequested;
+        Log.i(TAG, "First " + source + " sample " + firstSampleMs + "ms after " + (warmStart ? "warm" : "cold")
+                + " start, " + (requested != 0 ? "paired device " + requested : "search"));
+    }
+
+    /**
+     * Holds the channel of the active source, and the other one too in warm standby, where it
+     * stays connected but its events are not decoded. Called on the main thread.
+     */
+    private void updateSensors() {
+        boolean power = fanDispatcher.isUsePower();
+        boolean standby = settings.useWarmStandby();
+
+        if (power || standby) {
+            if (bpReleaseHandle == null) {
+                requestPowerSensor(settings.getPairedDevice(true));
+            } else {
+                subscribePower(power);
             }
+        } else {
+            releasePowerSensor();
+        }
+        if (!power || standby) {
+            if (bsdReleaseHandle == null) {
+                requestSpeedSensor(settings.getPairedDevice(false));
+            } else {
+                subscribeSpeed(!power);
+            }
+        } else {
+            releaseSpeedSensor();
+        }
+
+        // send state of the active sensor for UI
+        AntPluginPcc active = power ? pwrPcc : bsdPcc;
+        uiUpdates.setStatus(active != null ? active.getCurrentDeviceState().name() : "SEARCHING");
+    }
+
+    // called with the first sample of a source after switching to it
+    private void onSwitchDone(String source) {
+        long start = switchStart;
+        if (start == 0)
+            return;
+        switchStart = 0;
+        long elapsed = System.nanoTime() - start;
+        pipelineStats.sensorSwitch.record(elapsed);
+        Log.i(TAG, "Switched to " + source + " in " + elapsed / 1000000 + "ms");
+    }
+
+    // takes effect with the next sample of each sensor
+    private void setSensorTimeout(long silenceMs) {
+        speedWatchdog.setSilence(silenceMs);
+        powerWatchdog.setSilence(silenceMs);
+        gymRiders.setSensorTimeout(silenceMs);
+        Log.i(TAG, "Sensor timeout:" + silenceMs + "ms");
+    }
+
+    // adb shell dumpsys activity service idv.markkuo.bikefanspeed/.BikeSpeedService [reset]
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("First sample after " + (warmStart ? "warm" : "cold") + " start " + firstSampleMs
+                + "ms, checkpoints written:" + checkpoints.getWriteCount() + ", paired speed:"
+                + settings.getPairedDevice(false) + ", power:" + settings.getPairedDevice(true));
+        writer.println("Ride " + sessionStats);
+        writer.println("Sensor processing " + sensorProcessor);
+        writer.println("Sensor watchdogs " + speedWatchdog + "; " + powerWatchdog);
+        writer.println("Fan commands " + fanDispatcher);
+        writer.println("Fan control " + fanControl);
+        writer.println("Fan policies " + policies.get(FanPolicy.Metric.SPEED) + "; "
+                + policies.get(FanPolicy.Metric.POWER));
+        writer.println(pipelineStats.dump());
+        writer.println("Gym fans " + gymRiders);
+        writer.println(gymRiders.getStats().dump());
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            pipelineStats.reset();
+            gymRiders.getStats().reset();
+            writer.println("reset");
         }
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 }
@@ -0,0 +1,112 @@
+package idv.markkuo.bikefanspeed;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last ControlCheckpoint in the app's files directory. AtomicFile writes a new file and
+ * renames it over the old one after a sync, so a kill in the middle of a write leaves the
+ * previous checkpoint.
+ *
+ * Writes run in order on their own thread, and only when the control state changed.
+ */
+class ControlCheckpointStore {
+    private static final String TAG = ControlCheckpointStore.class.getSimpleName();
+    static final String FILE_NAME = "control.checkpoint";
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private final AtomicFile file;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "Checkpoint");
+        }
+    });
+    // last one handed to the writer; guarded by this
+    private ControlCheckpoint saved = null;
+    private volatile long writes = 0;
+
+    ControlCheckpointStore(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * The checkpoint left by the last run, null if there is none or it is unreadable.
+     */
+    @Nullable
+    ControlCheckpoint load() {
+        try {
+            ControlCheckpoint checkpoint = ControlCheckpoint.decode(file.readFully());
+            synchronized (this) {
+                saved = checkpoint;
+            }
+            return checkpoint;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring checkpoint:" + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes checkpoint unless the control state is the same as the last one. Any thread.
+     */
+    void save(final ControlCheckpoint checkpoint) {
+        synchronized (this) {
+            if (checkpoint.sameState(saved))
+                return;
+            saved = checkpoint;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(checkpoint);
+            }
+        });
+    }
+
+    /**
+     * Saves the last checkpoint and waits for the writes.
+     */
+    void close(ControlCheckpoint checkpoint) {
+        save(checkpoint);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.w(TAG, "Checkpoint writes still pending");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getWriteCount() {
+        return writes;
+    }
+
+    private void write(ControlCheckpoint checkpoint) {
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(checkpoint.encode());
+            file.finishWrite(out);
+            writes++;
+        } catch (IOException e) {
+            if (out != null)
+                file.failWrite(out);
+            Log.e(TAG, "Unable to write checkpoint:" + e.getMessage());
+        }
+    }
+}
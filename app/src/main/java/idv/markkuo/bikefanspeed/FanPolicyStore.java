@@ -0,0 +1,188 @@
+package idv.markkuo.bikefanspeed;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * The fan policies of speed and power, read from fan_policy.json in the app's files directory:
+ *
+ * <pre>
+ * {"policies": [
+ *   {"metric": "speed", "levels": [{"from": 0, "position": 10}, {"from": 3, "position": 55}, {"from": 10, "position": 85}]},
+ *   {"metric": "power", "levels": [{"from": 0, "position": 10}, {"from": 80, "position": 55}, {"from": 180, "position": 85}]}
+ * ]}
+ * </pre>
+ *
+ * The file is written with the built-in policies if missing, and read again whenever it is
+ * saved. A file that does not parse or validate is logged and the policies in use are kept; a
+ * metric missing from the file gets its built-in policy. The three-step mode can only send the
+ * positions of its fan speeds, so it keeps the built-in policy of a metric whose positions are
+ * anything else.
+ */
+class FanPolicyStore {
+    private static final String TAG = FanPolicyStore.class.getSimpleName();
+    static final String FILE_NAME = "fan_policy.json";
+
+    interface Listener {
+        // on the main thread, after the file changed and the new policies are in use
+        void onPoliciesChanged();
+    }
+
+    private final File file;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile FanPolicy speedPolicy = FanPolicy.defaultFor(FanPolicy.Metric.SPEED);
+    private volatile FanPolicy powerPolicy = FanPolicy.defaultFor(FanPolicy.Metric.POWER);
+    private FileObserver observer = null;
+
+    private final Runnable reload = new Runnable() {
+        @Override
+        public void run() {
+            if (load())
+                listener.onPoliciesChanged();
+        }
+    };
+
+    FanPolicyStore(Context context, Listener listener) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null)
+            dir = context.getFilesDir();
+        this.file = new File(dir, FILE_NAME);
+        this.listener = listener;
+    }
+
+    /**
+     * Loads the policies and watches the file for changes.
+     */
+    void start() {
+        if (!file.exists()) {
+            try {
+                Files.write(file.toPath(), toJson(speedPolicy, powerPolicy).getBytes(StandardCharsets.UTF_8));
+                Log.i(TAG, "Wrote default policies to " + file);
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Unable to write " + file + ":" + e.getMessage());
+            }
+        }
+        load();
+        // the directory, so an editor replacing the file is seen too
+        observer = new FileObserver(file.getParent(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                if (FILE_NAME.equals(path)) {
+                    // an editor may write more than once
+                    handler.removeCallbacks(reload);
+                    handler.postDelayed(reload, 200);
+                }
+            }
+        };
+        observer.startWatching();
+    }
+
+    void stop() {
+        if (observer != null)
+            observer.stopWatching();
+        observer = null;
+        handler.removeCallbacks(reload);
+    }
+
+    FanPolicy get(FanPolicy.Metric metric) {
+        return metric == FanPolicy.Metric.POWER ? powerPolicy : speedPolicy;
+    }
+
+    // the policy the three-step mode can follow
+    FanPolicy getThreeStep(FanPolicy.Metric metric) {
+        FanPolicy policy = get(metric);
+        return policy.isThreeStep() ? policy : FanPolicy.defaultFor(metric);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    // reads the file, returns false if it could not be used
+    boolean load() {
+        try {
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            FanPolicy speed = FanPolicy.defaultFor(FanPolicy.Metric.SPEED);
+            FanPolicy power = FanPolicy.defaultFor(FanPolicy.Metric.POWER);
+            for (FanPolicy policy : parse(text)) {
+                if (policy.getMetric() == FanPolicy.Metric.POWER)
+                    power = policy;
+                else
+                    speed = policy;
+            }
+            speedPolicy = speed;
+            powerPolicy = power;
+            Log.i(TAG, "Fan policies: " + speed + "; " + power);
+            for (FanPolicy policy : new FanPolicy[]{speed, power}) {
+                if (!policy.isThreeStep())
+                    Log.w(TAG, "Policy " + policy + " has positions other than " + FanCurve.POSITION_STOP
+                            + "/" + FanCurve.POSITION_FAN_1 + "/" + FanCurve.POSITION_FAN_2
+                            + ", only the fan policy levels curve uses it; the three-step mode keeps the built-in one");
+            }
+            return true;
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            Log.e(TAG, "Keeping fan policies, " + file + ":" + e.getMessage());
+            return false;
+        }
+    }
+
+    static FanPolicy[] parse(String json) throws JSONException {
+        JSONArray policies = new JSONObject(json).getJSONArray("policies");
+        FanPolicy[] result = new FanPolicy[policies.length()];
+        for (int i = 0; i < result.length; i++) {
+            JSONObject policy = policies.getJSONObject(i);
+            FanPolicy.Metric metric;
+            switch (policy.getString("metric")) {
+                case "speed":
+                    metric = FanPolicy.Metric.SPEED;
+                    break;
+                case "power":
+                    metric = FanPolicy.Metric.POWER;
+                    break;
+                default:
+                    throw new JSONException("Unknown metric:" + policy.getString("metric"));
+            }
+            JSONArray levels = policy.getJSONArray("levels");
+            float[] bounds = new float[levels.length()];
+            int[] positions = new int[levels.length()];
+            for (int l = 0; l < bounds.length; l++) {
+                JSONObject level = levels.getJSONObject(l);
+                bounds[l] = (float) level.getDouble("from");
+                positions[l] = level.getInt("position");
+            }
+            result[i] = new FanPolicy(metric, bounds, positions);
+        }
+        return result;
+    }
+
+    static String toJson(FanPolicy... policies) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (FanPolicy policy : policies) {
+            JSONArray levels = new JSONArray();
+            for (int l = 0; l < policy.size(); l++) {
+                levels.put(new JSONObject()
+                        .put("from", policy.getBound(l))
+                        .put("position", policy.getPosition(l)));
+            }
+            array.put(new JSONObject()
+                    .put("metric", policy.getMetric() == FanPolicy.Metric.POWER ? "power" : "speed")
+                    .put("levels", levels));
+        }
+        return new JSONObject().put("policies", array).toString(2);
+    }
+}
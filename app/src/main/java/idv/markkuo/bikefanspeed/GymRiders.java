@@ -0,0 +1,286 @@
+package idv.markkuo.bikefanspeed;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.dsi.ant.plugins.antplus.pcc.AntPlusBikePowerPcc;
+import com.dsi.ant.plugins.antplus.pcc.AntPlusBikeSpeedDistancePcc;
+import com.dsi.ant.plugins.antplus.pcc.defines.DeviceState;
+import com.dsi.ant.plugins.antplus.pcc.defines.EventFlag;
+import com.dsi.ant.plugins.antplus.pcc.defines.RequestAccessResult;
+import com.dsi.ant.plugins.antplus.pccbase.AntPluginPcc;
+import com.dsi.ant.plugins.antplus.pccbase.PccReleaseHandle;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Gym mode: the sensors of every configured rider, paired by ANT+ device number, each driving
+ * the rider's own fan. All fans share the worker threads and servo links of one FanChannelGroup.
+ *
+ * Main thread only, except for the sensor callbacks, which queue their samples on the service's
+ * SensorProcessor, and onEvent() on its thread.
+ */
+class GymRiders {
+    private static final String TAG = GymRiders.class.getSimpleName();
+
+    private final Context context;
+    private final Settings settings;
+    private final FanControl.Factory controlFactory;
+    private final SensorProcessor processor;
+    private final TimerWheel timers;
+    // latency of all gym fans together, apart from the phone's own fan
+    private final PipelineStats stats = new PipelineStats();
+    private FanChannelGroup group = null;
+    private final List<Rider> riders = new ArrayList<>();
+    // the riders for the processing thread; never reused, so stale samples in the ring find no rider
+    private volatile Rider[] sources = new Rider[0];
+    // 0 is the phone's own sensors
+    private int nextSource = 1;
+
+    GymRiders(Context context, Settings settings, FanControl.Factory controlFactory, SensorProcessor processor,
+              TimerWheel timers) {
+        this.context = context;
+        this.settings = settings;
+        this.controlFactory = controlFactory;
+        this.processor = processor;
+        this.timers = timers;
+    }
+
+    /**
+     * Connects the sensors and fans of the configured riders, replacing the current ones.
+     */
+    void start() {
+        stop();
+        List<FanChannel.Config> configs = settings.getGymRiders();
+        if (configs.isEmpty())
+            return;
+        group = new FanChannelGroup(FanChannelGroup.DEFAULT_THREADS, stats);
+        for (FanChannel.Config config : configs) {
+            Rider rider = new Rider(group.add(config, new FanListener(config.name)), nextSource++);
+            rider.channel.getWheelSpeed().setCircumference(settings.getWheelCircumference());
+            rider.channel.setControl(controlFactory.create(rider.channel.getDispatcher()));
+            rider.requestAccess();
+            riders.add(rider);
+            Log.i(TAG, "Rider " + config);
+        }
+        sources = riders.toArray(new Rider[0]);
+    }
+
+    void stop() {
+        sources = new Rider[0];
+        for (Rider rider : riders)
+            rider.release();
+        riders.clear();
+        if (group != null) {
+            Log.i(TAG, "Gym fans " + group);
+            try {
+                group.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        group = null;
+    }
+
+    // after the fan control settings changed
+    void createFanControls() {
+        for (Rider rider : riders)
+            rider.channel.setControl(controlFactory.create(rider.channel.getDispatcher()));
+    }
+
+    void setWheelCircumference(float circumference) {
+        for (Rider rider : riders)
+            rider.channel.getWheelSpeed().setCircumference(circumference);
+    }
+
+    /**
+     * A sample, or the channel going DEAD, of a rider's sensor, on the sensor processing thread.
+     */
+    void onEvent(int source, int kind, long time, float value, long a, long b, long queued) {
+        for (Rider rider : sources) {
+            if (rider.source != source)
+                continue;
+            stats.handoff.record(System.nanoTime() - queued);
+            FanChannel channel = rider.channel;
+            if (kind == SensorRing.SPEED_LOST || kind == SensorRing.POWER_LOST) {
+                FanControl control = channel.getControl();
+                if (control != null && kind == SensorRing.SPEED_LOST)
+                    control.onSpeedLost();
+                else if (control != null)
+                    control.onPowerLost();
+            } else if (kind == SensorRing.POWER) {
+                rider.powerWatchdog.onSample(time);
+                channel.onPower(time, value);
+            } else {
+                rider.speedWatchdog.onSample(time);
+                channel.onSpeed(time, kind == SensorRing.RAW_SPEED ? channel.getWheelSpeed().update(time, a, b) : value);
+            }
+            return;
+        }
+    }
+
+    void setSensorTimeout(long silenceMs) {
+        for (Rider rider : riders) {
+            rider.speedWatchdog.setSilence(silenceMs);
+            rider.powerWatchdog.setSilence(silenceMs);
+        }
+    }
+
+    PipelineStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return group == null ? "off" : group.toString();
+    }
+
+    private static class FanListener implements FanCommandDispatcher.Listener {
+        private final String name;
+
+        FanListener(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onFanSpeedChanged(FanSpeed speed) {
+            Log.d(TAG, "[" + name + "] Fan Speed:" + speed);
+        }
+
+        @Override
+        public void onServoError(int position, String error) {
+            Log.e(TAG, "[" + name + "] Error setting Servo position:" + position + ", " + error);
+        }
+    }
+
+    // the sensors of one rider
+    private class Rider {
+        final FanChannel channel;
+        final String name;
+        // of its samples in the sensor ring
+        final int source;
+        final SensorWatchdog speedWatchdog;
+        final SensorWatchdog powerWatchdog;
+        PccReleaseHandle<AntPlusBikeSpeedDistancePcc> speedHandle = null;
+        PccReleaseHandle<AntPlusBikePowerPcc> powerHandle = null;
+
+        Rider(FanChannel channel, int source) {
+            this.channel = channel;
+            this.name = channel.getConfig().name;
+            this.source = source;
+            long silence = settings.getSensorTimeout();
+            speedWatchdog = new SensorWatchdog(name + " speed", timers, silence, silenceListener);
+            powerWatchdog = new SensorWatchdog(name + " power", timers, silence, silenceListener);
+        }
+
+        // only the sensor driving the fan, its device number also keeps other riders' sensors out
+        void requestAccess() {
+            FanChannel.Config config = channel.getConfig();
+            if (channel.getDispatcher().isUsePower()) {
+                powerHandle = AntPlusBikePowerPcc.requestAccess(context, config.powerDevice, 0,
+                        powerResult, powerState);
+            } else {
+                speedHandle = AntPlusBikeSpeedDistancePcc.requestAccess(context, config.speedDevice, 0, false,
+                        speedResult, speedState);
+            }
+        }
+
+        void release() {
+            speedWatchdog.close();
+            powerWatchdog.close();
+            if (speedHandle != null)
+                speedHandle.close();
+            if (powerHandle != null)
+                powerHandle.close();
+            speedHandle = null;
+            powerHandle = null;
+        }
+
+        // on the sensor processing thread
+        private final SensorWatchdog.Listener silenceListener = new SensorWatchdog.Listener() {
+            @Override
+            public boolean onSilent(SensorWatchdog watchdog, int steps) {
+                Log.i(TAG, "[" + watchdog.getName() + "] silent, fan " + channel.getDispatcher().getFanSpeed());
+                FanControl control = channel.getControl();
+                return control != null && control.coastDown(watchdog == powerWatchdog);
+            }
+        };
+
+        private final AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikeSpeedDistancePcc> speedResult = new AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikeSpeedDistancePcc>() {
+            @Override
+            public void onResultReceived(AntPlusBikeSpeedDistancePcc result,
+                                         RequestAccessResult resultCode, DeviceState initialDeviceState) {
+                if (resultCode != RequestAccessResult.SUCCESS) {
+                    Log.w(TAG, "[" + name + "] speed sensor:" + initialDeviceState + ", resultCode:" + resultCode);
+                    return;
+                }
+                Log.i(TAG, "[" + name + "] " + result.getDeviceName() + ": " + initialDeviceState);
+                if (settings.useRawSpeed()) {
+                    channel.getWheelSpeed().reset();
+                    result.subscribeRawSpeedAndDistanceDataEvent(new AntPlusBikeSpeedDistancePcc.IRawSpeedAndDistanceDataReceiver() {
+                        @Override
+                        public void onNewRawSpeedAndDistanceData(final long estTimestamp,
+                                                                 final EnumSet<EventFlag> eventFlags,
+                                                                 final BigDecimal timestampOfLastEvent,
+                                                                 final long cumulativeRevolutions) {
+                            long eventTime = Math.round(timestampOfLastEvent.doubleValue() * WheelSpeedCalculator.TICKS_PER_SECOND);
+                            processor.offer(source, SensorRing.RAW_SPEED, estTimestamp, 0.0f, eventTime, cumulativeRevolutions);
+                        }
+                    });
+                } else {
+                    BigDecimal circumference = new BigDecimal(channel.getWheelSpeed().getCircumference());
+                    result.subscribeCalculatedSpeedEvent(new AntPlusBikeSpeedDistancePcc.CalculatedSpeedReceiver(circumference) {
+                        @Override
+                        public void onNewCalculatedSpeed(final long estTimestamp,
+                                                         final EnumSet<EventFlag> eventFlags, final BigDecimal calculatedSpeed) {
+                            processor.offer(source, SensorRing.SPEED, estTimestamp,
+                                    WheelSpeedCalculator.msToKmh(calculatedSpeed.floatValue()), 0, 0);
+                        }
+                    });
+                }
+            }
+        };
+
+        private final AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikePowerPcc> powerResult = new AntPluginPcc.IPluginAccessResultReceiver<AntPlusBikePowerPcc>() {
+            @Override
+            public void onResultReceived(AntPlusBikePowerPcc result,
+                                         RequestAccessResult resultCode, DeviceState initialDeviceState) {
+                if (resultCode != RequestAccessResult.SUCCESS) {
+                    Log.w(TAG, "[" + name + "] power sensor:" + initialDeviceState + ", resultCode:" + resultCode);
+                    return;
+                }
+                Log.i(TAG, "[" + name + "] " + result.getDeviceName() + ": " + initialDeviceState);
+                result.subscribeCalculatedPowerEvent(new AntPlusBikePowerPcc.ICalculatedPowerReceiver() {
+                    @Override
+                    public void onNewCalculatedPower(
+                            final long estTimestamp, final EnumSet<EventFlag> eventFlags,
+                            final AntPlusBikePowerPcc.DataSource dataSource,
+                            final BigDecimal calculatedPower) {
+                        processor.offer(source, SensorRing.POWER, estTimestamp, calculatedPower.floatValue(), 0, 0);
+                    }
+                });
+            }
+        };
+
+        private final AntPluginPcc.IDeviceStateChangeReceiver speedState = new AntPluginPcc.IDeviceStateChangeReceiver() {
+            @Override
+            public void onDeviceStateChange(final DeviceState newDeviceState) {
+                Log.d(TAG, "[" + name + "] speed sensor:" + newDeviceState);
+                if (newDeviceState == DeviceState.DEAD)
+                    processor.put(source, SensorRing.SPEED_LOST, System.currentTimeMillis());
+            }
+        };
+
+        private final AntPluginPcc.IDeviceStateChangeReceiver powerState = new AntPluginPcc.IDeviceStateChangeReceiver() {
+            @Override
+            public void onDeviceStateChange(final DeviceState newDeviceState) {
+                Log.d(TAG, "[" + name + "] power sensor:" + newDeviceState);
+                if (newDeviceState == DeviceState.DEAD)
+                    processor.put(source, SensorRing.POWER_LOST, System.currentTimeMillis());
+            }
+        };
+    }
+}
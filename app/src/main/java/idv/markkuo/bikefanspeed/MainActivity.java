@@ -2,14 +2,16 @@ package idv.markkuo.bikefanspeed;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import android.annotation.SuppressLint;
 import android.app.ActivityManager;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CompoundButton;
@@ -21,14 +23,42 @@ public class MainActivity extends AppCompatActivity {
 
     private TextView tv_sensor_type, tv_sensor_info;
     private TextView tv_sensorState;
-    private TextView tv_timestamp, tv_speed, tv_fanspeed;
+    private TextView tv_timestamp, tv_speed, tv_fanspeed, tv_stats;
+    private SparklineView sparkline;
     private Button btn_service;
     private Switch switch_power, switch_manual;
     private Button btn_fan_off, btn_fan_low, btn_fan_high;
 
     private boolean serviceStarted = false;
 
-    private MainActivityReceiver receiver;
+    // set while bound to a running service
+    private BikeSpeedService service = null;
+    // last state shown, null to redraw everything
+    private FanState shownState = null;
+
+    private final BikeSpeedService.StateListener stateListener = new BikeSpeedService.StateListener() {
+        @Override
+        public void onStateChanged(FanState state) {
+            showState(state);
+        }
+    };
+
+    // bound without BIND_AUTO_CREATE, so this connects whenever the service is running
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((BikeSpeedService.LocalBinder) binder).getService();
+            FanState state = service.getState();
+            switch_power.setChecked(state.usePower);
+            switch_manual.setChecked(state.manualFanControl);
+            service.addStateListener(stateListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,6 +71,8 @@ public class MainActivity extends AppCompatActivity {
         tv_speed = findViewById(R.id.SpeedText);
         tv_fanspeed = findViewById(R.id.FanSpeedText);
         tv_timestamp = findViewById(R.id.TimestampText);
+        tv_stats = findViewById(R.id.StatsText);
+        sparkline = findViewById(R.id.Sparkline);
         btn_service = findViewById(R.id.ServiceButton);
         switch_power = findViewById(R.id.switch_power);
         switch_manual = findViewById(R.id.switch_manual);
@@ -63,6 +95,10 @@ public class MainActivity extends AppCompatActivity {
                     MainActivity.this.startForegroundService(i);
                 } else {
                     Log.d(TAG, "Stopping Service");
+                    if (service != null) {
+                        service.removeStateListener(stateListener);
+                        service = null;
+                    }
                     MainActivity.this.stopService(i);
                 }
                 serviceStarted = !serviceStarted;
@@ -80,9 +116,8 @@ public class MainActivity extends AppCompatActivity {
                     tv_sensor_type.setText(getText(R.string.speed_sensor));
                     tv_sensor_info.setText(getText(R.string.current_speed));
                 }
-                Intent i = new Intent("idv.markkuo.bikefanspeed.fanspeed");
-                i.putExtra("use_power", isChecked);
-                sendBroadcast(i);
+                if (service != null)
+                    service.setUsePower(isChecked);
             }
         });
 
@@ -92,53 +127,49 @@ public class MainActivity extends AppCompatActivity {
                 btn_fan_off.setEnabled(isChecked);
                 btn_fan_low.setEnabled(isChecked);
                 btn_fan_high.setEnabled(isChecked);
-                Intent i = new Intent("idv.markkuo.bikefanspeed.fanspeed");
-                i.putExtra("manual", isChecked);
-                sendBroadcast(i);
+                if (service != null)
+                    service.setManualFanControl(isChecked);
             }
         });
 
         btn_fan_off.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (serviceStarted) {
-                    Intent i = new Intent("idv.markkuo.bikefanspeed.fanspeed");
-                    i.putExtra("fanspeed", BikeSpeedService.FanSpeed.FAN_STOP);
-                    sendBroadcast(i);
-                    sendBroadcast(i);
-                }
+                if (service != null)
+                    service.requestFanSpeed(FanSpeed.FAN_STOP);
             }
         });
 
         btn_fan_low.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (serviceStarted) {
-                    Intent i = new Intent("idv.markkuo.bikefanspeed.fanspeed");
-                    i.putExtra("fanspeed", BikeSpeedService.FanSpeed.FAN_1);
-                    sendBroadcast(i);
-                    sendBroadcast(i);
-                }
+                if (service != null)
+                    service.requestFanSpeed(FanSpeed.FAN_1);
             }
         });
 
         btn_fan_high.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (serviceStarted) {
-                    Intent i = new Intent("idv.markkuo.bikefanspeed.fanspeed");
-                    i.putExtra("fanspeed", BikeSpeedService.FanSpeed.FAN_2);
-                    sendBroadcast(i);
-                    sendBroadcast(i);
-                }
+                if (service != null)
+                    service.requestFanSpeed(FanSpeed.FAN_2);
             }
         });
+    }
 
-        // register intent from our service
-        receiver = new MainActivityReceiver();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("idv.markkuo.bikefanspeed.ANTDATA");
-        registerReceiver(receiver, filter);
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_settings) {
+            startActivity(new Intent(this, SettingsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     private void updateButtonState() {
@@ -147,6 +178,8 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void run() {
                 resetUi();
+                if (service != null)
+                    showState(service.getState());
                 if (serviceStarted) {
                     btn_service.setText(getText(R.string.stop_service));
                     switch_manual.setEnabled(true);
@@ -168,17 +201,29 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
+    protected void onStart() {
+        super.onStart();
+        // the service only delivers state while we are registered, i.e. visible
+        bindService(new Intent(this, BikeSpeedService.class), connection, 0);
+    }
 
-        unregisterReceiver(receiver);
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (service != null)
+            service.removeStateListener(stateListener);
+        service = null;
+        unbindService(connection);
     }
 
     private void resetUi() {
+        shownState = null;
         tv_sensorState.setText(getText(R.string.please_start));
         tv_fanspeed.setText(getText(R.string.fan_stopped));
         tv_speed.setText(getText(R.string.no_data));
         tv_timestamp.setText(getText(R.string.no_data));
+        tv_stats.setText(getText(R.string.no_data));
+        sparkline.setHistory(null);
     }
 
     private boolean isServiceRunning() {
@@ -191,39 +236,40 @@ public class MainActivity extends AppCompatActivity {
         return false;
     }
 
-    private class MainActivityReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String statusString = intent.getStringExtra("service_status");
-            final BikeSpeedService.FanSpeed fanSpeed = (BikeSpeedService.FanSpeed) intent.getSerializableExtra("fan_speed");
-            final float speed = intent.getFloatExtra("speed", -1.0f);
-            final long timestamp = intent.getLongExtra("timestamp", -1);
-
-            runOnUiThread(new Runnable() {
-                @SuppressLint("DefaultLocale")
-                @Override
-                public void run() {
-                    if (statusString != null)
-                        tv_sensorState.setText(statusString);
-                    if (fanSpeed != null) {
-                        switch (fanSpeed) {
-                            case FAN_STOP:
-                                tv_fanspeed.setText(getText(R.string.fan_stopped));
-                                break;
-                            case FAN_1:
-                                tv_fanspeed.setText(getText(R.string.fan_low));
-                                break;
-                            case FAN_2:
-                                tv_fanspeed.setText(getText(R.string.fan_high));
-                                break;
-                        }
-                    }
-                    if (speed >= 0.0f)
-                        tv_speed.setText(String.format("%.02f", speed));
-                    if (timestamp >= 0)
-                        tv_timestamp.setText(String.valueOf(timestamp));
-                }
-            });
+    // reused for every update so no String is built per sample
+    private final char[] speedChars = new char[16];
+    private final char[] timestampChars = new char[24];
+
+    // on the main thread, at most once per frame; only touches the views that changed
+    private void showState(FanState state) {
+        FanState shown = shownState;
+        if (state.status != null && (shown == null || !state.status.equals(shown.status)))
+            tv_sensorState.setText(state.status);
+        if (shown == null || state.fanSpeed != shown.fanSpeed) {
+            switch (state.fanSpeed) {
+                case FAN_STOP:
+                    tv_fanspeed.setText(getText(R.string.fan_stopped));
+                    break;
+                case FAN_1:
+                    tv_fanspeed.setText(getText(R.string.fan_low));
+                    break;
+                case FAN_2:
+                    tv_fanspeed.setText(getText(R.string.fan_high));
+                    break;
+            }
         }
+        if (state.value >= 0.0f && (shown == null || state.value != shown.value))
+            tv_speed.setText(speedChars, 0, CharFormat.formatFixed(state.value, 2, speedChars));
+        // chart whichever of speed and power drives the fan
+        if (service != null && (shown == null || state.usePower != shown.usePower))
+            sparkline.setHistory(service.getHistory(state.usePower));
+        if (shown == null || state.timestamp != shown.timestamp)
+            sparkline.onNewData();
+        if (state.timestamp >= 0 && (shown == null || state.timestamp != shown.timestamp))
+            tv_timestamp.setText(timestampChars, 0, CharFormat.formatLong(state.timestamp, timestampChars));
+        // refreshed by the service about once a second
+        if (state.stats != null && (shown == null || !state.stats.equals(shown.stats)))
+            tv_stats.setText(state.stats);
+        shownState = state;
     }
 }
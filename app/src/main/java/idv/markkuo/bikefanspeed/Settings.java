@@ -0,0 +1,223 @@
+package idv.markkuo.bikefanspeed;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.Collections;
+import java.util.List;
+
+// user settings, edited in SettingsActivity
+final class Settings {
+    static final String KEY_RAW_SPEED = "raw_speed";
+    static final String KEY_WHEEL_CIRCUMFERENCE = "wheel_circumference";
+    static final String KEY_WARM_STANDBY = "warm_standby";
+    static final String KEY_SMOOTHING = "smoothing";
+    static final String KEY_HYSTERESIS = "hysteresis";
+    static final String KEY_MIN_DWELL = "min_dwell";
+    static final String KEY_PRESPIN_HORIZON = "prespin_horizon";
+    static final String KEY_SENSOR_TIMEOUT = "sensor_timeout";
+    static final String KEY_FAN_MODE = "fan_mode";
+    static final String KEY_FAN_CURVE = "fan_curve";
+    static final String KEY_SPEED_CURVE = "speed_curve";
+    static final String KEY_POWER_CURVE = "power_curve";
+    static final String KEY_SERVO_DEADBAND = "servo_deadband";
+    static final String KEY_SERVO_MAX_RATE = "servo_max_rate";
+    static final String KEY_UI_UPDATE_RATE = "ui_update_rate";
+    static final String KEY_SERVO_TRANSPORT = "servo_transport";
+    static final String KEY_SERVO_HOST = "servo_host";
+    static final String KEY_SERVO_PORT = "servo_port";
+    static final String KEY_SERVO_PIN = "servo_pin";
+    static final String KEY_GYM_RIDERS = "gym_riders";
+    // not shown in the settings: the sensors paired last
+    private static final String KEY_SPEED_DEVICE = "speed_device";
+    private static final String KEY_POWER_DEVICE = "power_device";
+
+    private static final int DEFAULT_WHEEL_CIRCUMFERENCE_MM = 2095;
+    private static final String DEFAULT_SMOOTHING = "mean_3s";
+    private static final int DEFAULT_HYSTERESIS_PERCENT = 15;
+    private static final int DEFAULT_MIN_DWELL_S = 5;
+    private static final int DEFAULT_PRESPIN_HORIZON_S = 0;
+    private static final int DEFAULT_SENSOR_TIMEOUT_S = (int) (SensorWatchdog.DEFAULT_SILENCE_MS / 1000);
+    private static final String DEFAULT_FAN_MODE = "step";
+    private static final String DEFAULT_FAN_CURVE = "linear";
+    private static final int DEFAULT_SERVO_DEADBAND = 3;
+    private static final float DEFAULT_SERVO_MAX_RATE = 2.0f;
+    // proportional curve: this position at the low threshold, full speed at twice the high one
+    private static final int CURVE_MIN_POSITION = 30;
+    private static final float CURVE_FULL_RATIO = 2.0f;
+    private static final int DEFAULT_UI_UPDATE_RATE = 60;
+    private static final String DEFAULT_SERVO_TRANSPORT = "http";
+    private static final String DEFAULT_SERVO_HOST = "192.168.1.201";
+    private static final int DEFAULT_SERVO_PORT = 8080;
+    private static final int DEFAULT_SERVO_PIN = 11;
+
+    private final SharedPreferences prefs;
+
+    Settings(Context context) {
+        prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    SharedPreferences getPreferences() {
+        return prefs;
+    }
+
+    // compute speed from raw wheel revolutions instead of the plugin's BigDecimal speed
+    boolean useRawSpeed() {
+        return prefs.getBoolean(KEY_RAW_SPEED, true);
+    }
+
+    // keep the sensor of the inactive source connected, but not subscribed
+    boolean useWarmStandby() {
+        return prefs.getBoolean(KEY_WARM_STANDBY, false);
+    }
+
+    // ANT+ device number of the speed or power sensor paired last, 0 if none
+    int getPairedDevice(boolean power) {
+        return prefs.getInt(power ? KEY_POWER_DEVICE : KEY_SPEED_DEVICE, 0);
+    }
+
+    void setPairedDevice(boolean power, int deviceNumber) {
+        String key = power ? KEY_POWER_DEVICE : KEY_SPEED_DEVICE;
+        if (prefs.getInt(key, 0) != deviceNumber)
+            prefs.edit().putInt(key, deviceNumber).apply();
+    }
+
+    // wheel circumference in meter
+    float getWheelCircumference() {
+        int mm = getInt(KEY_WHEEL_CIRCUMFERENCE, DEFAULT_WHEEL_CIRCUMFERENCE_MM);
+        if (mm <= 0)
+            mm = DEFAULT_WHEEL_CIRCUMFERENCE_MM;
+        return mm / 1000.0f;
+    }
+
+    // smoothing applied to speed/power before the fan thresholds
+    SignalSmoother createSmoother() {
+        switch (prefs.getString(KEY_SMOOTHING, DEFAULT_SMOOTHING)) {
+            case "none":
+                return SignalSmoother.none();
+            case "mean_10s":
+                return new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 10000);
+            case "ewma":
+                return new SignalSmoother(SignalSmoother.Mode.EWMA, 3000);
+            default:
+                return new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000);
+        }
+    }
+
+    // fraction below a threshold the signal has to drop to leave a fan level
+    float getHysteresis() {
+        int percent = getInt(KEY_HYSTERESIS, DEFAULT_HYSTERESIS_PERCENT);
+        return Math.min(Math.max(percent, 0), 90) / 100.0f;
+    }
+
+    // minimum time to stay at a fan level in ms
+    long getMinDwell() {
+        return Math.max(getInt(KEY_MIN_DWELL, DEFAULT_MIN_DWELL_S), 0) * 1000L;
+    }
+
+    // how far ahead in ms the three-step mode starts the fan early, 0 for never
+    long getPreSpinHorizon() {
+        return Math.min(Math.max(getInt(KEY_PRESPIN_HORIZON, DEFAULT_PRESPIN_HORIZON_S), 0), 10) * 1000L;
+    }
+
+    // silence of a sensor before the fan steps down, ms; 0 = off
+    long getSensorTimeout() {
+        return Math.min(Math.max(getInt(KEY_SENSOR_TIMEOUT, DEFAULT_SENSOR_TIMEOUT_S), 0), 120) * 1000L;
+    }
+
+    static boolean isFanControlKey(String key) {
+        return KEY_SMOOTHING.equals(key) || KEY_HYSTERESIS.equals(key) || KEY_MIN_DWELL.equals(key)
+                || KEY_PRESPIN_HORIZON.equals(key)
+                || KEY_FAN_MODE.equals(key) || KEY_FAN_CURVE.equals(key)
+                || KEY_SPEED_CURVE.equals(key) || KEY_POWER_CURVE.equals(key)
+                || KEY_SERVO_DEADBAND.equals(key) || KEY_SERVO_MAX_RATE.equals(key);
+    }
+
+    // continuous fan curve instead of the three fan speeds
+    boolean useFanCurve() {
+        return "curve".equals(prefs.getString(KEY_FAN_MODE, DEFAULT_FAN_MODE));
+    }
+
+    /**
+     * Fan curve for speed or power, from the levels or the thresholds of that signal's policy.
+     * An invalid custom curve falls back to the linear preset.
+     */
+    FanCurve getFanCurve(boolean power, FanPolicy policy) {
+        String preset = prefs.getString(KEY_FAN_CURVE, DEFAULT_FAN_CURVE);
+        if ("three_step".equals(preset))
+            return policy.toCurve();
+        if ("custom".equals(preset)) {
+            String text = prefs.getString(power ? KEY_POWER_CURVE : KEY_SPEED_CURVE, "");
+            try {
+                return FanCurve.parse(text);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return FanCurve.linear(policy.getLow(), policy.getHigh() * CURVE_FULL_RATIO, CURVE_MIN_POSITION,
+                FanCurve.POSITION_FAN_2);
+    }
+
+    ServoRateLimiter createRateLimiter() {
+        int deadband = Math.max(getInt(KEY_SERVO_DEADBAND, DEFAULT_SERVO_DEADBAND), 0);
+        float rate = getFloat(KEY_SERVO_MAX_RATE, DEFAULT_SERVO_MAX_RATE);
+        if (!(rate > 0.0f))
+            rate = DEFAULT_SERVO_MAX_RATE;
+        return new ServoRateLimiter(deadband, rate);
+    }
+
+    // minimum time between two UI updates in ms
+    long getUiUpdateInterval() {
+        int rate = getInt(KEY_UI_UPDATE_RATE, DEFAULT_UI_UPDATE_RATE);
+        if (rate <= 0)
+            rate = DEFAULT_UI_UPDATE_RATE;
+        return 1000L / rate;
+    }
+
+    static boolean isServoKey(String key) {
+        return KEY_SERVO_TRANSPORT.equals(key) || KEY_SERVO_HOST.equals(key)
+                || KEY_SERVO_PORT.equals(key) || KEY_SERVO_PIN.equals(key);
+    }
+
+    // transport to the servo on the Pi, failing fast while it is down
+    FanActuator createActuator() {
+        String host = prefs.getString(KEY_SERVO_HOST, DEFAULT_SERVO_HOST).trim();
+        int port = getInt(KEY_SERVO_PORT, DEFAULT_SERVO_PORT);
+        int pin = getInt(KEY_SERVO_PIN, DEFAULT_SERVO_PIN);
+        FanActuator actuator;
+        if ("udp".equals(prefs.getString(KEY_SERVO_TRANSPORT, DEFAULT_SERVO_TRANSPORT)))
+            actuator = new UdpServoActuator(host, port, pin);
+        else
+            actuator = new ServoHttpClient(host, port, pin);
+        return new GuardedActuator(actuator, new CircuitBreaker());
+    }
+
+    /**
+     * Riders of gym mode, see FanChannel.Config.parseList(). Empty if none or invalid.
+     */
+    List<FanChannel.Config> getGymRiders() {
+        try {
+            return FanChannel.Config.parseList(prefs.getString(KEY_GYM_RIDERS, ""));
+        } catch (IllegalArgumentException ignored) {
+            return Collections.emptyList();
+        }
+    }
+
+    // EditTextPreference stores strings
+    private int getInt(String key, int defValue) {
+        try {
+            return Integer.parseInt(prefs.getString(key, String.valueOf(defValue)).trim());
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    private float getFloat(String key, float defValue) {
+        try {
+            return Float.parseFloat(prefs.getString(key, String.valueOf(defValue)).trim());
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+}
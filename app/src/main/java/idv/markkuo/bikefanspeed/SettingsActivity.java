@@ -0,0 +1,56 @@
+package idv.markkuo.bikefanspeed;
+
+import android.os.Bundle;
+import android.text.InputType;
+import android.widget.EditText;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.EditTextPreference;
+import androidx.preference.PreferenceFragmentCompat;
+
+public class SettingsActivity extends AppCompatActivity {
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        getSupportFragmentManager()
+                .beginTransaction()
+                .replace(android.R.id.content, new SettingsFragment())
+                .commit();
+    }
+
+    public static class SettingsFragment extends PreferenceFragmentCompat {
+        @Override
+        public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+            setPreferencesFromResource(R.xml.preferences, rootKey);
+            setNumeric(Settings.KEY_WHEEL_CIRCUMFERENCE);
+            setNumeric(Settings.KEY_HYSTERESIS);
+            setNumeric(Settings.KEY_MIN_DWELL);
+            setNumeric(Settings.KEY_SERVO_DEADBAND);
+            setDecimal(Settings.KEY_SERVO_MAX_RATE);
+            setNumeric(Settings.KEY_UI_UPDATE_RATE);
+            setNumeric(Settings.KEY_SERVO_PORT);
+            setNumeric(Settings.KEY_SERVO_PIN);
+        }
+
+        private void setNumeric(String key) {
+            setInputType(key, InputType.TYPE_CLASS_NUMBER);
+        }
+
+        private void setDecimal(String key) {
+            setInputType(key, InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+        }
+
+        private void setInputType(String key, final int inputType) {
+            EditTextPreference preference = findPreference(key);
+            if (preference == null)
+                return;
+            preference.setOnBindEditTextListener(new EditTextPreference.OnBindEditTextListener() {
+                @Override
+                public void onBindEditText(EditText editText) {
+                    editText.setInputType(inputType);
+                }
+            });
+        }
+    }
+}
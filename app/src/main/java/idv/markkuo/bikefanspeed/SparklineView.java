@@ -0,0 +1,168 @@
+package idv.markkuo.bikefanspeed;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Live chart of the last few minutes of speed or power from a SampleHistory, over bands showing
+ * the fan speed at the time.
+ *
+ * Paints, the path and the arrays the samples are copied into are all made once, so a frame
+ * allocates nothing. The view only redraws when onNewData() finds samples it has not drawn and
+ * it is shown.
+ */
+public class SparklineView extends View {
+    // default width of the chart
+    public static final long DEFAULT_WINDOW_MS = 5 * 60 * 1000;
+    // samples further apart than this are not joined
+    private static final long GAP_MS = 5000;
+    // the y axis goes up in steps of this
+    private static final float SCALE_STEP = 10.0f;
+
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    // by FanSpeed ordinal, null for no band
+    private final Paint[] bandPaints = new Paint[FanSpeed.values().length];
+    private final Path line = new Path();
+    private final char[] label = new char[16];
+
+    @Nullable
+    private SampleHistory history = null;
+    private long windowMs = DEFAULT_WINDOW_MS;
+    // write count of the history when last drawn
+    private long drawnCount = -1;
+    private long[] times = new long[0];
+    private float[] values = new float[0];
+    private byte[] fans = new byte[0];
+
+    public SparklineView(Context context) {
+        this(context, null);
+    }
+
+    public SparklineView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(2 * density);
+        linePaint.setStrokeJoin(Paint.Join.ROUND);
+        linePaint.setColor(getResources().getColor(R.color.colorPrimary, null));
+        labelPaint.setTextSize(12 * density);
+        labelPaint.setColor(Color.GRAY);
+        bandPaints[FanSpeed.FAN_1.ordinal()] = band(getResources().getColor(R.color.fanLowBand, null));
+        bandPaints[FanSpeed.FAN_2.ordinal()] = band(getResources().getColor(R.color.fanHighBand, null));
+    }
+
+    private static Paint band(int color) {
+        Paint paint = new Paint();
+        paint.setStyle(Paint.Style.FILL);
+        paint.setColor(color);
+        return paint;
+    }
+
+    /**
+     * Charts history, null for nothing. Main thread.
+     */
+    public void setHistory(@Nullable SampleHistory history) {
+        if (history == this.history)
+            return;
+        this.history = history;
+        int capacity = history != null ? history.getCapacity() : 0;
+        if (times.length < capacity) {
+            times = new long[capacity];
+            values = new float[capacity];
+            fans = new byte[capacity];
+        }
+        drawnCount = -1;
+        invalidate();
+    }
+
+    public void setWindow(long windowMs) {
+        this.windowMs = windowMs;
+        drawnCount = -1;
+        invalidate();
+    }
+
+    /**
+     * Redraws if the history has samples not drawn yet and the view is shown. Main thread.
+     */
+    public void onNewData() {
+        SampleHistory h = history;
+        if (h != null && h.getWriteCount() != drawnCount && isShown())
+            invalidate();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        // samples may have come in while hidden
+        if (visibility == VISIBLE)
+            onNewData();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        SampleHistory h = history;
+        if (h == null)
+            return;
+        drawnCount = h.getWriteCount();
+        // the newest sample is the right edge
+        long start = h.getLastTime() - windowMs;
+        int n = h.copy(start, times, values, fans);
+        if (n == 0)
+            return;
+        long end = times[n - 1];
+
+        float max = 0.0f;
+        for (int i = 0; i < n; i++)
+            max = Math.max(max, values[i]);
+        float scale = (float) Math.ceil(Math.max(max, 1.0f) / SCALE_STEP) * SCALE_STEP;
+
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float width = getWidth() - left - getPaddingRight();
+        float height = getHeight() - top - getPaddingBottom();
+        float xPerMs = width / windowMs;
+        float yPerUnit = height / scale;
+
+        // fan speed bands, one rectangle per run at the same speed
+        int run = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i < n && fans[i] == fans[run])
+                continue;
+            Paint paint = bandPaints[fans[run]];
+            if (paint != null) {
+                float to = i < n ? times[i] : end;
+                canvas.drawRect(left + (times[run] - start) * xPerMs, top,
+                        left + (to - start) * xPerMs, top + height, paint);
+            }
+            run = i;
+        }
+
+        line.rewind();
+        boolean joined = false;
+        for (int i = 0; i < n; i++) {
+            if (values[i] < 0.0f) {
+                joined = false;
+                continue;
+            }
+            float x = left + (times[i] - start) * xPerMs;
+            float y = top + height - values[i] * yPerUnit;
+            if (joined && times[i] - times[i - 1] <= GAP_MS)
+                line.lineTo(x, y);
+            else
+                line.moveTo(x, y);
+            joined = true;
+        }
+        canvas.drawPath(line, linePaint);
+
+        int length = CharFormat.formatFixed(scale, 0, label);
+        canvas.drawText(label, 0, length, left, top - labelPaint.ascent(), labelPaint);
+    }
+}
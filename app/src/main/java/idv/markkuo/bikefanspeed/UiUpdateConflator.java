@@ -0,0 +1,158 @@
+package idv.markkuo.bikefanspeed;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Conflates UI updates from the service.
+ *
+ * Sensor callbacks only store the latest values and mark them dirty. A flush on the main thread
+ * hands a snapshot to the sink at most once per interval (one display frame by default), and
+ * nothing is delivered while the UI is not visible; the latest values are delivered as soon as it
+ * becomes visible again.
+ *
+ * Snapshots are only built when asked for, so a burst of samples between two frames costs one
+ * FanState and not one per sample.
+ */
+final class UiUpdateConflator {
+    static final int DIRTY_VALUE = 1;
+    static final int DIRTY_STATUS = 1 << 1;
+    static final int DIRTY_FAN = 1 << 2;
+    static final int DIRTY_CONTROL = 1 << 3;
+    static final int DIRTY_STATS = 1 << 4;
+    static final int DIRTY_ALL = DIRTY_VALUE | DIRTY_STATUS | DIRTY_FAN | DIRTY_CONTROL | DIRTY_STATS;
+
+    // one frame at 60Hz
+    static final long DEFAULT_INTERVAL_MS = 16;
+
+    interface Sink {
+        // called on the main thread with the DIRTY_* flags of what changed since the last call
+        void deliver(int dirty, FanState state);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Sink sink;
+    private volatile long interval = DEFAULT_INTERVAL_MS;
+
+    private final AtomicInteger dirty = new AtomicInteger();
+    private volatile float value = -1.0f;
+    private volatile long timestamp = -1;
+    private volatile String status = null;
+    private volatile FanSpeed fanSpeed = FanSpeed.FAN_STOP;
+    private volatile boolean manualFanControl = false;
+    private volatile boolean usePower = false;
+    private volatile String stats = null;
+
+    // bumped after every change, a snapshot older than this is rebuilt
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<FanState> state = new AtomicReference<>(FanState.INITIAL);
+
+    // written on the main thread only
+    private volatile boolean visible = false;
+    private volatile long lastFlush = 0;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            if (!visible)
+                return;
+            int d = dirty.getAndSet(0);
+            if (d == 0)
+                return;
+            lastFlush = SystemClock.uptimeMillis();
+            sink.deliver(d, getState());
+        }
+    };
+
+    UiUpdateConflator(Sink sink) {
+        this.sink = sink;
+    }
+
+    void setInterval(long intervalMs) {
+        interval = Math.max(intervalMs, 0);
+    }
+
+    // latest speed or power sample
+    void setValue(float value, long timestamp) {
+        this.value = value;
+        this.timestamp = timestamp;
+        markDirty(DIRTY_VALUE);
+    }
+
+    void setStatus(String status) {
+        this.status = status;
+        markDirty(DIRTY_STATUS);
+    }
+
+    void setFanSpeed(FanSpeed fanSpeed) {
+        this.fanSpeed = fanSpeed;
+        markDirty(DIRTY_FAN);
+    }
+
+    void setControl(boolean manualFanControl, boolean usePower) {
+        this.manualFanControl = manualFanControl;
+        this.usePower = usePower;
+        markDirty(DIRTY_CONTROL);
+    }
+
+    // session statistics text, set by the service at its own slower rate
+    void setStats(String stats) {
+        this.stats = stats;
+        markDirty(DIRTY_STATS);
+    }
+
+    /**
+     * Returns a snapshot including every change made so far. Safe to call from any thread.
+     */
+    FanState getState() {
+        long v = version.get();
+        FanState current = state.get();
+        if (current.version >= v)
+            return current;
+        // read after the version, so it holds at least every change up to v
+        FanState next = new FanState(v, status, value, timestamp, fanSpeed, manualFanControl, usePower, stats);
+        while (true) {
+            current = state.get();
+            if (current.version >= v)
+                return current;
+            if (state.compareAndSet(current, next))
+                return next;
+        }
+    }
+
+    /**
+     * Called on the main thread when the UI starts or stops being visible.
+     */
+    void setVisible(boolean visible) {
+        this.visible = visible;
+        handler.removeCallbacks(flush);
+        if (visible) {
+            // bring the UI up to date right away
+            markDirty(DIRTY_ALL);
+            handler.post(flush);
+        }
+    }
+
+    void stop() {
+        visible = false;
+        handler.removeCallbacks(flush);
+    }
+
+    private void markDirty(int flags) {
+        version.incrementAndGet();
+        int prev;
+        do {
+            prev = dirty.get();
+        } while (!dirty.compareAndSet(prev, prev | flags));
+        // the first change since the last flush schedules the next one
+        if (prev == 0) {
+            long delay = lastFlush + interval - SystemClock.uptimeMillis();
+            handler.postDelayed(flush, Math.max(delay, 0));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package idv.markkuo.bikefanspeed;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one sensor sample from the raw ANT+ data to the fan decision, as done on the sensor
+ * thread by BikeSpeedService. Run with the gc profiler to see the allocation rate, which should
+ * be zero for every benchmark here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SamplePipelineBenchmark {
+    // replayed in a loop: a ride speeding up and slowing down around the thresholds, at 4 Hz
+    private static final int SAMPLES = 4096;
+
+    @Param({"NONE", "ROLLING_MEAN", "EWMA"})
+    public SignalSmoother.Mode smoothing;
+
+    private final long[] eventTimes = new long[SAMPLES];
+    private final long[] revolutions = new long[SAMPLES];
+    private final float[] powers = new float[SAMPLES];
+    private int index;
+    private long now;
+
+    private WheelSpeedCalculator wheelSpeed;
+    private FanLevelSelector selector;
+    private ProportionalFanController curve;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long eventTime = 0, revs = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            // 0 to 20 km/h and back
+            double kmh = 10.0 - 10.0 * Math.cos(2 * Math.PI * i / SAMPLES);
+            double revsPerSample = kmh / 3.6 / WheelSpeedCalculator.DEFAULT_CIRCUMFERENCE / 4;
+            revs += Math.max(1, Math.round(revsPerSample));
+            eventTime += WheelSpeedCalculator.TICKS_PER_SECOND / 4;
+            eventTimes[i] = eventTime % 65536;
+            revolutions[i] = revs % 65536;
+            powers[i] = (float) (kmh * 12.0);
+        }
+        SignalSmoother.Mode mode = smoothing;
+        wheelSpeed = new WheelSpeedCalculator();
+        selector = new FanLevelSelector(FanThresholds.SPEED_LOW, FanThresholds.SPEED_HIGH,
+                0.15f, 5000, smoother(mode));
+        curve = new ProportionalFanController(
+                FanCurve.linear(FanThresholds.POWER_LOW, FanThresholds.POWER_HIGH, 30, 85),
+                smoother(mode), new ServoRateLimiter(3, 2.0));
+    }
+
+    private static SignalSmoother smoother(SignalSmoother.Mode mode) {
+        return mode == SignalSmoother.Mode.NONE ? SignalSmoother.none() : new SignalSmoother(mode, 3000);
+    }
+
+    private int next() {
+        now += 250;
+        index = (index + 1) & (SAMPLES - 1);
+        return index;
+    }
+
+    @Benchmark
+    public float wheelSpeed() {
+        int i = next();
+        return wheelSpeed.update(now, eventTimes[i], revolutions[i]);
+    }
+
+    // raw wheel data to a three-step fan speed
+    @Benchmark
+    public FanSpeed speedToFanLevel() {
+        int i = next();
+        return selector.update(now, wheelSpeed.update(now, eventTimes[i], revolutions[i]));
+    }
+
+    // power to a servo position on the fan curve
+    @Benchmark
+    public int powerToFanCurve() {
+        int i = next();
+        return curve.update(now, powers[i]);
+    }
+
+    @Benchmark
+    public float msToKmh() {
+        return WheelSpeedCalculator.msToKmh(powers[next()]);
+    }
+}
@@ -0,0 +1,37 @@
+package idv.markkuo.bikefanspeed;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of planning the servo moves of a fan speed change, over every from/to pair.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TransitionPlannerBenchmark {
+    private static final FanSpeed[] SPEEDS = FanSpeed.values();
+
+    private final int[] positions = new int[2 * FanTransitionPlanner.MAX_STEP_MOVES];
+    private final int[] delays = new int[2 * FanTransitionPlanner.MAX_STEP_MOVES];
+    private int pair;
+
+    @Benchmark
+    public int planTransition() {
+        pair = (pair + 1) % (SPEEDS.length * SPEEDS.length);
+        return FanTransitionPlanner.plan(SPEEDS[pair / SPEEDS.length], SPEEDS[pair % SPEEDS.length],
+                positions, delays);
+    }
+
+    @Benchmark
+    public FanSpeed positionToLevel() {
+        pair = (pair + 7) % 101;
+        return FanTransitionPlanner.levelFor(pair);
+    }
+}
@@ -0,0 +1,65 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Allocation free number formatting into a reusable char buffer, to be shown with
+ * TextView.setText(char[], int, int) instead of building a String per update.
+ */
+public final class CharFormat {
+    private static final long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+    private CharFormat() {
+    }
+
+    /**
+     * Writes value with the given number of decimals (like "%.2f") at the start of out,
+     * returns the number of chars written.
+     */
+    public static int formatFixed(float value, int decimals, char[] out) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            out[0] = '-';
+            return 1;
+        }
+        int n = 0;
+        if (value < 0.0f) {
+            out[n++] = '-';
+            value = -value;
+        }
+        long scaled = Math.round((double) value * POW10[decimals]);
+        n = writeDigits(scaled / POW10[decimals], out, n);
+        if (decimals > 0) {
+            out[n++] = '.';
+            long fraction = scaled % POW10[decimals];
+            for (int i = decimals - 1; i >= 0; i--) {
+                out[n + i] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            n += decimals;
+        }
+        return n;
+    }
+
+    // writes a decimal long at the start of out, returns the number of chars written
+    public static int formatLong(long value, char[] out) {
+        int n = 0;
+        if (value < 0) {
+            out[n++] = '-';
+            value = -value;
+        }
+        return writeDigits(value, out, n);
+    }
+
+    private static int writeDigits(long value, char[] out, int start) {
+        int n = start;
+        do {
+            out[n++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // digits were written backwards
+        for (int i = start, j = n - 1; i < j; i++, j--) {
+            char t = out[i];
+            out[i] = out[j];
+            out[j] = t;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,127 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.IOException;
+
+/**
+ * Stops sending to a servo endpoint which keeps failing, so commands fail at once instead of each
+ * waiting for a connect or read timeout. Shared by every fan using the endpoint.
+ *
+ * After threshold failures in a row the breaker opens and rejects everything for openMs. Then a
+ * single command is let through (half open): if it works the breaker closes, if not it opens
+ * again for twice as long, up to MAX_OPEN_MS.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_MS = 2000;
+    public static final long MAX_OPEN_MS = 30000;
+
+    /**
+     * Thrown instead of sending while the breaker is open.
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private final int threshold;
+    private final long initialOpenMs;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openMs;
+    private long openUntil;
+    // a half open trial is in flight
+    private boolean trial = false;
+
+    private long openCount = 0;
+    private long rejectedCount = 0;
+
+    public CircuitBreaker() {
+        this(DEFAULT_THRESHOLD, DEFAULT_OPEN_MS);
+    }
+
+    public CircuitBreaker(int threshold, long openMs) {
+        if (threshold <= 0 || openMs <= 0)
+            throw new IllegalArgumentException("Invalid circuit breaker parameters");
+        this.threshold = threshold;
+        this.initialOpenMs = openMs;
+        this.openMs = openMs;
+    }
+
+    /**
+     * True if a command may be sent at time now (ms). A true while open starts the half open trial,
+     * which has to be followed by onSuccess() or onFailure().
+     */
+    public synchronized boolean allow(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= openUntil) {
+                    state = State.HALF_OPEN;
+                    trial = true;
+                    return true;
+                }
+                break;
+            default:
+                if (!trial) {
+                    trial = true;
+                    return true;
+                }
+                break;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        openMs = initialOpenMs;
+        trial = false;
+    }
+
+    public synchronized void onFailure(long now) {
+        if (state == State.HALF_OPEN) {
+            openMs = Math.min(openMs * 2, MAX_OPEN_MS);
+            open(now);
+        } else if (++failures >= threshold && state == State.CLOSED) {
+            open(now);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    // number of times the breaker opened
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    // commands rejected while open
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + ", opened:" + openCount + ", rejected:" + rejectedCount;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + openMs;
+        trial = false;
+        openCount++;
+    }
+}
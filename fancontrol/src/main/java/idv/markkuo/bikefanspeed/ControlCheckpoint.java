@@ -0,0 +1,129 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The control state worth keeping across a restart of the service: where the servo was left,
+ * the modes, and the last samples. Encoded in 30 bytes with a CRC, so a torn or stale
+ * file is noticed instead of restored.
+ *
+ * The modes only matter after the OS killed the service; a clean stop leaves clean set and the
+ * next start begins as usual, apart from the servo position which is true either way.
+ */
+public class ControlCheckpoint {
+    private static final int MAGIC = 0x42464350; // "BFCP"
+    private static final int VERSION = 1;
+    // magic (4), version (1), time (8), flags (1), position (4), speed (4), power (4), CRC (4): 30 bytes
+    static final int SIZE = 4 + 1 + 8 + 1 + 4 + 4 + 4 + 4;
+
+    private static final int FLAG_MANUAL = 1;
+    private static final int FLAG_USE_POWER = 1 << 1;
+    private static final int FLAG_POSITION_KNOWN = 1 << 2;
+    private static final int FLAG_CLEAN = 1 << 3;
+
+    // wall clock time of the checkpoint, ms
+    public final long time;
+    public final boolean manualFanControl;
+    public final boolean usePower;
+    // last servo position acknowledged, -1 if none
+    public final int position;
+    // false if the last servo command failed
+    public final boolean positionKnown;
+    // last samples, -1 if none
+    public final float lastSpeed;
+    public final float lastPower;
+    // written by a clean stop rather than while running
+    public final boolean clean;
+
+    public ControlCheckpoint(long time, boolean manualFanControl, boolean usePower, int position,
+                             boolean positionKnown, float lastSpeed, float lastPower, boolean clean) {
+        this.time = time;
+        this.manualFanControl = manualFanControl;
+        this.usePower = usePower;
+        this.position = position;
+        this.positionKnown = positionKnown;
+        this.lastSpeed = lastSpeed;
+        this.lastPower = lastPower;
+        this.clean = clean;
+    }
+
+    /**
+     * Of a running dispatcher, at time (ms).
+     */
+    public static ControlCheckpoint of(FanCommandDispatcher dispatcher, float lastSpeed, float lastPower,
+                                       long time, boolean clean) {
+        return new ControlCheckpoint(time, dispatcher.isManualFanControl(), dispatcher.isUsePower(),
+                dispatcher.getPosition(), dispatcher.isPositionKnown(), lastSpeed, lastPower, clean);
+    }
+
+    /**
+     * True if other has the same control state; the time and the samples do not count, so
+     * samples alone never cause a write.
+     */
+    public boolean sameState(ControlCheckpoint other) {
+        return other != null && manualFanControl == other.manualFanControl && usePower == other.usePower
+                && position == other.position && positionKnown == other.positionKnown && clean == other.clean;
+    }
+
+    // fan speed the servo was left at
+    public FanSpeed getFanSpeed() {
+        return position < 0 ? FanSpeed.FAN_STOP : FanTransitionPlanner.levelFor(position);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(time);
+            out.writeByte((manualFanControl ? FLAG_MANUAL : 0) | (usePower ? FLAG_USE_POWER : 0)
+                    | (positionKnown ? FLAG_POSITION_KNOWN : 0) | (clean ? FLAG_CLEAN : 0));
+            out.writeInt(position);
+            out.writeFloat(lastSpeed);
+            out.writeFloat(lastPower);
+            out.writeInt(crc(bytes.toByteArray(), SIZE - 4));
+        } catch (IOException e) {
+            // not from a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ControlCheckpoint decode(byte[] data) throws IOException {
+        if (data.length != SIZE)
+            throw new IOException("Checkpoint of " + data.length + " bytes");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION)
+            throw new IOException("Not a checkpoint");
+        long time = in.readLong();
+        int flags = in.readByte();
+        int position = in.readInt();
+        float lastSpeed = in.readFloat();
+        float lastPower = in.readFloat();
+        if (in.readInt() != crc(data, SIZE - 4))
+            throw new IOException("Checkpoint CRC mismatch");
+        if (position < -1 || position > 100)
+            throw new IOException("Checkpoint position " + position);
+        return new ControlCheckpoint(time, (flags & FLAG_MANUAL) != 0, (flags & FLAG_USE_POWER) != 0, position,
+                (flags & FLAG_POSITION_KNOWN) != 0, lastSpeed, lastPower, (flags & FLAG_CLEAN) != 0);
+    }
+
+    @Override
+    public String toString() {
+        return "manual:" + manualFanControl + ", source:" + (usePower ? "power" : "speed") + ", position:"
+                + position + (positionKnown ? "" : " (unsure)") + ", last " + lastSpeed + "km/h " + lastPower + "W"
+                + (clean ? ", clean stop" : "");
+    }
+
+    private static int crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+}
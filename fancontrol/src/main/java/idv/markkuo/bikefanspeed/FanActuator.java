@@ -0,0 +1,20 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Transport which moves the servo turning the fan knob.
+ *
+ * Implementations are used from the fan dispatcher thread only and need not be thread safe.
+ */
+public interface FanActuator extends Closeable {
+    /**
+     * Moves the servo through count positions (in percent), in order.
+     * Throws if the commands could not be delivered.
+     */
+    void setPositions(int[] positions, int count) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,144 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One rider of gym mode: the sensors paired by device number, and the fan they drive with its
+ * own dispatcher and fan control.
+ */
+public class FanChannel {
+    /**
+     * Which sensors drive which fan. Device number 0 means no such sensor.
+     */
+    public static class Config {
+        public final String name;
+        public final int speedDevice;
+        public final int powerDevice;
+        public final String transport;
+        public final String host;
+        public final int port;
+        public final int pin;
+
+        public Config(String name, int speedDevice, int powerDevice, String transport, String host, int port, int pin) {
+            if (speedDevice < 0 || powerDevice < 0 || (speedDevice == 0 && powerDevice == 0))
+                throw new IllegalArgumentException("Rider " + name + " needs a speed or power sensor");
+            if (!ServoConnectionPool.HTTP.equals(transport) && !ServoConnectionPool.UDP.equals(transport))
+                throw new IllegalArgumentException("Unknown servo transport:" + transport);
+            if (port <= 0 || port > 65535)
+                throw new IllegalArgumentException("Invalid servo port:" + port);
+            if (pin < 0 || pin > 255)
+                throw new IllegalArgumentException("Invalid servo pin:" + pin);
+            this.name = name;
+            this.speedDevice = speedDevice;
+            this.powerDevice = powerDevice;
+            this.transport = transport;
+            this.host = host;
+            this.port = port;
+            this.pin = pin;
+        }
+
+        /**
+         * Parses riders separated by ';', each as "name,speed device,power device,transport://host:port,pin",
+         * e.g. "Alice,12345,0,udp://192.168.1.201:9000,11; Bob,0,4567,http://192.168.1.202:8080,11".
+         * An empty text is no rider.
+         */
+        public static List<Config> parseList(String text) {
+            List<Config> configs = new ArrayList<>();
+            for (String rider : text.split(";")) {
+                rider = rider.trim();
+                if (rider.isEmpty())
+                    continue;
+                String[] fields = rider.split(",");
+                if (fields.length != 5)
+                    throw new IllegalArgumentException("Invalid rider:" + rider);
+                String endpoint = fields[3].trim();
+                int scheme = endpoint.indexOf("://");
+                int colon = endpoint.lastIndexOf(':');
+                if (scheme <= 0 || colon <= scheme + 3)
+                    throw new IllegalArgumentException("Invalid servo endpoint:" + endpoint);
+                try {
+                    configs.add(new Config(fields[0].trim(),
+                            Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim()),
+                            endpoint.substring(0, scheme), endpoint.substring(scheme + 3, colon),
+                            Integer.parseInt(endpoint.substring(colon + 1)), Integer.parseInt(fields[4].trim())));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid rider:" + rider);
+                }
+            }
+            return configs;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (speed:" + speedDevice + ", power:" + powerDevice + ") -> "
+                    + transport + "://" + host + ":" + port + " pin " + pin;
+        }
+    }
+
+    private final Config config;
+    private final FanCommandDispatcher dispatcher;
+    private final WheelSpeedCalculator wheelSpeed = new WheelSpeedCalculator();
+    private volatile FanControl control;
+    // last samples, negative if none yet
+    private volatile float lastSpeed = -1.0f;
+    private volatile float lastPower = -1.0f;
+
+    FanChannel(Config config, FanCommandDispatcher dispatcher) {
+        this.config = config;
+        this.dispatcher = dispatcher;
+        // follow power if that is the only sensor
+        dispatcher.setUsePower(config.speedDevice == 0);
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public FanCommandDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public WheelSpeedCalculator getWheelSpeed() {
+        return wheelSpeed;
+    }
+
+    public FanControl getControl() {
+        return control;
+    }
+
+    // e.g. after the settings changed, samples go to the new one from now on
+    public void setControl(FanControl control) {
+        this.control = control;
+    }
+
+    // speed sample in km/h, at time (ms)
+    public void onSpeed(long time, float speed) {
+        lastSpeed = speed;
+        FanControl c = control;
+        if (c != null)
+            c.onSpeed(time, speed);
+    }
+
+    // power sample in W, at time (ms)
+    public void onPower(long time, float power) {
+        lastPower = power;
+        FanControl c = control;
+        if (c != null)
+            c.onPower(time, power);
+    }
+
+    public float getLastSpeed() {
+        return lastSpeed;
+    }
+
+    public float getLastPower() {
+        return lastPower;
+    }
+
+    @Override
+    public String toString() {
+        return config.name + ": " + dispatcher.getFanSpeed() + ", speed:" + lastSpeed + ", power:" + lastPower
+                + ", " + dispatcher;
+    }
+}
@@ -0,0 +1,99 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The fans of gym mode. Every fan has its own dispatcher and fan control, but they all run on
+ * a fixed number of worker threads and send through one ServoConnectionPool, so adding a rider
+ * adds neither a thread nor a socket. The threads only block on servo I/O, the waits of fan
+ * speed changes are timers.
+ */
+public class FanChannelGroup {
+    public static final int DEFAULT_THREADS = 2;
+
+    private final ScheduledExecutorService executor;
+    private final ServoConnectionPool pool = new ServoConnectionPool();
+    private final List<FanChannel> channels = new CopyOnWriteArrayList<>();
+    private final PipelineStats stats;
+
+    /**
+     * @param stats shared by the dispatchers of all fans
+     */
+    public FanChannelGroup(int threads, PipelineStats stats) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Invalid thread count:" + threads);
+        this.stats = stats;
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FanWorker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds and starts the fan of a rider. The listener is called on a worker thread.
+     */
+    public FanChannel add(FanChannel.Config config, FanCommandDispatcher.Listener listener) {
+        FanActuator actuator = pool.acquire(config.transport, config.host, config.port, config.pin);
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(actuator, listener, stats, executor);
+        FanChannel channel = new FanChannel(config, dispatcher);
+        dispatcher.start();
+        channels.add(channel);
+        return channel;
+    }
+
+    public List<FanChannel> getChannels() {
+        return channels;
+    }
+
+    public ServoConnectionPool getPool() {
+        return pool;
+    }
+
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Waits until every fan has sent its requests so far. Returns false on timeout.
+     */
+    public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (FanChannel channel : channels) {
+            if (!channel.getDispatcher().awaitIdle(Math.max(deadline - System.currentTimeMillis(), 1)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops every fan, waits for their last moves and closes the servo links.
+     */
+    public void stop() throws InterruptedException {
+        for (FanChannel channel : channels)
+            channel.getDispatcher().stop();
+        executor.shutdown();
+        executor.awaitTermination(2, TimeUnit.SECONDS);
+        pool.close();
+        channels.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(channels.size()).append(" fans, ").append(pool.getLinkCount()).append(" servo links");
+        for (FanChannel channel : channels)
+            sb.append("\n  ").append(channel);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,607 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single writer for the fan. It owns the last fan speed, the manual/power flags and all servo
+ * I/O, and runs every servo move on its own thread, or on a worker shared with other fans.
+ *
+ * Requests go through a latest-value-wins mailbox: a target which is replaced before the worker
+ * picks it up is dropped (coalesced) instead of being queued behind a slow servo move. The
+ * worker only runs while there is something to do; at most one task per dispatcher is queued or
+ * running at a time, so the moves of one fan never overlap.
+ *
+ * A fan speed change follows the timed plan of FanTransitionPlanner. Its waits are timers on the
+ * scheduler, no thread sleeps through them, and a newer target arriving meanwhile replaces the
+ * rest of the plan right away, starting from the fan speed reached so far.
+ *
+ * The fan speed and position are only taken as reached once the servo transport acknowledged
+ * them. When a command fails, the target is sent again after a backoff growing from
+ * RETRY_BASE_MS to RETRY_MAX_MS, a timer like the waits of a plan; newer requests meanwhile
+ * replace the target but do not cut the backoff short. Until a command works again the servo
+ * position is unknown, so the next target is planned from the fan speed farthest from it.
+ */
+public class FanCommandDispatcher {
+    private static final int NO_POSITION = -1;
+    // results of take()
+    private static final int IDLE = 0;
+    private static final int TAKEN = 1;
+    private static final int STOPPED = 2;
+    // the drain task waits for the next move of a plan, or to retry after a failure
+    private static final int WAITING = 3;
+    public static final int RETRY_BASE_MS = 250;
+    public static final int RETRY_MAX_MS = 8000;
+
+    public interface Listener {
+        // called on the dispatcher thread once the servo acknowledged a move to a new fan speed
+        void onFanSpeedChanged(FanSpeed speed);
+
+        // called on the dispatcher thread when a servo command failed
+        void onServoError(int position, String error);
+    }
+
+    private final Listener listener;
+    // servo transport, only used by the worker thread
+    private FanActuator servo;
+    // replacement transport handed over to the worker thread
+    private final AtomicReference<FanActuator> nextServo = new AtomicReference<>();
+
+    // servo positions of the current move, sent as one pipelined batch
+    private final int[] batch = new int[8];
+    private int batchSize = 0;
+    // timed moves of the current fan speed change, only used by the worker
+    private final int[] planPositions = new int[2 * FanTransitionPlanner.MAX_STEP_MOVES];
+    private final int[] planDelays = new int[2 * FanTransitionPlanner.MAX_STEP_MOVES];
+    private int planSize = 0;
+    private int planNext = 0;
+    // the wait before move planNext is over
+    private boolean waited = false;
+    private long waitStart;
+
+    // mailbox, guarded by lock
+    private final Object lock = new Object();
+    private FanSpeed pending = null;
+    private int pendingPosition = NO_POSITION;
+    // System.nanoTime() of the pending request
+    private long pendingSince;
+    private boolean running = false;
+    // a drain task is queued, running or waiting for the next move of a plan
+    private boolean scheduled = false;
+    // the drain task waiting for the next move, cancelled by a request for another target
+    private ScheduledFuture<?> waiting = null;
+    private FanSpeed waitingFor = null;
+    // the wait is the backoff after a failure, which requests do not cut short
+    private boolean backingOff = false;
+    // worker shared with other dispatchers, or null for an own thread
+    private final ScheduledExecutorService sharedExecutor;
+    private ScheduledExecutorService ownExecutor = null;
+    private ScheduledExecutorService executor = null;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile boolean manualFanControl = false;
+    private volatile boolean usePower = false;
+
+    // last acknowledged by the servo, only written by the worker thread
+    private volatile FanSpeed lastSpeed = FanSpeed.FAN_STOP;
+    private volatile int lastPosition = NO_POSITION;
+    // false after a failure until a command works again
+    private volatile boolean positionKnown = true;
+    // failures in a row, and the fan speed of the last queued move; worker only
+    private int failures = 0;
+    private FanSpeed queuedSpeed = FanSpeed.FAN_STOP;
+    private FanSpeed targetSpeed;
+    private int targetPosition;
+    private long targetSince;
+    // something was sent to the servo for the current target
+    private boolean targetSent;
+
+    // statistics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final PipelineStats stats;
+
+    public FanCommandDispatcher(FanActuator servo, Listener listener) {
+        this(servo, listener, new PipelineStats());
+    }
+
+    public FanCommandDispatcher(FanActuator servo, Listener listener, PipelineStats stats) {
+        this(servo, listener, stats, null);
+    }
+
+    /**
+     * Runs the servo moves on executor, shared with other fans, instead of an own thread.
+     * Listener callbacks then come from the executor's threads.
+     */
+    public FanCommandDispatcher(FanActuator servo, Listener listener, PipelineStats stats, ScheduledExecutorService executor) {
+        this.servo = servo;
+        this.listener = listener;
+        this.stats = stats;
+        this.sharedExecutor = executor;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running)
+                return;
+            running = true;
+            if (sharedExecutor != null) {
+                executor = sharedExecutor;
+            } else {
+                ownExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FanCommandDispatcher");
+                    }
+                });
+                executor = ownExecutor;
+            }
+            if (pending != null || pendingPosition != NO_POSITION)
+                schedule();
+        }
+    }
+
+    /**
+     * Drops the pending request and closes the servo transport once the current move is done.
+     */
+    public void stop() {
+        ScheduledExecutorService own;
+        synchronized (lock) {
+            if (!running)
+                return;
+            running = false;
+            pending = null;
+            pendingPosition = NO_POSITION;
+            lock.notifyAll();
+            // the worker closes the servo, without waiting for the rest of a plan
+            wakeUp();
+            schedule();
+            own = ownExecutor;
+            ownExecutor = null;
+        }
+        if (own != null)
+            own.shutdown();
+    }
+
+    /**
+     * Switches to another servo transport, e.g. after the endpoint settings changed. The old one
+     * is closed by the worker thread before the next command.
+     */
+    public void setActuator(FanActuator actuator) {
+        FanActuator old = nextServo.getAndSet(actuator);
+        if (old != null)
+            old.close();
+        synchronized (lock) {
+            // try the new endpoint now rather than after the backoff
+            if (running && backingOff) {
+                wakeUp();
+                schedule();
+            }
+        }
+    }
+
+    public boolean isManualFanControl() {
+        return manualFanControl;
+    }
+
+    public void setManualFanControl(boolean manual) {
+        manualFanControl = manual;
+    }
+
+    public boolean isUsePower() {
+        return usePower;
+    }
+
+    public void setUsePower(boolean power) {
+        usePower = power;
+    }
+
+    /**
+     * Requests a fan speed decided from sensor data. Ignored while the fan is controlled manually.
+     */
+    public void requestAuto(FanSpeed speed) {
+        if (!manualFanControl)
+            submit(speed);
+    }
+
+    /**
+     * Requests a fan speed chosen by the user.
+     */
+    public void requestManual(FanSpeed speed) {
+        submit(speed);
+    }
+
+    /**
+     * Requests a servo position from the proportional fan curve. Ignored while the fan is
+     * controlled manually.
+     */
+    public void requestAutoPosition(int position) {
+        if (!manualFanControl)
+            submit(null, position);
+    }
+
+    private void submit(FanSpeed speed) {
+        submit(speed, NO_POSITION);
+    }
+
+    private void submit(FanSpeed speed, int position) {
+        submitted.incrementAndGet();
+        synchronized (lock) {
+            if (!running) {
+                stats.dropped.incrementAndGet();
+                return;
+            }
+            if (pending != null || pendingPosition != NO_POSITION)
+                stats.coalesced.incrementAndGet();
+            pending = speed;
+            pendingPosition = position;
+            pendingSince = System.nanoTime();
+            // replaces the rest of a plan waiting for its next move, unless it is the same target
+            if (!backingOff && (speed == null || speed != waitingFor))
+                wakeUp();
+            schedule();
+        }
+    }
+
+    // queues the drain task unless it is queued or running already, called with lock held
+    private void schedule() {
+        if (scheduled)
+            return;
+        try {
+            executor.execute(drainTask);
+            scheduled = true;
+        } catch (RejectedExecutionException e) {
+            // the shared worker is shut down
+            stats.dropped.incrementAndGet();
+        }
+    }
+
+    // cancels the wait for the next move of a plan, called with lock held
+    private void wakeUp() {
+        if (waiting != null && waiting.cancel(false)) {
+            // the drain task was not running, queue it now
+            scheduled = false;
+        }
+        waiting = null;
+        waitingFor = null;
+        backingOff = false;
+    }
+
+    // lets the drain task continue the plan after delay ms, returns false if the worker is gone
+    private boolean scheduleNextMove(int delay) {
+        synchronized (lock) {
+            if (replacesPlan())
+                return false;
+            try {
+                waiting = executor.schedule(drainTask, delay, TimeUnit.MILLISECONDS);
+                waitingFor = targetSpeed;
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Puts the target back into the mailbox, unless a newer one is there, and lets the drain task
+     * send it after the backoff. Returns false if the worker is gone.
+     */
+    private boolean scheduleRetry() {
+        int delay = RETRY_BASE_MS << Math.min(failures - 1, 16);
+        synchronized (lock) {
+            if (!running)
+                return false;
+            if (pending == null && pendingPosition == NO_POSITION) {
+                pending = targetSpeed;
+                pendingPosition = targetPosition;
+                pendingSince = targetSince;
+            }
+            stats.retried.incrementAndGet();
+            try {
+                waiting = executor.schedule(drainTask, Math.min(delay, RETRY_MAX_MS), TimeUnit.MILLISECONDS);
+                waitingFor = null;
+                backingOff = true;
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Waits until every request so far has been sent to the servo. Returns false on timeout,
+     * which includes waiting for a retry.
+     */
+    public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            while (running && scheduled) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                lock.wait(left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Where the servo was left before a restart, as the last acknowledged position; -1 or
+     * known false for the same state as a failure. Only before start().
+     */
+    public void restore(int position, boolean known) {
+        synchronized (lock) {
+            if (running)
+                throw new IllegalStateException("Dispatcher already running");
+        }
+        lastPosition = position;
+        lastSpeed = position < 0 ? FanSpeed.FAN_STOP : FanTransitionPlanner.levelFor(position);
+        positionKnown = known && position >= 0;
+    }
+
+    // fan speed of the last servo move acknowledged
+    public FanSpeed getFanSpeed() {
+        return lastSpeed;
+    }
+
+    // last servo position acknowledged, or -1
+    public int getPosition() {
+        return lastPosition;
+    }
+
+    // false while servo commands fail, the fan may then be anywhere
+    public boolean isPositionKnown() {
+        return positionKnown;
+    }
+
+    // number of requests received
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    // number of requests replaced by a newer one before being handled
+    public long getCoalescedCount() {
+        return stats.coalesced.get();
+    }
+
+    // number of fan speed changes actually sent to the servo
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    // latency histograms and failure counters
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "submitted:" + getSubmittedCount() + ", coalesced:" + getCoalescedCount()
+                + ", executed:" + getExecutedCount();
+    }
+
+    /**
+     * Moves the next target into targetSpeed/targetPosition and returns TAKEN. Returns IDLE, and
+     * ends the drain task, if there is none, or STOPPED once stopped.
+     */
+    private int take() {
+        synchronized (lock) {
+            if (!running)
+                return STOPPED;
+            if (pending == null && pendingPosition == NO_POSITION) {
+                scheduled = false;
+                lock.notifyAll();
+                return IDLE;
+            }
+            targetSpeed = pending;
+            targetPosition = pendingPosition;
+            targetSince = pendingSince;
+            targetSent = false;
+            pending = null;
+            pendingPosition = NO_POSITION;
+            backingOff = false;
+            stats.queueWait.record(System.nanoTime() - targetSince);
+            return TAKEN;
+        }
+    }
+
+    // true if a newer target is waiting, in which case the current move should give way
+    private boolean superseded() {
+        synchronized (lock) {
+            return pending != null || pendingPosition != NO_POSITION || !running;
+        }
+    }
+
+    /**
+     * True if a request for another target is waiting, or the dispatcher is stopped. A request
+     * for the target of the current plan is taken as coalesced and the plan goes on.
+     */
+    private boolean replacesPlan() {
+        synchronized (lock) {
+            if (running && targetSpeed != null && pending == targetSpeed) {
+                pending = null;
+                stats.coalesced.incrementAndGet();
+                return false;
+            }
+            return superseded();
+        }
+    }
+
+    /**
+     * Runs on the worker until the mailbox is empty, or until the current plan has to wait for
+     * its next move. In that case it is scheduled again for the move and keeps the task.
+     */
+    private void drain() {
+        int state = TAKEN;
+        try {
+            while (true) {
+                if (planNext < planSize && replacesPlan()) {
+                    // a newer target replaces the rest of the plan
+                    dropPlan();
+                    if (targetSent)
+                        stats.endToEnd.record(System.nanoTime() - targetSince);
+                }
+                if (planNext == planSize) {
+                    if ((state = take()) != TAKEN)
+                        break;
+                    queuedSpeed = lastSpeed;
+                    if (targetSpeed == null) {
+                        setPosition(targetPosition);
+                    } else {
+                        planSize = FanTransitionPlanner.plan(positionKnown ? lastSpeed : farthestFrom(targetSpeed),
+                                targetSpeed, planPositions, planDelays);
+                        planNext = 0;
+                    }
+                }
+                if (!runPlan() || !flushServo()) {
+                    state = WAITING;
+                    return;
+                }
+                if (targetSent)
+                    stats.endToEnd.record(System.nanoTime() - targetSince);
+            }
+            if (state == STOPPED) {
+                dropPlan();
+                servo.close();
+                FanActuator next = nextServo.getAndSet(null);
+                if (next != null)
+                    next.close();
+            }
+        } finally {
+            // stopped, or a listener threw; IDLE has given up the task already, WAITING keeps it
+            if (state != IDLE && state != WAITING) {
+                synchronized (lock) {
+                    scheduled = false;
+                    lock.notifyAll();
+                    // started again meanwhile
+                    if (running && (pending != null || pendingPosition != NO_POSITION))
+                        schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the moves of the plan up to its next wait. Returns false if the rest is scheduled
+     * after the wait, or a retry after a failure, true once the plan is done.
+     */
+    private boolean runPlan() {
+        while (planNext < planSize) {
+            int delay = planDelays[planNext];
+            if (delay > 0 && !waited) {
+                if (!flushServo())
+                    return false;
+                if (scheduleNextMove(delay)) {
+                    waited = true;
+                    waitStart = System.nanoTime();
+                    return false;
+                }
+                // stopped or replaced meanwhile
+                dropPlan();
+                return true;
+            }
+            if (waited) {
+                waited = false;
+                stats.transitionSleep.record(System.nanoTime() - waitStart);
+            }
+            moveTo(planPositions[planNext++]);
+        }
+        return true;
+    }
+
+    private void dropPlan() {
+        planSize = 0;
+        planNext = 0;
+        waited = false;
+    }
+
+    // queues one move of a plan
+    private void moveTo(int position) {
+        FanSpeed speed = FanTransitionPlanner.levelFor(position);
+        if (speed != queuedSpeed) {
+            queuedSpeed = speed;
+            executed.incrementAndGet();
+        }
+        setServoPosition(position);
+    }
+
+    // moves the servo straight to a position from the fan curve
+    private void setPosition(int position) {
+        if (position == lastPosition && positionKnown)
+            return;
+        queuedSpeed = FanTransitionPlanner.levelFor(position);
+        executed.incrementAndGet();
+        setServoPosition(position);
+    }
+
+    // queues a servo position, sent with the rest of the move by flushServo()
+    private void setServoPosition(int position) {
+        if (batchSize == batch.length)
+            flushServo();
+        batch[batchSize++] = position;
+    }
+
+    // the fan speed which the servo could be at that is farthest from speed
+    private static FanSpeed farthestFrom(FanSpeed speed) {
+        return speed == FanSpeed.FAN_STOP ? FanSpeed.FAN_2 : FanSpeed.FAN_STOP;
+    }
+
+    /**
+     * Sends the queued positions. Returns false if they failed and a retry is scheduled, in which
+     * case the drain task has to give way until then.
+     */
+    private boolean flushServo() {
+        if (batchSize == 0)
+            return true;
+        FanActuator next = nextServo.getAndSet(null);
+        if (next != null) {
+            servo.close();
+            servo = next;
+        }
+        int count = batchSize;
+        batchSize = 0;
+        long start = System.nanoTime();
+        try {
+            servo.setPositions(batch, count);
+        } catch (CircuitBreaker.OpenException e) {
+            // no I/O was done
+            return failed(count, e.getMessage());
+        } catch (IOException e) {
+            stats.servoIo.record(System.nanoTime() - start);
+            return failed(count, e.getMessage());
+        }
+        stats.servoIo.record(System.nanoTime() - start);
+        failures = 0;
+        positionKnown = true;
+        targetSent = true;
+        lastPosition = batch[count - 1];
+        FanSpeed speed = FanTransitionPlanner.levelFor(lastPosition);
+        if (speed != lastSpeed) {
+            lastSpeed = speed;
+            listener.onFanSpeedChanged(speed);
+        }
+        return true;
+    }
+
+    // after count positions failed, returns false if a retry is scheduled
+    private boolean failed(int count, String error) {
+        stats.failed.addAndGet(count);
+        failures++;
+        positionKnown = false;
+        dropPlan();
+        listener.onServoError(batch[count - 1], error);
+        return !scheduleRetry();
+    }
+}
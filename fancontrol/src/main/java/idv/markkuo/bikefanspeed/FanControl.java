@@ -0,0 +1,214 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * The automatic fan decision: turns speed and power samples into requests to the dispatcher,
+ * either as three fan levels or as positions on a fan curve. Only the source selected with
+ * FanCommandDispatcher.setUsePower() drives the fan. With pre-spin predictors, the three-step
+ * mode starts the next level early when the signal is heading for its threshold.
+ *
+ * An instance holds one configuration; a new one is built when the settings change.
+ */
+public class FanControl {
+    /**
+     * Builds a fan control around a dispatcher, e.g. for every fan of gym mode or a replay.
+     */
+    public interface Factory {
+        FanControl create(FanCommandDispatcher dispatcher);
+    }
+
+    private final FanCommandDispatcher dispatcher;
+    private final boolean useFanCurve;
+    private final FanLevelSelector speedSelector;
+    private final FanLevelSelector powerSelector;
+    private final ProportionalFanController speedCurve;
+    private final ProportionalFanController powerCurve;
+    // null without pre-spin
+    private final PreSpinPredictor speedPreSpin;
+    private final PreSpinPredictor powerPreSpin;
+    // three-step level last requested from each source
+    private volatile FanSpeed speedLevel = FanSpeed.FAN_STOP;
+    private volatile FanSpeed powerLevel = FanSpeed.FAN_STOP;
+
+    public FanControl(FanCommandDispatcher dispatcher, boolean useFanCurve,
+                      FanLevelSelector speedSelector, FanLevelSelector powerSelector,
+                      ProportionalFanController speedCurve, ProportionalFanController powerCurve) {
+        this(dispatcher, useFanCurve, speedSelector, powerSelector, speedCurve, powerCurve, null, null);
+    }
+
+    public FanControl(FanCommandDispatcher dispatcher, boolean useFanCurve,
+                      FanLevelSelector speedSelector, FanLevelSelector powerSelector,
+                      ProportionalFanController speedCurve, ProportionalFanController powerCurve,
+                      PreSpinPredictor speedPreSpin, PreSpinPredictor powerPreSpin) {
+        this.dispatcher = dispatcher;
+        this.useFanCurve = useFanCurve;
+        this.speedSelector = speedSelector;
+        this.powerSelector = powerSelector;
+        this.speedCurve = speedCurve;
+        this.powerCurve = powerCurve;
+        this.speedPreSpin = speedPreSpin;
+        this.powerPreSpin = powerPreSpin;
+    }
+
+    /**
+     * Default thresholds with the given hysteresis fraction, dwell time (ms) and fan curves.
+     */
+    public static FanControl create(FanCommandDispatcher dispatcher, boolean useFanCurve,
+                                    float hysteresis, long minDwell,
+                                    SignalSmoother speedSmoother, SignalSmoother powerSmoother,
+                                    ProportionalFanController speedCurve, ProportionalFanController powerCurve) {
+        return create(dispatcher, useFanCurve, hysteresis, minDwell, speedSmoother, powerSmoother,
+                speedCurve, powerCurve, 0);
+    }
+
+    /**
+     * Same as above, with pre-spin looking preSpinHorizon ms ahead, or without it if 0.
+     */
+    public static FanControl create(FanCommandDispatcher dispatcher, boolean useFanCurve,
+                                    float hysteresis, long minDwell,
+                                    SignalSmoother speedSmoother, SignalSmoother powerSmoother,
+                                    ProportionalFanController speedCurve, ProportionalFanController powerCurve,
+                                    long preSpinHorizon) {
+        return create(dispatcher, useFanCurve, FanPolicy.defaultFor(FanPolicy.Metric.SPEED),
+                FanPolicy.defaultFor(FanPolicy.Metric.POWER), hysteresis, minDwell, speedSmoother, powerSmoother,
+                speedCurve, powerCurve, preSpinHorizon);
+    }
+
+    /**
+     * Same as above, with the three-step thresholds of the given policies.
+     */
+    public static FanControl create(FanCommandDispatcher dispatcher, boolean useFanCurve,
+                                    FanPolicy speedPolicy, FanPolicy powerPolicy,
+                                    float hysteresis, long minDwell,
+                                    SignalSmoother speedSmoother, SignalSmoother powerSmoother,
+                                    ProportionalFanController speedCurve, ProportionalFanController powerCurve,
+                                    long preSpinHorizon) {
+        return new FanControl(dispatcher, useFanCurve,
+                new FanLevelSelector(speedPolicy, hysteresis, minDwell, speedSmoother),
+                new FanLevelSelector(powerPolicy, hysteresis, minDwell, powerSmoother),
+                speedCurve, powerCurve,
+                preSpinHorizon > 0 ? createPreSpin(speedPolicy, preSpinHorizon) : null,
+                preSpinHorizon > 0 ? createPreSpin(powerPolicy, preSpinHorizon) : null);
+    }
+
+    private static PreSpinPredictor createPreSpin(FanPolicy policy, long horizon) {
+        return new PreSpinPredictor(policy.getLow(), policy.getHigh(), horizon, PreSpinPredictor.DEFAULT_WINDOW_MS);
+    }
+
+    // speed sample in km/h, at time (ms)
+    public void onSpeed(long time, float speed) {
+        if (!dispatcher.isUsePower())
+            speedLevel = update(speedSelector, speedCurve, speedPreSpin, time, speed);
+    }
+
+    // power sample in W, at time (ms)
+    public void onPower(long time, float power) {
+        if (dispatcher.isUsePower())
+            powerLevel = update(powerSelector, powerCurve, powerPreSpin, time, power);
+    }
+
+    // the speed sensor is gone, stops the fan if it was driving it
+    public void onSpeedLost() {
+        speedSelector.reset();
+        speedCurve.reset();
+        speedLevel = FanSpeed.FAN_STOP;
+        if (speedPreSpin != null)
+            speedPreSpin.reset();
+        if (!dispatcher.isUsePower())
+            dispatcher.requestAuto(FanSpeed.FAN_STOP);
+    }
+
+    // the power sensor is gone, stops the fan if it was driving it
+    public void onPowerLost() {
+        powerSelector.reset();
+        powerCurve.reset();
+        powerLevel = FanSpeed.FAN_STOP;
+        if (powerPreSpin != null)
+            powerPreSpin.reset();
+        if (dispatcher.isUsePower())
+            dispatcher.requestAuto(FanSpeed.FAN_STOP);
+    }
+
+    /**
+     * The sensor of a source went silent: steps the fan one level down if that source drives it,
+     * through the usual transitions, and stops it like a lost sensor below FAN_1. Returns true
+     * while the fan still runs, to be called again after the next silence.
+     */
+    public boolean coastDown(boolean power) {
+        if (dispatcher.isUsePower() != power || dispatcher.isManualFanControl())
+            return false;
+        FanSpeed current = dispatcher.getFanSpeed();
+        if (current.ordinal() <= FanSpeed.FAN_1.ordinal()) {
+            if (power)
+                onPowerLost();
+            else
+                onSpeedLost();
+            return false;
+        }
+        // the curve has to send its position again once the sensor is back
+        (power ? powerCurve : speedCurve).reset();
+        dispatcher.requestAuto(FanSpeed.values()[current.ordinal() - 1]);
+        return true;
+    }
+
+    /**
+     * Continues from the fan speed the servo was left at before a restart, so the first samples
+     * are compared against that level's hysteresis instead of starting from FAN_STOP.
+     */
+    public void restore(FanSpeed speed) {
+        if (dispatcher.isUsePower()) {
+            powerSelector.restore(speed);
+            powerLevel = speed;
+        } else {
+            speedSelector.restore(speed);
+            speedLevel = speed;
+        }
+    }
+
+    // makes the fan curves send their current position again, e.g. after leaving manual control
+    public void resetCurves() {
+        speedCurve.reset();
+        powerCurve.reset();
+    }
+
+    public boolean usesFanCurve() {
+        return useFanCurve;
+    }
+
+    /**
+     * The fan level decided from the last sample of the active source, before the dispatcher
+     * has moved the servo.
+     */
+    public FanSpeed getTargetLevel() {
+        boolean power = dispatcher.isUsePower();
+        if (useFanCurve) {
+            int position = (power ? powerCurve : speedCurve).getTargetPosition();
+            return position < 0 ? FanSpeed.FAN_STOP : FanTransitionPlanner.levelFor(position);
+        }
+        return power ? powerLevel : speedLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "fan curve:" + useFanCurve
+                + "\n  speed decisions " + speedSelector + "\n  power decisions " + powerSelector
+                + "\n  speed curve " + speedCurve.getCurve() + ", commands " + speedCurve
+                + "\n  power curve " + powerCurve.getCurve() + ", commands " + powerCurve
+                + (speedPreSpin != null ? "\n  speed pre-spin " + speedPreSpin + "\n  power pre-spin " + powerPreSpin : "");
+    }
+
+    // returns the three-step level requested
+    private FanSpeed update(FanLevelSelector selector, ProportionalFanController curve, PreSpinPredictor preSpin,
+                            long time, float value) {
+        if (useFanCurve) {
+            int position = curve.update(time, value);
+            if (position >= 0)
+                dispatcher.requestAutoPosition(position);
+            return FanSpeed.FAN_STOP;
+        }
+        FanSpeed level = selector.update(time, value);
+        if (preSpin != null)
+            level = preSpin.update(time, value, level);
+        dispatcher.requestAuto(level);
+        return level;
+    }
+}
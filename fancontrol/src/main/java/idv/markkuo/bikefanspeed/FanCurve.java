@@ -0,0 +1,99 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Piecewise-linear mapping from speed or power to a servo position in percent.
+ *
+ * Points are sorted by input; values outside the first/last point are clamped. Two points with
+ * the same input make a vertical step, which is how the three-step preset is expressed.
+ */
+public class FanCurve {
+    // servo positions of the three-step mode
+    public static final int POSITION_STOP = 10;
+    public static final int POSITION_FAN_1 = 55;
+    public static final int POSITION_FAN_2 = 85;
+
+    private final float[] inputs;
+    private final float[] positions;
+
+    public FanCurve(float[] inputs, float[] positions) {
+        if (inputs.length == 0 || inputs.length != positions.length)
+            throw new IllegalArgumentException("Fan curve needs matching non-empty inputs and positions");
+        for (int i = 1; i < inputs.length; i++) {
+            if (inputs[i] < inputs[i - 1])
+                throw new IllegalArgumentException("Fan curve inputs must be sorted");
+        }
+        this.inputs = inputs.clone();
+        this.positions = positions.clone();
+    }
+
+    /**
+     * Parses "input:position" pairs separated by commas, e.g. "3:10,3:30,25:85".
+     */
+    public static FanCurve parse(String text) {
+        String[] pairs = text.trim().split("\\s*,\\s*");
+        float[] inputs = new float[pairs.length];
+        float[] positions = new float[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] p = pairs[i].split("\\s*:\\s*");
+            if (p.length != 2)
+                throw new IllegalArgumentException("Invalid fan curve point:" + pairs[i]);
+            inputs[i] = Float.parseFloat(p[0]);
+            positions[i] = Float.parseFloat(p[1]);
+        }
+        return new FanCurve(inputs, positions);
+    }
+
+    /**
+     * The classic three-step mode: stop below low, FAN_1 below high, FAN_2 above.
+     */
+    public static FanCurve threeStep(float low, float high) {
+        return new FanCurve(new float[]{low, low, high, high},
+                new float[]{POSITION_STOP, POSITION_FAN_1, POSITION_FAN_1, POSITION_FAN_2});
+    }
+
+    /**
+     * Off below low, then linear from minPosition at low to maxPosition at full.
+     */
+    public static FanCurve linear(float low, float full, int minPosition, int maxPosition) {
+        return new FanCurve(new float[]{low, low, full},
+                new float[]{POSITION_STOP, minPosition, maxPosition});
+    }
+
+    public int size() {
+        return inputs.length;
+    }
+
+    // servo position for a speed or power value
+    public int positionFor(float value) {
+        int n = inputs.length;
+        if (value < inputs[0])
+            return Math.round(positions[0]);
+        if (value >= inputs[n - 1])
+            return Math.round(positions[n - 1]);
+        // last point with input <= value, so a vertical step takes the upper position
+        int lo = 0, hi = n - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (inputs[mid] <= value)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        float span = inputs[hi] - inputs[lo];
+        if (span <= 0.0f)
+            return Math.round(positions[hi]);
+        float f = (value - inputs[lo]) / span;
+        return Math.round(positions[lo] + f * (positions[hi] - positions[lo]));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < inputs.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(inputs[i]).append(':').append(positions[i]);
+        }
+        return sb.toString();
+    }
+}
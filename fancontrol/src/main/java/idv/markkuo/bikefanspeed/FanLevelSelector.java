@@ -0,0 +1,170 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Decides the fan speed from a smoothed sensor signal with hysteresis and a minimum dwell time.
+ *
+ * A level is entered when the signal reaches its up threshold, and only left downwards once the
+ * signal drops below the lower down threshold. After any change the level is held for at least
+ * minDwell ms. The selector also keeps what plain single-sample thresholds would have decided, so
+ * the number of servo commands saved can be reported.
+ */
+public class FanLevelSelector {
+    private final float lowUp;
+    private final float lowDown;
+    private final float highUp;
+    private final float highDown;
+    private final long minDwell;
+    private final SignalSmoother smoother;
+    // levels of the raw decision, null for the thresholds alone
+    private final FanPolicy policy;
+
+    private FanSpeed level = FanSpeed.FAN_STOP;
+    private long levelSince;
+    // false until the first change, so the first one is not held back by the dwell time
+    private boolean dwelling = false;
+
+    // what raw thresholds without smoothing would have decided
+    private FanSpeed rawLevel = FanSpeed.FAN_STOP;
+
+    private long samples = 0;
+    private long rawChanges = 0;
+    private long changes = 0;
+
+    /**
+     * @param low        signal at which the fan goes from stop to FAN_1
+     * @param high       signal at which the fan goes from FAN_1 to FAN_2
+     * @param hysteresis fraction below a threshold the signal has to drop to leave a level
+     * @param minDwell   minimum time in ms to stay at a level
+     * @param smoother   smoothing applied to samples before deciding
+     */
+    public FanLevelSelector(float low, float high, float hysteresis, long minDwell, SignalSmoother smoother) {
+        this(low, low * (1.0f - hysteresis), high, high * (1.0f - hysteresis), minDwell, smoother);
+    }
+
+    /**
+     * Thresholds where the policy's levels reach FAN_1 and FAN_2.
+     */
+    public FanLevelSelector(FanPolicy policy, float hysteresis, long minDwell, SignalSmoother smoother) {
+        this(policy.getLow(), policy.getLow() * (1.0f - hysteresis), policy.getHigh(),
+                policy.getHigh() * (1.0f - hysteresis), minDwell, smoother, policy);
+    }
+
+    public FanLevelSelector(float lowUp, float lowDown, float highUp, float highDown, long minDwell,
+                            SignalSmoother smoother) {
+        this(lowUp, lowDown, highUp, highDown, minDwell, smoother, null);
+    }
+
+    private FanLevelSelector(float lowUp, float lowDown, float highUp, float highDown, long minDwell,
+                             SignalSmoother smoother, FanPolicy policy) {
+        if (lowDown > lowUp || highDown > highUp || lowUp > highUp)
+            throw new IllegalArgumentException("Invalid fan thresholds");
+        this.lowUp = lowUp;
+        this.lowDown = lowDown;
+        this.highUp = highUp;
+        this.highDown = highDown;
+        this.minDwell = minDwell;
+        this.smoother = smoother;
+        this.policy = policy;
+    }
+
+    /**
+     * Feeds a raw sample taken at time (ms) and returns the fan speed to use.
+     */
+    public FanSpeed update(long time, float value) {
+        samples++;
+        FanSpeed raw = rawThreshold(value);
+        if (raw != rawLevel) {
+            rawLevel = raw;
+            rawChanges++;
+        }
+
+        FanSpeed target = hysteresis(smoother.add(time, value));
+        if (target != level && (!dwelling || time - levelSince >= minDwell)) {
+            level = target;
+            levelSince = time;
+            dwelling = true;
+            changes++;
+        }
+        return level;
+    }
+
+    // the level before a restart: left with the hysteresis of the level, without waiting for the dwell time
+    public void restore(FanSpeed speed) {
+        level = speed;
+        dwelling = false;
+    }
+
+    public FanSpeed getLevel() {
+        return level;
+    }
+
+    public void reset() {
+        smoother.reset();
+        level = FanSpeed.FAN_STOP;
+        dwelling = false;
+        rawLevel = FanSpeed.FAN_STOP;
+    }
+
+    // null if built from thresholds
+    public FanPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    // fan speed changes raw single sample thresholds would have made
+    public long getRawChangeCount() {
+        return rawChanges;
+    }
+
+    // fan speed changes actually made
+    public long getChangeCount() {
+        return changes;
+    }
+
+    // servo commands avoided by smoothing, hysteresis and dwell time
+    public long getSavedCount() {
+        return Math.max(0, rawChanges - changes);
+    }
+
+    @Override
+    public String toString() {
+        return "samples:" + samples + ", raw changes:" + rawChanges + ", changes:" + changes
+                + ", saved:" + getSavedCount();
+    }
+
+    private FanSpeed rawThreshold(float value) {
+        if (policy != null)
+            return policy.speedFor(value);
+        if (value < lowUp)
+            return FanSpeed.FAN_STOP;
+        else if (value < highUp)
+            return FanSpeed.FAN_1;
+        return FanSpeed.FAN_2;
+    }
+
+    private FanSpeed hysteresis(float value) {
+        switch (level) {
+            case FAN_STOP:
+                if (value >= highUp)
+                    return FanSpeed.FAN_2;
+                if (value >= lowUp)
+                    return FanSpeed.FAN_1;
+                return FanSpeed.FAN_STOP;
+            case FAN_1:
+                if (value >= highUp)
+                    return FanSpeed.FAN_2;
+                if (value < lowDown)
+                    return FanSpeed.FAN_STOP;
+                return FanSpeed.FAN_1;
+            default:
+                if (value >= highDown)
+                    return FanSpeed.FAN_2;
+                if (value >= lowDown)
+                    return FanSpeed.FAN_1;
+                return FanSpeed.FAN_STOP;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * When the fan goes up for one signal: levels starting at a speed or power, each with its servo
+ * position. The levels are checked once and compiled into sorted primitive arrays, so looking up
+ * a sample is a binary search without allocation.
+ *
+ * The three-step mode only moves the servo to the positions of its three fan speeds, so it can
+ * only follow a policy whose every position is one of them (isThreeStep()); the curve mode can use
+ * any levels as a stepped fan curve.
+ */
+public class FanPolicy {
+    public enum Metric {
+        SPEED,
+        POWER
+    }
+
+    private final Metric metric;
+    // where each level starts, strictly ascending from 0
+    private final float[] bounds;
+    private final int[] positions;
+    private final FanSpeed[] speeds;
+    // where the three-step mode reaches FAN_1 and FAN_2
+    private final float low;
+    private final float high;
+    // every position is a three-step position
+    private final boolean threeStep;
+
+    /**
+     * @param bounds    speed (km/h) or power (W) at which each level starts, the first one at 0
+     * @param positions servo position in percent of each level, never going down
+     */
+    public FanPolicy(Metric metric, float[] bounds, int[] positions) {
+        if (metric == null)
+            throw new IllegalArgumentException("Fan policy needs a metric");
+        if (bounds.length == 0 || bounds.length != positions.length)
+            throw new IllegalArgumentException("Fan policy needs matching non-empty bounds and positions");
+        if (bounds[0] != 0.0f)
+            throw new IllegalArgumentException("Fan policy's first level must start at 0");
+        for (int i = 0; i < bounds.length; i++) {
+            if (positions[i] < 0 || positions[i] > 100)
+                throw new IllegalArgumentException("Invalid servo position:" + positions[i]);
+            if (i > 0 && !(bounds[i] > bounds[i - 1]))
+                throw new IllegalArgumentException("Fan policy levels must be sorted:" + bounds[i]);
+            if (i > 0 && positions[i] < positions[i - 1])
+                throw new IllegalArgumentException("Fan policy positions must not go down:" + positions[i]);
+        }
+        this.metric = metric;
+        this.bounds = bounds.clone();
+        this.positions = positions.clone();
+        speeds = new FanSpeed[positions.length];
+        float low = Float.MAX_VALUE, high = Float.MAX_VALUE;
+        boolean threeStep = true;
+        for (int i = positions.length - 1; i >= 0; i--) {
+            speeds[i] = FanTransitionPlanner.levelFor(positions[i]);
+            if (positions[i] != FanTransitionPlanner.positionOf(speeds[i]))
+                threeStep = false;
+            if (speeds[i] != FanSpeed.FAN_STOP)
+                low = bounds[i];
+            if (speeds[i] == FanSpeed.FAN_2)
+                high = bounds[i];
+        }
+        this.low = low;
+        this.high = high;
+        this.threeStep = threeStep;
+    }
+
+    /**
+     * The classic three levels with the three-step servo positions.
+     */
+    public static FanPolicy threeStep(Metric metric, float low, float high) {
+        return new FanPolicy(metric, new float[]{0.0f, low, high},
+                new int[]{FanCurve.POSITION_STOP, FanCurve.POSITION_FAN_1, FanCurve.POSITION_FAN_2});
+    }
+
+    // the built-in thresholds of a signal
+    public static FanPolicy defaultFor(Metric metric) {
+        if (metric == Metric.POWER)
+            return threeStep(metric, FanThresholds.POWER_LOW, FanThresholds.POWER_HIGH);
+        return threeStep(metric, FanThresholds.SPEED_LOW, FanThresholds.SPEED_HIGH);
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public int size() {
+        return bounds.length;
+    }
+
+    public float getBound(int level) {
+        return bounds[level];
+    }
+
+    public int getPosition(int level) {
+        return positions[level];
+    }
+
+    // level of a speed or power value, the first one for anything below 0
+    public int levelFor(float value) {
+        // last bound <= value
+        int lo = 0, hi = bounds.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (bounds[mid] <= value)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    public int positionFor(float value) {
+        return positions[levelFor(value)];
+    }
+
+    public FanSpeed speedFor(float value) {
+        return speeds[levelFor(value)];
+    }
+
+    // start of the first level running the fan, Float.MAX_VALUE if none does
+    public float getLow() {
+        return low;
+    }
+
+    // start of the first level at FAN_2, Float.MAX_VALUE if none is
+    public float getHigh() {
+        return high;
+    }
+
+    /**
+     * True if every level's position is that of a three-step fan speed, so the three-step mode
+     * sends the positions of the policy.
+     */
+    public boolean isThreeStep() {
+        return threeStep;
+    }
+
+    // the levels as a fan curve with a vertical step at every bound
+    public FanCurve toCurve() {
+        int n = bounds.length;
+        float[] inputs = new float[2 * n - 1];
+        float[] curve = new float[2 * n - 1];
+        inputs[0] = bounds[0];
+        curve[0] = positions[0];
+        for (int i = 1; i < n; i++) {
+            inputs[2 * i - 1] = bounds[i];
+            curve[2 * i - 1] = positions[i - 1];
+            inputs[2 * i] = bounds[i];
+            curve[2 * i] = positions[i];
+        }
+        return new FanCurve(inputs, curve);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(metric == Metric.POWER ? "power" : "speed");
+        for (int i = 0; i < bounds.length; i++)
+            sb.append(i == 0 ? ' ' : ',').append(bounds[i]).append(':').append(positions[i]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,8 @@
+package idv.markkuo.bikefanspeed;
+
+// fan speed supported
+public enum FanSpeed {
+    FAN_STOP,
+    FAN_1,
+    FAN_2,
+}
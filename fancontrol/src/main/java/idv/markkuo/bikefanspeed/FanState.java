@@ -0,0 +1,41 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Immutable snapshot of the service state shown by the UI.
+ */
+public final class FanState {
+    public static final FanState INITIAL = new FanState(0, null, -1.0f, -1, FanSpeed.FAN_STOP, false, false, null);
+
+    // grows with every change, a newer snapshot has a larger version
+    public final long version;
+
+    // sensor state, e.g. SEARCHING or TRACKING, null if unknown
+    public final String status;
+    // latest speed (km/h) or power (W), negative if none yet
+    public final float value;
+    // sensor timestamp of value, negative if none yet
+    public final long timestamp;
+    public final FanSpeed fanSpeed;
+    public final boolean manualFanControl;
+    public final boolean usePower;
+    // session statistics as text, refreshed at a much lower rate than the values; null if none yet
+    public final String stats;
+
+    public FanState(long version, String status, float value, long timestamp, FanSpeed fanSpeed,
+                    boolean manualFanControl, boolean usePower, String stats) {
+        this.version = version;
+        this.status = status;
+        this.value = value;
+        this.timestamp = timestamp;
+        this.fanSpeed = fanSpeed;
+        this.manualFanControl = manualFanControl;
+        this.usePower = usePower;
+        this.stats = stats;
+    }
+
+    @Override
+    public String toString() {
+        return "version:" + version + ", status:" + status + ", value:" + value + ", timestamp:" + timestamp
+                + ", fan:" + fanSpeed + ", manual:" + manualFanControl + ", power:" + usePower;
+    }
+}
@@ -0,0 +1,17 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Speed and power at which the fan moves up a level in the three-step mode, and where the
+ * default fan curves start and reach full speed.
+ */
+public final class FanThresholds {
+    // bike speed threshold, km/h
+    public static final float SPEED_LOW = 3.0f;
+    public static final float SPEED_HIGH = 10.0f;
+    // bike power threshold, W
+    public static final float POWER_LOW = 80.0f;
+    public static final float POWER_HIGH = 180.0f;
+
+    private FanThresholds() {
+    }
+}
@@ -0,0 +1,96 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Servo moves between the three fan speeds.
+ *
+ * The fan knob never jumps between stop and FAN_2 directly, it always passes FAN_1. Stopping
+ * first rewinds to the FAN_1 position and waits for the knob to settle before turning it off,
+ * and FAN_1 is entered at a higher position from stop than from FAN_2 so the fan starts spinning.
+ */
+public final class FanTransitionPlanner {
+    // wait before the final stop position, lets the knob settle after the rewind
+    public static final int REWIND_DELAY_MS = 500;
+    // the longest plan of a single step
+    public static final int MAX_STEP_MOVES = 2;
+    private static final int FAN_1_FROM_FAN_2 = 45;
+
+    private FanTransitionPlanner() {
+    }
+
+    /**
+     * The next fan speed on the way from one speed to another, or to itself when already there.
+     */
+    public static FanSpeed nextStep(FanSpeed from, FanSpeed to) {
+        if ((to == FanSpeed.FAN_STOP && from == FanSpeed.FAN_2) ||
+                (to == FanSpeed.FAN_2 && from == FanSpeed.FAN_STOP))
+            return FanSpeed.FAN_1;
+        return to;
+    }
+
+    /**
+     * Writes the servo moves of a single step into positions, and the time to wait before each
+     * of them into delays. Returns the number of moves, 0 if there is nothing to do.
+     */
+    public static int planStep(FanSpeed from, FanSpeed step, int[] positions, int[] delays) {
+        return planStep(from, step, positions, delays, 0);
+    }
+
+    /**
+     * Writes every servo move from one speed to another, as planStep() does for a single step.
+     * The arrays need room for 2 * MAX_STEP_MOVES moves.
+     */
+    public static int plan(FanSpeed from, FanSpeed to, int[] positions, int[] delays) {
+        int n = 0;
+        while (from != to) {
+            FanSpeed step = nextStep(from, to);
+            n = planStep(from, step, positions, delays, n);
+            from = step;
+        }
+        return n;
+    }
+
+    // plans a single step at offset n, returns the new end
+    private static int planStep(FanSpeed from, FanSpeed step, int[] positions, int[] delays, int n) {
+        if (from == step)
+            return n;
+        switch (step) {
+            case FAN_STOP:
+                // rewind a bit
+                positions[n] = FanCurve.POSITION_FAN_1;
+                delays[n++] = 0;
+                positions[n] = FanCurve.POSITION_STOP;
+                delays[n++] = REWIND_DELAY_MS;
+                break;
+            case FAN_1:
+                positions[n] = from == FanSpeed.FAN_STOP ? FanCurve.POSITION_FAN_1 : FAN_1_FROM_FAN_2;
+                delays[n++] = 0;
+                break;
+            case FAN_2:
+                positions[n] = FanCurve.POSITION_FAN_2;
+                delays[n++] = 0;
+                break;
+        }
+        return n;
+    }
+
+    // where a fan speed ends up, the last position of a plan to it
+    public static int positionOf(FanSpeed speed) {
+        switch (speed) {
+            case FAN_1:
+                return FanCurve.POSITION_FAN_1;
+            case FAN_2:
+                return FanCurve.POSITION_FAN_2;
+            default:
+                return FanCurve.POSITION_STOP;
+        }
+    }
+
+    // closest three-step level of a servo position
+    public static FanSpeed levelFor(int position) {
+        if (position < (FanCurve.POSITION_STOP + FanCurve.POSITION_FAN_1) / 2)
+            return FanSpeed.FAN_STOP;
+        if (position < (FanCurve.POSITION_FAN_1 + FanCurve.POSITION_FAN_2) / 2)
+            return FanSpeed.FAN_1;
+        return FanSpeed.FAN_2;
+    }
+}
@@ -0,0 +1,47 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport behind a circuit breaker: commands fail with CircuitBreaker.OpenException without
+ * any I/O while the endpoint is known to be down.
+ */
+public class GuardedActuator implements FanActuator {
+    private final FanActuator actuator;
+    private final CircuitBreaker breaker;
+
+    /**
+     * @param breaker shared by the actuators of one endpoint
+     */
+    public GuardedActuator(FanActuator actuator, CircuitBreaker breaker) {
+        this.actuator = actuator;
+        this.breaker = breaker;
+    }
+
+    @Override
+    public void setPositions(int[] positions, int count) throws IOException {
+        if (!breaker.allow(now()))
+            throw new CircuitBreaker.OpenException("Servo endpoint down, circuit " + breaker);
+        try {
+            actuator.setPositions(positions, count);
+        } catch (IOException | RuntimeException e) {
+            breaker.onFailure(now());
+            throw e;
+        }
+        breaker.onSuccess();
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public void close() {
+        actuator.close();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,115 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed log-linear buckets in microseconds.
+ *
+ * Values below 8 us get a bucket each, above that every power of two is split into 8 buckets,
+ * so a percentile is off by at most 12.5%. Values above about 68 s land in the last bucket.
+ * record() is a few atomic increments and never allocates, so it can be called from any thread
+ * on the hot path.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    // 2^36 us is about 68 s
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // records a latency in ns, negative values count as 0
+    public void record(long nanos) {
+        long us = Math.max(nanos, 0) / 1000;
+        counts.incrementAndGet(bucketOf(us));
+        count.incrementAndGet();
+        sum.addAndGet(us);
+        long m;
+        while (us > (m = max.get()) && !max.compareAndSet(m, us)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    // us
+    public long getMax() {
+        return max.get();
+    }
+
+    // us
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Returns the latency in us below which the given fraction (0.0 to 1.0) of the samples are,
+     * as the upper bound of its bucket; 0 if nothing was recorded. Samples recorded meanwhile may
+     * or may not be included.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n:" + getCount() + ", p50:" + format(getPercentile(0.5)) + ", p99:" + format(getPercentile(0.99))
+                + ", max:" + format(getMax()) + ", mean:" + format(getMean());
+    }
+
+    // "850us", "12.3ms" or "1.20s"
+    static String format(long us) {
+        if (us < 1000)
+            return us + "us";
+        if (us < 1000000)
+            return (us / 1000) + "." + (us % 1000) / 100 + "ms";
+        long centis = (us % 1000000) / 10000;
+        return (us / 1000000) + (centis < 10 ? ".0" : ".") + centis + "s";
+    }
+
+    static int bucketOf(long us) {
+        if (us < SUB_BUCKETS)
+            return (int) us;
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) (us >> (exponent - SUB_BITS)) - SUB_BUCKETS;
+    }
+
+    // largest value in bucket i
+    static long upperBound(int i) {
+        if (i < SUB_BUCKETS)
+            return i;
+        int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,75 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of each stage from a sensor sample to the servo, plus the commands which did not make
+ * it. Shared between the sensor processing thread, which records the handoff and the decision,
+ * and the dispatcher thread.
+ */
+public class PipelineStats {
+    // sensor callback until the processing thread takes the sample
+    public final LatencyHistogram handoff = new LatencyHistogram();
+    // sensor sample to the request handed to the dispatcher
+    public final LatencyHistogram decision = new LatencyHistogram();
+    // request handed to the dispatcher until its worker picks it up
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+    // one batch of servo commands, e.g. the HTTP round trips until the last response
+    public final LatencyHistogram servoIo = new LatencyHistogram();
+    // wait for the knob to settle while stopping the fan
+    public final LatencyHistogram transitionSleep = new LatencyHistogram();
+    // request handed to the dispatcher until the servo acknowledged the whole move
+    public final LatencyHistogram endToEnd = new LatencyHistogram();
+    // switch between speed and power until the first sample of the new source
+    public final LatencyHistogram sensorSwitch = new LatencyHistogram();
+
+    // replaced by a newer request before the worker picked them up
+    public final AtomicLong coalesced = new AtomicLong();
+    // received while the dispatcher was not running
+    public final AtomicLong dropped = new AtomicLong();
+    // servo commands which failed, or were not sent because the endpoint was down
+    public final AtomicLong failed = new AtomicLong();
+    // targets sent again after a failure
+    public final AtomicLong retried = new AtomicLong();
+
+    /**
+     * One line for the notification, e.g. "servo p50 12.0ms p99 85.0ms, 2 failed".
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("servo p50 ").append(LatencyHistogram.format(endToEnd.getPercentile(0.5)))
+                .append(" p99 ").append(LatencyHistogram.format(endToEnd.getPercentile(0.99)));
+        if (failed.get() > 0)
+            sb.append(", ").append(failed.get()).append(" failed");
+        return sb.toString();
+    }
+
+    /**
+     * Every histogram and counter, one per line.
+     */
+    public String dump() {
+        return "handoff         " + handoff
+                + "\ndecision        " + decision
+                + "\nqueue wait      " + queueWait
+                + "\nservo I/O       " + servoIo
+                + "\ntransition wait " + transitionSleep
+                + "\nend to end      " + endToEnd
+                + "\nsensor switch   " + sensorSwitch
+                + "\ncoalesced:" + coalesced.get() + ", dropped:" + dropped.get() + ", failed:" + failed.get()
+                + ", retried:" + retried.get();
+    }
+
+    public void reset() {
+        handoff.reset();
+        decision.reset();
+        queueWait.reset();
+        servoIo.reset();
+        transitionSleep.reset();
+        endToEnd.reset();
+        sensorSwitch.reset();
+        coalesced.set(0);
+        dropped.set(0);
+        failed.set(0);
+        retried.set(0);
+    }
+}
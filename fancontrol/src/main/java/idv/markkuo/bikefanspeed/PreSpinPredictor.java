@@ -0,0 +1,202 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Starts the fan one level early when the signal is heading for the next threshold.
+ *
+ * Smoothing, the servo round trip, the knob travel and the fan spinning up all add up, so in a
+ * sprint the air arrives seconds after the speed. This fits a least-squares line through the raw
+ * samples of the last window and, when the line crosses the up threshold of the next level within
+ * the horizon, commands that level ahead of the fan level selector.
+ *
+ * Against false starts the fit needs enough samples over at least a second, a clear trend (R^2)
+ * and the crossing predicted on consecutive samples. It only ever goes up, one level at a time.
+ * A pre-spun level is held while the signal is above its threshold or still heading there, and
+ * for the horizon after; if the selector has not got there by then it was a false start and the
+ * fan follows the selector again.
+ *
+ * update() is allocation free; not thread safe.
+ */
+public class PreSpinPredictor {
+    public static final long DEFAULT_WINDOW_MS = 3000;
+    static final int MAX_SAMPLES = 64;
+    static final int MIN_SAMPLES = 4;
+    static final long MIN_SPAN_MS = 1000;
+    static final double MIN_R2 = 0.5;
+    static final int CONFIRM_SAMPLES = 2;
+
+    private final float low;
+    private final float high;
+    private final long horizon;
+    private final long window;
+
+    // ring of the samples in the window
+    private final long[] times = new long[MAX_SAMPLES];
+    private final float[] values = new float[MAX_SAMPLES];
+    private int head = 0;
+    private int count = 0;
+
+    private int confirmations = 0;
+    // level commanded ahead of the selector, null if none
+    private FanSpeed held = null;
+    private long heldUntil;
+    // slope of the last fit per second, the line's value at the last sample and R^2
+    private float slope = 0.0f;
+    private float lastFit = 0.0f;
+    private double r2 = 0.0;
+
+    private long preSpins = 0;
+    private long falseStarts = 0;
+
+    /**
+     * @param low     signal at which the fan goes from stop to FAN_1
+     * @param high    signal at which the fan goes from FAN_1 to FAN_2
+     * @param horizon how far ahead (ms) a crossing is acted on
+     * @param window  samples used for the fit (ms)
+     */
+    public PreSpinPredictor(float low, float high, long horizon, long window) {
+        if (horizon <= 0 || window < MIN_SPAN_MS || low > high)
+            throw new IllegalArgumentException("Invalid pre-spin parameters");
+        this.low = low;
+        this.high = high;
+        this.horizon = horizon;
+        this.window = window;
+    }
+
+    /**
+     * Feeds a raw sample at time (ms) with the level the selector decided, and returns the level
+     * to command, the same or one above.
+     */
+    public FanSpeed update(long time, float value, FanSpeed level) {
+        add(time, value);
+        boolean fitted = fit();
+        if (held != null) {
+            if (level.ordinal() >= held.ordinal()) {
+                // the selector caught up
+                held = null;
+            } else {
+                // held on while the signal is there or still heading there
+                float threshold = thresholdBelow(held);
+                if (fitted && (lastFit >= threshold || (rising() && projected() >= threshold)))
+                    heldUntil = time + horizon;
+                if (time < heldUntil)
+                    return held;
+                falseStarts++;
+                held = null;
+                confirmations = 0;
+            }
+        }
+        if (level == FanSpeed.FAN_2 || !fitted || !rising()) {
+            confirmations = 0;
+            return level;
+        }
+        FanSpeed next = level == FanSpeed.FAN_STOP ? FanSpeed.FAN_1 : FanSpeed.FAN_2;
+        if (projected() < thresholdBelow(next)) {
+            confirmations = 0;
+            return level;
+        }
+        if (++confirmations < CONFIRM_SAMPLES)
+            return level;
+        confirmations = 0;
+        preSpins++;
+        held = next;
+        heldUntil = time + horizon;
+        return held;
+    }
+
+    public void reset() {
+        head = 0;
+        count = 0;
+        confirmations = 0;
+        held = null;
+        slope = 0.0f;
+        lastFit = 0.0f;
+        r2 = 0.0;
+    }
+
+    // signal change per second of the last fit
+    public float getSlope() {
+        return slope;
+    }
+
+    // levels commanded ahead of the selector
+    public long getPreSpinCount() {
+        return preSpins;
+    }
+
+    // pre-spins the selector did not follow within the horizon
+    public long getFalseStartCount() {
+        return falseStarts;
+    }
+
+    public long getHorizon() {
+        return horizon;
+    }
+
+    @Override
+    public String toString() {
+        return "horizon:" + horizon + "ms, pre-spins:" + preSpins + ", false starts:" + falseStarts;
+    }
+
+    // up threshold of a level
+    private float thresholdBelow(FanSpeed level) {
+        return level == FanSpeed.FAN_1 ? low : high;
+    }
+
+    // the fitted line at the horizon
+    private float projected() {
+        return lastFit + slope * horizon / 1000.0f;
+    }
+
+    // a clear upward trend
+    private boolean rising() {
+        return slope > 0.0f && r2 >= MIN_R2;
+    }
+
+    private void add(long time, float value) {
+        // the clock went back, start over
+        if (count > 0 && time < times[(head - 1 + MAX_SAMPLES) % MAX_SAMPLES])
+            count = 0;
+        // drop what fell out of the window
+        while (count > 0 && time - times[(head - count + MAX_SAMPLES) % MAX_SAMPLES] > window)
+            count--;
+        times[head] = time;
+        values[head] = value;
+        head = (head + 1) % MAX_SAMPLES;
+        if (count < MAX_SAMPLES)
+            count++;
+    }
+
+    /**
+     * Least-squares line through the window, with times in seconds relative to the last sample.
+     * Sets slope, lastFit and r2, returns false if the window is too short for a fit.
+     */
+    private boolean fit() {
+        if (count < MIN_SAMPLES)
+            return false;
+        int last = (head - 1 + MAX_SAMPLES) % MAX_SAMPLES;
+        int first = (head - count + MAX_SAMPLES) % MAX_SAMPLES;
+        if (times[last] - times[first] < MIN_SPAN_MS)
+            return false;
+        double sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0;
+        for (int k = 0, i = first; k < count; k++, i = (i + 1) % MAX_SAMPLES) {
+            double x = (times[i] - times[last]) / 1000.0;
+            double y = values[i];
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+            syy += y * y;
+        }
+        double n = count;
+        double varX = n * sxx - sx * sx;
+        double varY = n * syy - sy * sy;
+        double cov = n * sxy - sx * sy;
+        if (varX <= 0.0)
+            return false;
+        slope = (float) (cov / varX);
+        lastFit = (float) ((sy - slope * sx) / n);
+        // a flat signal has no trend
+        r2 = varY > 0.0 ? cov * cov / (varX * varY) : 0.0;
+        return true;
+    }
+}
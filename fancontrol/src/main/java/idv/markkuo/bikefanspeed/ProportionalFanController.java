@@ -0,0 +1,48 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Continuous fan control: maps the smoothed signal through a fan curve to a servo position, and
+ * only lets a new position through when it passes the deadband and command budget.
+ */
+public class ProportionalFanController {
+    private final FanCurve curve;
+    private final SignalSmoother smoother;
+    private final ServoRateLimiter limiter;
+
+    private int target = -1;
+
+    public ProportionalFanController(FanCurve curve, SignalSmoother smoother, ServoRateLimiter limiter) {
+        this.curve = curve;
+        this.smoother = smoother;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Feeds a raw sample taken at time (ms). Returns the servo position to send, or -1 if nothing
+     * needs to be sent.
+     */
+    public int update(long time, float value) {
+        target = curve.positionFor(smoother.add(time, value));
+        return limiter.offer(time, target) ? target : -1;
+    }
+
+    // position the curve asks for, whether or not it was sent
+    public int getTargetPosition() {
+        return target;
+    }
+
+    public FanCurve getCurve() {
+        return curve;
+    }
+
+    public void reset() {
+        smoother.reset();
+        limiter.reset();
+        target = -1;
+    }
+
+    @Override
+    public String toString() {
+        return limiter.toString();
+    }
+}
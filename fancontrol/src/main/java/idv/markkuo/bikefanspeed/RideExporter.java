@@ -0,0 +1,227 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams a RideRecorder file to CSV or FIT. The ride is read through a read-only mapping and
+ * written through one reused buffer, so the heap use does not depend on the ride length.
+ */
+public final class RideExporter {
+    // FIT timestamps count seconds from 1989-12-31 00:00 UTC
+    static final long FIT_EPOCH_OFFSET = 631065600L;
+
+    private static final int FIT_HEADER_SIZE = 14;
+    private static final int FIT_PROFILE_VERSION = 2100;
+    private static final int MESG_FILE_ID = 0;
+    private static final int MESG_RECORD = 20;
+    private static final int FILE_TYPE_ACTIVITY = 4;
+    private static final int MANUFACTURER_DEVELOPMENT = 255;
+    private static final int UINT16_INVALID = 0xffff;
+
+    // definition and data sizes of the two messages written
+    private static final int FILE_ID_DEFINITION_SIZE = 6 + 3 * 3;
+    private static final int FILE_ID_DATA_SIZE = 1 + 1 + 2 + 4;
+    private static final int RECORD_DEFINITION_SIZE = 6 + 3 * 3;
+    private static final int RECORD_DATA_SIZE = 1 + 4 + 2 + 2;
+
+    private static final int[] CRC_TABLE = {
+            0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+            0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400,
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private RideExporter() {
+    }
+
+    /**
+     * Writes "time,speed,power,fan,position" lines, one per record. Returns the number of records.
+     */
+    public static long writeCsv(File ride, OutputStream out) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(ride, "r")) {
+            MappedByteBuffer in = map(raf);
+            long count = recordCount(in);
+            byte[] buf = new byte[BUFFER_SIZE];
+            char[] chars = new char[24];
+            int n = put("time,speed,power,fan,position\n", buf, 0);
+            for (long i = 0; i < count; i++) {
+                // longest line is well below 128 bytes
+                if (n > BUFFER_SIZE - 128) {
+                    out.write(buf, 0, n);
+                    n = 0;
+                }
+                int offset = (int) (RideRecorder.HEADER_SIZE + i * RideRecorder.RECORD_SIZE);
+                n = put(chars, CharFormat.formatLong(in.getLong(offset), chars), buf, n);
+                buf[n++] = ',';
+                float speed = in.getFloat(offset + 8);
+                if (speed >= 0.0f)
+                    n = put(chars, CharFormat.formatFixed(speed, 2, chars), buf, n);
+                buf[n++] = ',';
+                float power = in.getFloat(offset + 12);
+                if (power >= 0.0f)
+                    n = put(chars, CharFormat.formatFixed(power, 0, chars), buf, n);
+                buf[n++] = ',';
+                n = put(chars, CharFormat.formatLong(in.get(offset + 16), chars), buf, n);
+                buf[n++] = ',';
+                int position = in.get(offset + 17) & 0xff;
+                if (position != 0xff)
+                    n = put(chars, CharFormat.formatLong(position, chars), buf, n);
+                buf[n++] = '\n';
+            }
+            out.write(buf, 0, n);
+            out.flush();
+            return count;
+        }
+    }
+
+    /**
+     * Writes a FIT activity file with a file_id message and one record message (timestamp, speed,
+     * power) per second of the ride. Returns the number of record messages.
+     */
+    public static long writeFit(File ride, OutputStream out) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(ride, "r")) {
+            MappedByteBuffer in = map(raf);
+            long count = recordCount(in);
+
+            // FIT records are per second, the header needs the size up front
+            long seconds = 0;
+            long lastSecond = Long.MIN_VALUE;
+            for (long i = 0; i < count; i++) {
+                long second = fitTime(in.getLong((int) (RideRecorder.HEADER_SIZE + i * RideRecorder.RECORD_SIZE)));
+                if (second != lastSecond) {
+                    seconds++;
+                    lastSecond = second;
+                }
+            }
+            long dataSize = FILE_ID_DEFINITION_SIZE + FILE_ID_DATA_SIZE + RECORD_DEFINITION_SIZE
+                    + seconds * RECORD_DATA_SIZE;
+
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n = 0;
+            buf[n++] = FIT_HEADER_SIZE;
+            buf[n++] = 0x10; // protocol 1.0
+            n = putU16(FIT_PROFILE_VERSION, buf, n);
+            n = putU32(dataSize, buf, n);
+            buf[n++] = '.';
+            buf[n++] = 'F';
+            buf[n++] = 'I';
+            buf[n++] = 'T';
+            n = putU16(crc(0, buf, 0, n), buf, n);
+
+            // file_id: type, manufacturer, time_created
+            n = putDefinition(0, MESG_FILE_ID, new int[]{0, 1, 0x00, 1, 2, 0x84, 4, 4, 0x86}, buf, n);
+            buf[n++] = 0;
+            buf[n++] = FILE_TYPE_ACTIVITY;
+            n = putU16(MANUFACTURER_DEVELOPMENT, buf, n);
+            n = putU32(count > 0 ? fitTime(in.getLong(RideRecorder.HEADER_SIZE)) : 0, buf, n);
+
+            // record: timestamp, speed (m/s * 1000), power (W)
+            n = putDefinition(1, MESG_RECORD, new int[]{253, 4, 0x86, 6, 2, 0x84, 7, 2, 0x84}, buf, n);
+
+            int crc = 0;
+            lastSecond = Long.MIN_VALUE;
+            for (long i = 0; i < count; i++) {
+                int offset = (int) (RideRecorder.HEADER_SIZE + i * RideRecorder.RECORD_SIZE);
+                long second = fitTime(in.getLong(offset));
+                if (second == lastSecond)
+                    continue;
+                lastSecond = second;
+                if (n > BUFFER_SIZE - RECORD_DATA_SIZE) {
+                    crc = crc(crc, buf, 0, n);
+                    out.write(buf, 0, n);
+                    n = 0;
+                }
+                float speed = in.getFloat(offset + 8);
+                float power = in.getFloat(offset + 12);
+                buf[n++] = 1;
+                n = putU32(second, buf, n);
+                n = putU16(speed >= 0.0f ? Math.min(Math.round(speed / 3.6f * 1000.0f), UINT16_INVALID - 1) : UINT16_INVALID, buf, n);
+                n = putU16(power >= 0.0f ? Math.min(Math.round(power), UINT16_INVALID - 1) : UINT16_INVALID, buf, n);
+            }
+            crc = crc(crc, buf, 0, n);
+            n = putU16(crc, buf, n);
+            out.write(buf, 0, n);
+            out.flush();
+            return seconds;
+        }
+    }
+
+    static long fitTime(long timeMs) {
+        return timeMs / 1000 - FIT_EPOCH_OFFSET;
+    }
+
+    // FIT CRC-16 over len bytes
+    static int crc(int crc, byte[] buf, int start, int len) {
+        for (int i = start; i < start + len; i++) {
+            int b = buf[i];
+            int tmp = CRC_TABLE[crc & 0xf];
+            crc = (crc >> 4) & 0x0fff;
+            crc = crc ^ tmp ^ CRC_TABLE[b & 0xf];
+            tmp = CRC_TABLE[crc & 0xf];
+            crc = (crc >> 4) & 0x0fff;
+            crc = crc ^ tmp ^ CRC_TABLE[(b >> 4) & 0xf];
+        }
+        return crc;
+    }
+
+    static MappedByteBuffer map(RandomAccessFile raf) throws IOException {
+        long size = raf.length();
+        if (size < RideRecorder.HEADER_SIZE)
+            throw new IOException("Not a ride file");
+        MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt(0) != RideRecorder.MAGIC || in.getShort(6) != RideRecorder.RECORD_SIZE)
+            throw new IOException("Not a ride file");
+        return in;
+    }
+
+    // records in the header, or as many as the file holds after a crash
+    static long recordCount(MappedByteBuffer in) {
+        long count = in.getLong(RideRecorder.COUNT_OFFSET);
+        return Math.max(0, Math.min(count, (in.capacity() - RideRecorder.HEADER_SIZE) / RideRecorder.RECORD_SIZE));
+    }
+
+    // fields are (number, size, base type) triples
+    private static int putDefinition(int localType, int globalType, int[] fields, byte[] buf, int n) {
+        buf[n++] = (byte) (0x40 | localType);
+        buf[n++] = 0;
+        buf[n++] = 0; // little endian
+        n = putU16(globalType, buf, n);
+        buf[n++] = (byte) (fields.length / 3);
+        for (int field : fields)
+            buf[n++] = (byte) field;
+        return n;
+    }
+
+    private static int putU16(int value, byte[] buf, int n) {
+        buf[n++] = (byte) value;
+        buf[n++] = (byte) (value >>> 8);
+        return n;
+    }
+
+    private static int putU32(long value, byte[] buf, int n) {
+        buf[n++] = (byte) value;
+        buf[n++] = (byte) (value >>> 8);
+        buf[n++] = (byte) (value >>> 16);
+        buf[n++] = (byte) (value >>> 24);
+        return n;
+    }
+
+    private static int put(String s, byte[] buf, int n) {
+        for (int i = 0; i < s.length(); i++)
+            buf[n++] = (byte) s.charAt(i);
+        return n;
+    }
+
+    private static int put(char[] chars, int len, byte[] buf, int n) {
+        for (int i = 0; i < len; i++)
+            buf[n++] = (byte) chars[i];
+        return n;
+    }
+}
@@ -0,0 +1,300 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A min/max/mean index of a ride at several resolutions, so a chart of any part of the ride at
+ * any zoom only reads about as many buckets as it has pixels.
+ *
+ * <pre>
+ * header (24 bytes): magic "BFSP" | version (u16) | level count (u16) | start time ms (i64) | end time ms (i64)
+ * level (16 bytes):  bucket ms (i64) | bucket count (i64)
+ * bucket (32 bytes): speed min, max, mean (f32) | power min, max, mean (f32) | fan mean (f32)
+ *                    | fan min (u8) | fan max (u8) | samples (u16)
+ * </pre>
+ *
+ * Little endian like the ride file. Each level is an array of fixed width buckets starting at the
+ * ride's first record, the levels follow each other after the level table. A bucket without
+ * samples is a gap; speed and power are NaN in a bucket where they were never known.
+ *
+ * build() makes one pass over the mapped ride and writes into a mapped index, and open() only
+ * maps the index, so neither depends on the ride length for heap.
+ */
+public final class RidePyramid {
+    public static final int MAGIC = 0x50534642; // "BFSP" read as little endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+    public static final int LEVEL_SIZE = 16;
+    public static final int BUCKET_SIZE = 32;
+    // 1 s, 10 s, 1 min and 10 min
+    public static final long[] DEFAULT_LEVELS_MS = {1000, 10000, 60000, 600000};
+    // a clock jump in the ride must not make a huge index: 2^22 s is about 48 days
+    static final long MAX_BUCKETS = 1 << 22;
+
+    private static final int SAMPLES_OFFSET = 30;
+
+    public enum Series {
+        SPEED(0),
+        POWER(12),
+        FAN(-1);
+
+        private final int offset;
+
+        Series(int offset) {
+            this.offset = offset;
+        }
+    }
+
+    private final MappedByteBuffer in;
+    private final long start;
+    private final long end;
+    private final long[] bucketMs;
+    private final long[] bucketCount;
+    private final long[] levelOffset;
+
+    private RidePyramid(MappedByteBuffer in) throws IOException {
+        this.in = in;
+        if (in.capacity() < HEADER_SIZE || in.getInt(0) != MAGIC || in.getShort(4) != VERSION)
+            throw new IOException("Not a ride index");
+        int levels = in.getShort(6);
+        start = in.getLong(8);
+        end = in.getLong(16);
+        bucketMs = new long[levels];
+        bucketCount = new long[levels];
+        levelOffset = new long[levels];
+        long offset = HEADER_SIZE + (long) levels * LEVEL_SIZE;
+        for (int l = 0; l < levels; l++) {
+            bucketMs[l] = in.getLong(HEADER_SIZE + l * LEVEL_SIZE);
+            bucketCount[l] = in.getLong(HEADER_SIZE + l * LEVEL_SIZE + 8);
+            levelOffset[l] = offset;
+            offset += bucketCount[l] * BUCKET_SIZE;
+        }
+        if (offset > in.capacity())
+            throw new IOException("Truncated ride index");
+    }
+
+    /**
+     * Maps an index written by build().
+     */
+    public static RidePyramid open(File index) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(index, "r")) {
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            return new RidePyramid(in);
+        }
+    }
+
+    /**
+     * Indexes a RideRecorder file with the DEFAULT_LEVELS_MS. Returns the number of records.
+     */
+    public static long build(File ride, File index) throws IOException {
+        return build(ride, index, DEFAULT_LEVELS_MS);
+    }
+
+    /**
+     * Indexes a ride with buckets of the given widths (ms), finest first, in one pass over the
+     * records. Records out of order go to the bucket being filled.
+     */
+    public static long build(File ride, File index, long[] levelsMs) throws IOException {
+        try (RandomAccessFile rideFile = new RandomAccessFile(ride, "r");
+             RandomAccessFile indexFile = new RandomAccessFile(index, "rw")) {
+            MappedByteBuffer records = RideExporter.map(rideFile);
+            long count = RideExporter.recordCount(records);
+            int levels = levelsMs.length;
+            long start = count > 0 ? records.getLong(RideRecorder.HEADER_SIZE) : 0;
+            long end = count > 0 ? records.getLong((int) (RideRecorder.HEADER_SIZE + (count - 1) * RideRecorder.RECORD_SIZE)) : 0;
+            end = Math.max(start, end);
+
+            long[] buckets = new long[levels];
+            long size = HEADER_SIZE + (long) levels * LEVEL_SIZE;
+            for (int l = 0; l < levels; l++) {
+                if (levelsMs[l] <= 0 || (l > 0 && levelsMs[l] <= levelsMs[l - 1]))
+                    throw new IllegalArgumentException("Levels must be ascending");
+                buckets[l] = count > 0 ? (end - start) / levelsMs[l] + 1 : 0;
+                if (buckets[l] > MAX_BUCKETS)
+                    throw new IOException("Ride spans " + (end - start) + "ms");
+                size += buckets[l] * BUCKET_SIZE;
+            }
+            // a new file reads as zeros, so buckets never filled are gaps
+            indexFile.setLength(0);
+            indexFile.setLength(size);
+            MappedByteBuffer out = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(0, MAGIC);
+            out.putShort(4, (short) VERSION);
+            out.putShort(6, (short) levels);
+            out.putLong(8, start);
+            out.putLong(16, end);
+            long offset = HEADER_SIZE + (long) levels * LEVEL_SIZE;
+            Accumulator[] acc = new Accumulator[levels];
+            for (int l = 0; l < levels; l++) {
+                out.putLong(HEADER_SIZE + l * LEVEL_SIZE, levelsMs[l]);
+                out.putLong(HEADER_SIZE + l * LEVEL_SIZE + 8, buckets[l]);
+                acc[l] = new Accumulator(out, offset, levelsMs[l], buckets[l]);
+                offset += buckets[l] * BUCKET_SIZE;
+            }
+
+            for (long i = 0; i < count; i++) {
+                int r = (int) (RideRecorder.HEADER_SIZE + i * RideRecorder.RECORD_SIZE);
+                long time = records.getLong(r) - start;
+                float speed = records.getFloat(r + 8);
+                float power = records.getFloat(r + 12);
+                int fan = records.get(r + 16);
+                for (Accumulator a : acc)
+                    a.add(time, speed, power, fan);
+            }
+            for (Accumulator a : acc)
+                a.flush();
+            out.force();
+            return count;
+        }
+    }
+
+    public long getStartTime() {
+        return start;
+    }
+
+    public long getEndTime() {
+        return end;
+    }
+
+    public int getLevelCount() {
+        return bucketMs.length;
+    }
+
+    public long getBucketMs(int level) {
+        return bucketMs[level];
+    }
+
+    public long getBucketCount(int level) {
+        return bucketCount[level];
+    }
+
+    /**
+     * The finest level with at most maxPoints buckets from time from to time to (ms since the
+     * epoch), or the coarsest one.
+     */
+    public int levelFor(long from, long to, int maxPoints) {
+        long span = Math.max(0, to - from);
+        for (int l = 0; l < bucketMs.length; l++) {
+            if (span / bucketMs[l] + 1 <= maxPoints)
+                return l;
+        }
+        return bucketMs.length - 1;
+    }
+
+    /**
+     * Copies the buckets of level covering from..to into the arrays, at most as many as they hold.
+     * times gets the start of each bucket; a gap, or a value never known, reads as NaN. Returns
+     * the number of buckets copied. Allocation free.
+     */
+    public int read(int level, Series series, long from, long to, long[] times, float[] min, float[] max, float[] mean) {
+        long width = bucketMs[level];
+        long first = Math.max(0, floorDiv(from - start, width));
+        long last = Math.min(bucketCount[level] - 1, floorDiv(to - start, width));
+        int n = 0;
+        for (long b = first; b <= last && n < times.length; b++, n++) {
+            int offset = (int) (levelOffset[level] + b * BUCKET_SIZE);
+            times[n] = start + b * width;
+            if (in.getShort(offset + SAMPLES_OFFSET) == 0) {
+                min[n] = max[n] = mean[n] = Float.NaN;
+            } else if (series == Series.FAN) {
+                min[n] = in.get(offset + 28);
+                max[n] = in.get(offset + 29);
+                mean[n] = in.getFloat(offset + 24);
+            } else {
+                min[n] = in.getFloat(offset + series.offset);
+                max[n] = in.getFloat(offset + series.offset + 4);
+                mean[n] = in.getFloat(offset + series.offset + 8);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append((end - start) / 1000).append("s");
+        for (int l = 0; l < bucketMs.length; l++)
+            sb.append(", ").append(bucketCount[l]).append(" x ").append(bucketMs[l]).append("ms");
+        return sb.toString();
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    // the bucket being filled at one level
+    private static final class Accumulator {
+        private final MappedByteBuffer out;
+        private final long offset;
+        private final long width;
+        private final long buckets;
+
+        private long bucket = -1;
+        private int samples;
+        private float speedMin, speedMax, powerMin, powerMax;
+        private double speedSum, powerSum;
+        private int speeds, powers;
+        private int fanMin, fanMax;
+        private long fanSum;
+
+        Accumulator(MappedByteBuffer out, long offset, long width, long buckets) {
+            this.out = out;
+            this.offset = offset;
+            this.width = width;
+            this.buckets = buckets;
+        }
+
+        void add(long time, float speed, float power, int fan) {
+            long b = Math.min(Math.max(time / width, bucket), buckets - 1);
+            if (b != bucket) {
+                flush();
+                bucket = b;
+                samples = speeds = powers = 0;
+                speedSum = powerSum = 0.0;
+                fanSum = 0;
+                fanMin = Integer.MAX_VALUE;
+                fanMax = Integer.MIN_VALUE;
+            }
+            samples++;
+            if (speed >= 0.0f) {
+                speedMin = speeds == 0 ? speed : Math.min(speedMin, speed);
+                speedMax = speeds == 0 ? speed : Math.max(speedMax, speed);
+                speedSum += speed;
+                speeds++;
+            }
+            if (power >= 0.0f) {
+                powerMin = powers == 0 ? power : Math.min(powerMin, power);
+                powerMax = powers == 0 ? power : Math.max(powerMax, power);
+                powerSum += power;
+                powers++;
+            }
+            fanMin = Math.min(fanMin, fan);
+            fanMax = Math.max(fanMax, fan);
+            fanSum += fan;
+        }
+
+        void flush() {
+            if (bucket < 0)
+                return;
+            int o = (int) (offset + bucket * BUCKET_SIZE);
+            out.putFloat(o, speeds > 0 ? speedMin : Float.NaN);
+            out.putFloat(o + 4, speeds > 0 ? speedMax : Float.NaN);
+            out.putFloat(o + 8, speeds > 0 ? (float) (speedSum / speeds) : Float.NaN);
+            out.putFloat(o + 12, powers > 0 ? powerMin : Float.NaN);
+            out.putFloat(o + 16, powers > 0 ? powerMax : Float.NaN);
+            out.putFloat(o + 20, powers > 0 ? (float) (powerSum / powers) : Float.NaN);
+            out.putFloat(o + 24, (float) fanSum / samples);
+            out.put(o + 28, (byte) fanMin);
+            out.put(o + 29, (byte) fanMax);
+            out.putShort(o + SAMPLES_OFFSET, (short) Math.min(samples, 0xffff));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends fixed width ride records to a memory-mapped file.
+ *
+ * <pre>
+ * header (16 bytes): magic "BFSR" | version (u16) | record size (u16) | record count (u64)
+ * record (20 bytes): time ms (i64) | speed km/h (f32) | power W (f32) | fan (u8) | position (u8) | 0 (u16)
+ * </pre>
+ *
+ * All values are little endian, speed and power are negative when there is no sample yet. The
+ * record count in the header is updated after every record, so a reader never sees a torn one.
+ *
+ * The mapping grows in chunks and append() does not allocate. The kernel owns the mapped pages,
+ * so a crash of the app loses nothing; the mapping is also forced to disk whenever a page fills
+ * up, so losing the whole device costs at most one page of records.
+ */
+public class RideRecorder implements Closeable {
+    public static final int MAGIC = 0x52534642; // "BFSR" read as little endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 20;
+    static final int COUNT_OFFSET = 8;
+
+    private static final int PAGE_SIZE = 4096;
+    // 1 MiB holds about 14 hours at 1 Hz, or 3.6 hours at 4 Hz
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final File file;
+    private final int chunkSize;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long count = 0;
+    // end of the last forced page
+    private int synced = 0;
+
+    public RideRecorder(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    public RideRecorder(File file, int chunkSize) throws IOException {
+        if (chunkSize < PAGE_SIZE || chunkSize % PAGE_SIZE != 0)
+            throw new IllegalArgumentException("Chunk size must be a multiple of " + PAGE_SIZE);
+        this.file = file;
+        this.chunkSize = chunkSize;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            map(chunkSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, (short) VERSION);
+        buffer.putShort(6, (short) RECORD_SIZE);
+        buffer.putLong(COUNT_OFFSET, 0);
+    }
+
+    /**
+     * Appends a record. Called from the sensor threads.
+     *
+     * @param time     ms since the epoch
+     * @param speed    km/h, negative if unknown
+     * @param power    W, negative if unknown
+     * @param fan      current fan speed
+     * @param position current servo position, negative if unknown
+     */
+    public synchronized void append(long time, float speed, float power, FanSpeed fan, int position) throws IOException {
+        if (buffer == null)
+            throw new IOException("Recorder closed");
+        int offset = (int) (HEADER_SIZE + count * RECORD_SIZE);
+        if (offset + RECORD_SIZE > buffer.capacity())
+            map(buffer.capacity() + chunkSize);
+        buffer.putLong(offset, time);
+        buffer.putFloat(offset + 8, speed);
+        buffer.putFloat(offset + 12, power);
+        buffer.put(offset + 16, (byte) fan.ordinal());
+        buffer.put(offset + 17, (byte) (position < 0 ? 0xff : Math.min(position, 254)));
+        buffer.putShort(offset + 18, (short) 0);
+        buffer.putLong(COUNT_OFFSET, ++count);
+        if (offset + RECORD_SIZE - synced >= PAGE_SIZE) {
+            buffer.force();
+            synced = offset + RECORD_SIZE;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Forces the records to disk and trims the unused part of the last chunk.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer == null)
+            return;
+        try {
+            buffer.force();
+            buffer = null;
+            channel.truncate(HEADER_SIZE + count * RECORD_SIZE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void map(int size) throws IOException {
+        // mapping past the end of the file grows it
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
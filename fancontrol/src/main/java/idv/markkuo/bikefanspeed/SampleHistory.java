@@ -0,0 +1,85 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last few thousand samples of one sensor with the fan speed at each, for a live chart: a
+ * fixed ring of primitive slots written by the sensor processing thread and copied out by the UI
+ * thread, neither of them allocating or locking.
+ *
+ * A reader copies while the writer may go on, so copy() leaves out the oldest quarter of the ring,
+ * which the writer would have to lap the whole ring to reach, and checks the write count after the
+ * copy.
+ */
+public class SampleHistory {
+    private final int mask;
+    private final long[] times;
+    private final float[] values;
+    private final byte[] fans;
+    // samples written, published after the slot
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SampleHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 1;
+        mask = size - 1;
+        times = new long[size];
+        values = new float[size];
+        fans = new byte[size];
+    }
+
+    /**
+     * Adds a sample, time in ms and value < 0 if unknown. Single writer thread.
+     */
+    public void add(long time, float value, FanSpeed fan) {
+        long w = written.get();
+        int i = (int) w & mask;
+        times[i] = time;
+        values[i] = value;
+        fans[i] = (byte) fan.ordinal();
+        written.lazySet(w + 1);
+    }
+
+    // the most copy() returns
+    public int getCapacity() {
+        return (mask + 1) - (mask + 1) / 4;
+    }
+
+    // changes with every sample, so a reader can tell whether there is anything new
+    public long getWriteCount() {
+        return written.get();
+    }
+
+    // time of the newest sample, -1 if there is none
+    public long getLastTime() {
+        long w = written.get();
+        return w > 0 ? times[(int) (w - 1) & mask] : -1;
+    }
+
+    /**
+     * Copies the samples from time since on, oldest first, at most as many as the arrays hold;
+     * fans gets FanSpeed ordinals. Returns the number copied. Any thread, allocation free.
+     */
+    public int copy(long since, long[] times, float[] values, byte[] fans) {
+        int max = Math.min(Math.min(times.length, values.length), Math.min(fans.length, getCapacity()));
+        while (true) {
+            long w = written.get();
+            // walk back to the first sample in range
+            long first = w;
+            while (first > 0 && w - first < max && this.times[(int) (first - 1) & mask] >= since)
+                first--;
+            int n = (int) (w - first);
+            for (int k = 0; k < n; k++) {
+                int i = (int) (first + k) & mask;
+                times[k] = this.times[i];
+                values[k] = this.values[i];
+                fans[k] = this.fans[i];
+            }
+            // lapped during the copy, only possible after a very long stall
+            if (written.get() - first <= mask + 1)
+                return n;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The thread which runs the whole decision path for sensor events taken from a SensorRing, so the
+ * ANT+ plugin threads only queue a few numbers.
+ *
+ * It also keeps the budget of the processing: the CPU time and bytes allocated by this thread for
+ * every BUDGET_EVENTS events, as read by a Meter. The thread waits parked when there is nothing to
+ * do, so an idle service costs no CPU; with timeouts on its TimerWheel it wakes up every tick to
+ * advance the wheel, and the timeouts run on this thread too.
+ */
+public class SensorProcessor implements Runnable {
+    public static final int BUDGET_EVENTS = 1000;
+
+    // events handed to the consumer in one go before checking for stop
+    private static final int BATCH = 64;
+
+    /**
+     * Per thread counters, read on the processing thread. Either may return -1 if unsupported.
+     */
+    public interface Meter {
+        long cpuNanos();
+
+        long allocatedBytes();
+    }
+
+    private final SensorRing ring;
+    private final SensorRing.Consumer consumer;
+    private final Meter meter;
+    // null without timeouts
+    private final TimerWheel wheel;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile boolean parked = false;
+
+    // written by the processing thread only
+    private volatile long events = 0;
+    private long windowStart = 0;
+    private long windowCpu;
+    private long windowAlloc;
+    // cost of the last and the most expensive window of BUDGET_EVENTS events
+    private volatile long lastCpu = -1;
+    private volatile long lastAlloc = -1;
+    private volatile long maxCpu = -1;
+    private volatile long maxAlloc = -1;
+
+    /**
+     * @param priority Java priority of the thread; on Android Thread.NORM_PRIORITY - 1 maps to
+     *                 THREAD_PRIORITY_BACKGROUND
+     */
+    public SensorProcessor(SensorRing ring, SensorRing.Consumer consumer, Meter meter, String name,
+                           int priority) {
+        this(ring, consumer, meter, null, name, priority);
+    }
+
+    /**
+     * Same as above, advancing wheel (in System.nanoTime() ms) on the processing thread.
+     */
+    public SensorProcessor(SensorRing ring, SensorRing.Consumer consumer, Meter meter, TimerWheel wheel,
+                           String name, int priority) {
+        this.ring = ring;
+        this.consumer = consumer;
+        this.meter = meter;
+        this.wheel = wheel;
+        thread = new Thread(this, name);
+        thread.setPriority(priority);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the thread after the events already queued, waiting up to timeoutMs for it.
+     */
+    public void stop(long timeoutMs) {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an event and wakes the thread up if it waits. Allocation free, any thread.
+     */
+    public boolean offer(int source, int kind, long time, float value, long a, long b) {
+        boolean queued = ring.offer(source, kind, time, value, a, b);
+        if (parked)
+            LockSupport.unpark(thread);
+        return queued;
+    }
+
+    /**
+     * Queues an event which must not be dropped, e.g. a sensor going DEAD, waiting while the ring
+     * is full. Returns false if the processor stopped first.
+     */
+    public boolean put(int source, int kind, long time) {
+        while (running) {
+            if (ring.tryOffer(source, kind, time, 0.0f, 0, 0)) {
+                if (parked)
+                    LockSupport.unpark(thread);
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        startWindow();
+        while (true) {
+            // before the events, so a timeout scheduled by one after an idle park starts from now
+            if (wheel != null)
+                wheel.advance(now());
+            int n = ring.drain(consumer, BATCH);
+            if (n > 0) {
+                account(n);
+                continue;
+            }
+            if (!running)
+                break;
+            parked = true;
+            // an offer() after this check sees parked and unparks us
+            if (ring.isEmpty() && running) {
+                if (wheel != null && !wheel.isEmpty())
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wheel.getTickMs()));
+                else
+                    LockSupport.park(this);
+            }
+            parked = false;
+        }
+    }
+
+    public long getEventCount() {
+        return events;
+    }
+
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    // CPU ns of the last BUDGET_EVENTS events, -1 before the first window or if unsupported
+    public long getCpuNanosPerBudget() {
+        return lastCpu;
+    }
+
+    // bytes allocated by the last BUDGET_EVENTS events, -1 before the first window or if unsupported
+    public long getAllocatedPerBudget() {
+        return lastAlloc;
+    }
+
+    public long getMaxCpuNanosPerBudget() {
+        return maxCpu;
+    }
+
+    public long getMaxAllocatedPerBudget() {
+        return maxAlloc;
+    }
+
+    /**
+     * The clock of the wheel, ms.
+     */
+    public static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public boolean isAlive() {
+        return thread.isAlive();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d events, %d dropped, per %d: cpu %s (max %s) alloc %s (max %s)",
+                events, ring.getDroppedCount(), BUDGET_EVENTS, formatNanos(lastCpu),
+                formatNanos(maxCpu), formatBytes(lastAlloc), formatBytes(maxAlloc));
+    }
+
+    // ends a window every BUDGET_EVENTS events; batches may straddle the boundary
+    private void account(int n) {
+        long count = events + n;
+        events = count;
+        if (count - windowStart < BUDGET_EVENTS)
+            return;
+        long cpu = meter.cpuNanos();
+        long alloc = meter.allocatedBytes();
+        long windowEvents = count - windowStart;
+        if (cpu >= 0 && windowCpu >= 0) {
+            lastCpu = (cpu - windowCpu) * BUDGET_EVENTS / windowEvents;
+            maxCpu = Math.max(maxCpu, lastCpu);
+        }
+        if (alloc >= 0 && windowAlloc >= 0) {
+            lastAlloc = (alloc - windowAlloc) * BUDGET_EVENTS / windowEvents;
+            maxAlloc = Math.max(maxAlloc, lastAlloc);
+        }
+        windowStart = count;
+        windowCpu = cpu;
+        windowAlloc = alloc;
+    }
+
+    private void startWindow() {
+        windowStart = events;
+        windowCpu = meter.cpuNanos();
+        windowAlloc = meter.allocatedBytes();
+    }
+
+    private static String formatNanos(long ns) {
+        return ns < 0 ? "n/a" : String.format(Locale.US, "%.2fms", ns / 1e6);
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes < 0 ? "n/a" : String.format(Locale.US, "%.1fKB", bytes / 1024.0);
+    }
+}
@@ -0,0 +1,121 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands sensor events from the ANT+ plugin threads to the processing thread: a fixed ring of
+ * primitive slots, so passing an event allocates nothing and the plugin thread only copies a few
+ * numbers.
+ *
+ * Producers take a short lock among themselves, since speed and power arrive on different plugin
+ * threads; the single consumer does not lock. When the ring is full the new event is dropped and
+ * counted, the consumer is then far behind anyway.
+ */
+public class SensorRing {
+    // kinds of event
+    public static final int SPEED = 0;
+    // a = event time in 1/1024 s, b = cumulative wheel revolutions
+    public static final int RAW_SPEED = 1;
+    public static final int POWER = 2;
+    // the sensor's channel went DEAD, only time is set
+    public static final int SPEED_LOST = 3;
+    public static final int POWER_LOST = 4;
+
+    public interface Consumer {
+        /**
+         * One event, on the consumer thread. source tells the sensors of different riders apart,
+         * queued is the System.nanoTime() of offer().
+         */
+        void onEvent(int source, int kind, long time, float value, long a, long b, long queued);
+    }
+
+    private final int mask;
+    private final int[] sources;
+    private final int[] kinds;
+    private final long[] times;
+    private final float[] values;
+    private final long[] as;
+    private final long[] bs;
+    private final long[] queued;
+
+    // next slot to read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, written by producers holding producerLock
+    private final AtomicLong tail = new AtomicLong();
+    private final Object producerLock = new Object();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SensorRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        sources = new int[size];
+        kinds = new int[size];
+        times = new long[size];
+        values = new float[size];
+        as = new long[size];
+        bs = new long[size];
+        queued = new long[size];
+    }
+
+    /**
+     * Queues an event, returns false if the ring is full and it was dropped.
+     */
+    public boolean offer(int source, int kind, long time, float value, long a, long b) {
+        if (tryOffer(source, kind, time, value, a, b))
+            return true;
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    // same as offer() without counting a drop, for a caller which tries again
+    boolean tryOffer(int source, int kind, long time, float value, long a, long b) {
+        synchronized (producerLock) {
+            long t = tail.get();
+            if (t - head.get() > mask)
+                return false;
+            int i = (int) t & mask;
+            sources[i] = source;
+            kinds[i] = kind;
+            times[i] = time;
+            values[i] = value;
+            as[i] = a;
+            bs[i] = b;
+            queued[i] = System.nanoTime();
+            // publishes the slot to the consumer
+            tail.lazySet(t + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Hands up to max queued events to consumer, on the consumer thread. Returns how many.
+     */
+    public int drain(Consumer consumer, int max) {
+        long h = head.get();
+        long available = tail.get() - h;
+        int n = (int) Math.min(available, max);
+        for (int k = 0; k < n; k++) {
+            int i = (int) (h + k) & mask;
+            consumer.onEvent(sources[i], kinds[i], times[i], values[i], as[i], bs[i], queued[i]);
+            // frees the slot for the producers
+            head.lazySet(h + k + 1);
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // events dropped because the ring was full
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
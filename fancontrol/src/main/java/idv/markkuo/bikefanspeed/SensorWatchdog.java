@@ -0,0 +1,112 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices a sensor which stopped sending without its channel going DEAD, e.g. a speed sensor
+ * asleep after the rider stopped: after silenceMs without a sample the listener is told, and told
+ * again after every further silenceMs for as long as it returns true, so the fan coasts down one
+ * level at a time.
+ *
+ * Every sample only moves the timeout on a TimerWheel shared by all sensors, O(1). The wheel's
+ * thread calls onSample() and the listener; the silence may be changed from any thread.
+ */
+public class SensorWatchdog extends TimerWheel.Timeout {
+    // default silence before the fan steps down, ms
+    public static final long DEFAULT_SILENCE_MS = 10000;
+
+    public interface Listener {
+        /**
+         * The sensor was silent for another silence period (steps of them so far). Returns true
+         * to be called again after the next one.
+         */
+        boolean onSilent(SensorWatchdog watchdog, int steps);
+    }
+
+    private final String name;
+    private final TimerWheel wheel;
+    private final Listener listener;
+    // 0 turns the watchdog off
+    private volatile long silenceMs;
+    private volatile boolean closed = false;
+
+    // estTimestamp of the last sample, -1 before the first
+    private volatile long lastTimestamp = -1;
+    // silence periods since the last sample, wheel thread only
+    private int steps = 0;
+    // times the sensor went silent
+    private volatile long silentCount = 0;
+
+    public SensorWatchdog(String name, TimerWheel wheel, long silenceMs, Listener listener) {
+        this.name = name;
+        this.wheel = wheel;
+        this.silenceMs = silenceMs;
+        this.listener = listener;
+    }
+
+    /**
+     * A sample with its estTimestamp arrived, restarts the silence.
+     */
+    public void onSample(long timestamp) {
+        lastTimestamp = timestamp;
+        steps = 0;
+        long silence = silenceMs;
+        if (silence > 0 && !closed)
+            wheel.schedule(this, silence);
+        else
+            wheel.cancel(this);
+    }
+
+    /**
+     * Starts the silence without a sample, e.g. after a restart with the fan running. On the
+     * wheel's thread, or before it runs.
+     */
+    public void arm() {
+        steps = 0;
+        long silence = silenceMs;
+        if (silence > 0 && !closed)
+            wheel.schedule(this, silence);
+    }
+
+    // takes effect with the next sample
+    public void setSilence(long silenceMs) {
+        this.silenceMs = silenceMs;
+    }
+
+    public long getSilence() {
+        return silenceMs;
+    }
+
+    // no more calls to the listener, e.g. the sensor was released
+    public void close() {
+        closed = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public long getSilentCount() {
+        return silentCount;
+    }
+
+    @Override
+    protected void expired(long now) {
+        long silence = silenceMs;
+        if (closed || silence <= 0)
+            return;
+        if (steps++ == 0)
+            silentCount++;
+        if (listener.onSilent(this, steps))
+            wheel.schedule(this, silence);
+    }
+
+    @Override
+    public String toString() {
+        return name + " silence:" + TimeUnit.MILLISECONDS.toSeconds(silenceMs) + "s, went silent:" + silentCount;
+    }
+}
@@ -0,0 +1,117 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One servo link per endpoint (transport, host and port), shared by every fan sending to it: the
+ * fans behind one Pi use one keep-alive HTTP connection or one UDP socket, whatever the number
+ * of riders. Fans take turns on a link, a move is never interleaved with another fan's move.
+ * Each link has a circuit breaker, so once a Pi is found down its fans stop waiting on it.
+ */
+public class ServoConnectionPool implements Closeable {
+    public static final String HTTP = "http";
+    public static final String UDP = "udp";
+
+    private final Map<String, Entry> links = new HashMap<>();
+
+    /**
+     * An actuator for the servo on pin of the endpoint. Closing it releases the link, which is
+     * closed with its last actuator.
+     */
+    public synchronized FanActuator acquire(String transport, String host, int port, int pin) {
+        if (pin < 0 || pin > 255)
+            throw new IllegalArgumentException("Invalid servo pin:" + pin);
+        String key = transport + "://" + host + ":" + port;
+        Entry entry = links.get(key);
+        if (entry == null) {
+            ServoLink link;
+            if (UDP.equals(transport))
+                link = new UdpServoActuator(host, port, pin);
+            else if (HTTP.equals(transport))
+                link = new ServoHttpClient(host, port, pin);
+            else
+                throw new IllegalArgumentException("Unknown servo transport:" + transport);
+            entry = new Entry(key, link);
+            links.put(key, entry);
+        }
+        entry.refs++;
+        return new GuardedActuator(new PooledActuator(entry, pin), entry.breaker);
+    }
+
+    // number of endpoints in use
+    public synchronized int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * Closes every link. Actuators still in use open theirs again on their next command.
+     */
+    @Override
+    public void close() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(links.values());
+            links.clear();
+        }
+        for (Entry entry : entries) {
+            synchronized (entry.link) {
+                entry.link.close();
+            }
+        }
+    }
+
+    private void release(Entry entry) {
+        synchronized (this) {
+            if (--entry.refs > 0 || links.get(entry.key) != entry)
+                return;
+            links.remove(entry.key);
+        }
+        synchronized (entry.link) {
+            entry.link.close();
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final ServoLink link;
+        final CircuitBreaker breaker = new CircuitBreaker();
+        // guarded by the pool
+        int refs = 0;
+
+        Entry(String key, ServoLink link) {
+            this.key = key;
+            this.link = link;
+        }
+    }
+
+    private class PooledActuator implements FanActuator {
+        private final Entry entry;
+        private final int pin;
+        private boolean closed = false;
+
+        PooledActuator(Entry entry, int pin) {
+            this.entry = entry;
+            this.pin = pin;
+        }
+
+        @Override
+        public void setPositions(int[] positions, int count) throws IOException {
+            synchronized (entry.link) {
+                entry.link.setPositions(pin, positions, count);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            release(entry);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Minimal HTTP/1.1 client for the servo endpoint on the Pi (GET /servo?pin=X&pos=Y).
+ *
+ * It keeps one keep-alive connection open and reuses it for every command, drains each response
+ * so the connection stays usable, and pipelines multi-step moves: all requests of a move are
+ * written back to back before the responses are read. Not thread safe; it is meant to be owned
+ * by the single fan dispatcher thread, or shared through ServoConnectionPool.
+ */
+public class ServoHttpClient implements FanActuator, ServoLink {
+    public static final int CONNECT_TIMEOUT_MS = 1000;
+    public static final int READ_TIMEOUT_MS = 1500;
+
+    private static final int MAX_LINE = 1024;
+
+    private final String host;
+    private final int port;
+    private final int pin;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    // request bytes around pin and position: "GET /servo?pin=" ... "&pos=" ... " HTTP/1.1\r\nHost: ...\r\n\r\n"
+    private final byte[] requestPrefix;
+    private final byte[] requestPos;
+    private final byte[] requestSuffix;
+    private final byte[] requestBuf;
+    private final byte[] lineBuf = new byte[MAX_LINE];
+    private final byte[] drainBuf = new byte[512];
+    private final int[] single = new int[1];
+
+    private Socket socket = null;
+    private InputStream in = null;
+    private OutputStream out = null;
+    // the server asked to close the connection after the last response
+    private boolean closeRequested = false;
+
+    private int connectCount = 0;
+    private long requestCount = 0;
+
+    public ServoHttpClient(String host, int port, int pin) {
+        this(host, port, pin, CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+    }
+
+    public ServoHttpClient(String host, int port, int pin, int connectTimeout, int readTimeout) {
+        this.host = host;
+        this.port = port;
+        this.pin = pin;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        requestPrefix = ascii("GET /servo?pin=");
+        requestPos = ascii("&pos=");
+        requestSuffix = ascii(" HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nConnection: keep-alive\r\n\r\n");
+        requestBuf = new byte[requestPrefix.length + 11 + requestPos.length + 11 + requestSuffix.length];
+    }
+
+    /**
+     * Sets a single servo position, in percent.
+     */
+    public void setPosition(int position) throws IOException {
+        single[0] = position;
+        setPositions(single, 1);
+    }
+
+    /**
+     * Sends count positions in one pipelined batch and waits for every response.
+     * Throws if the link failed or the servo did not return 200 for any of them.
+     */
+    @Override
+    public void setPositions(int[] positions, int count) throws IOException {
+        setPositions(pin, positions, count);
+    }
+
+    /**
+     * Same as setPositions(int[], int) for the servo on another pin of this endpoint.
+     */
+    @Override
+    public void setPositions(int pin, int[] positions, int count) throws IOException {
+        if (count <= 0)
+            return;
+        boolean reused = isConnected();
+        try {
+            send(pin, positions, count);
+        } catch (ServoStatusException e) {
+            throw e;
+        } catch (IOException e) {
+            disconnect();
+            // the server may have dropped an idle keep-alive connection, retry once on a fresh one
+            if (!reused)
+                throw e;
+            send(pin, positions, count);
+        }
+    }
+
+    // number of TCP connections opened so far
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    // number of HTTP requests sent so far
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    public boolean isConnected() {
+        return socket != null && !closeRequested;
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+
+    private void send(int pin, int[] positions, int count) throws IOException {
+        if (!isConnected())
+            connect();
+        for (int i = 0; i < count; i++)
+            out.write(requestBuf, 0, buildRequest(pin, positions[i]));
+        out.flush();
+        requestCount += count;
+
+        int failedStatus = 0;
+        int failedPosition = 0;
+        for (int i = 0; i < count; i++) {
+            int status = readResponse();
+            if (status != 200 && failedStatus == 0) {
+                failedStatus = status;
+                failedPosition = positions[i];
+            }
+        }
+        if (closeRequested)
+            disconnect();
+        if (failedStatus != 0)
+            throw new ServoStatusException(failedPosition, failedStatus);
+    }
+
+    private void connect() throws IOException {
+        disconnect();
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            s.setSoTimeout(readTimeout);
+            s.connect(new InetSocketAddress(host, port), connectTimeout);
+            in = new BufferedInputStream(s.getInputStream(), 1024);
+            out = new BufferedOutputStream(s.getOutputStream(), 1024);
+        } catch (IOException e) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        socket = s;
+        closeRequested = false;
+        connectCount++;
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+        closeRequested = false;
+    }
+
+    // writes the request for pin and position into requestBuf, returns its length
+    private int buildRequest(int pin, int position) {
+        int n = requestPrefix.length;
+        System.arraycopy(requestPrefix, 0, requestBuf, 0, n);
+        n = writeNumber(pin, n);
+        System.arraycopy(requestPos, 0, requestBuf, n, requestPos.length);
+        n = writeNumber(position, n + requestPos.length);
+        System.arraycopy(requestSuffix, 0, requestBuf, n, requestSuffix.length);
+        return n + requestSuffix.length;
+    }
+
+    // writes value in decimal into requestBuf at n, returns the end
+    private int writeNumber(int value, int n) {
+        long v = value;
+        if (v < 0) {
+            requestBuf[n++] = '-';
+            v = -v;
+        }
+        int start = n;
+        do {
+            requestBuf[n++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // digits were written backwards
+        for (int i = start, j = n - 1; i < j; i++, j--) {
+            byte t = requestBuf[i];
+            requestBuf[i] = requestBuf[j];
+            requestBuf[j] = t;
+        }
+        return n;
+    }
+
+    // reads one response and drains its body, returns the status code
+    private int readResponse() throws IOException {
+        int len = readLine();
+        // "HTTP/1.1 200 OK"
+        if (len < 12 || lineBuf[0] != 'H' || lineBuf[8] != ' ')
+            throw new IOException("Malformed status line");
+        int status = (lineBuf[9] - '0') * 100 + (lineBuf[10] - '0') * 10 + (lineBuf[11] - '0');
+        if (lineBuf[7] == '0')
+            closeRequested = true; // HTTP/1.0 closes by default
+
+        long contentLength = -1;
+        boolean chunked = false;
+        while ((len = readLine()) > 0) {
+            if (headerIs(len, "content-length"))
+                contentLength = parseLong(headerValue(len), len, 10);
+            else if (headerIs(len, "transfer-encoding"))
+                chunked = valueContains(len, "chunked");
+            else if (headerIs(len, "connection"))
+                closeRequested = valueContains(len, "close");
+        }
+
+        if (chunked) {
+            long size;
+            while ((size = parseLong(0, readLine(), 16)) > 0) {
+                skip(size);
+                readLine();
+            }
+            // trailers
+            while (readLine() > 0) {
+            }
+        } else if (contentLength >= 0) {
+            skip(contentLength);
+        } else if (status != 204 && status != 304 && status >= 200) {
+            // body runs until the server closes the connection
+            while (in.read(drainBuf) >= 0) {
+            }
+            closeRequested = true;
+        }
+        return status;
+    }
+
+    // reads a CRLF terminated line into lineBuf (without the line break), returns its length
+    private int readLine() throws IOException {
+        int len = 0;
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new IOException("Connection closed by servo endpoint");
+            if (c != '\r' && len < MAX_LINE)
+                lineBuf[len++] = (byte) c;
+        }
+        return len;
+    }
+
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            int r = in.read(drainBuf, 0, (int) Math.min(n, drainBuf.length));
+            if (r < 0)
+                throw new IOException("Connection closed by servo endpoint");
+            n -= r;
+        }
+    }
+
+    private boolean headerIs(int len, String name) {
+        int n = name.length();
+        if (len <= n || lineBuf[n] != ':')
+            return false;
+        for (int i = 0; i < n; i++) {
+            if (Character.toLowerCase((char) lineBuf[i]) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int headerValue(int len) {
+        int i = 0;
+        while (i < len && lineBuf[i] != ':')
+            i++;
+        i++;
+        while (i < len && lineBuf[i] == ' ')
+            i++;
+        return i;
+    }
+
+    private boolean valueContains(int len, String token) {
+        int n = token.length();
+        for (int i = headerValue(len); i + n <= len; i++) {
+            int j = 0;
+            while (j < n && Character.toLowerCase((char) lineBuf[i + j]) == token.charAt(j))
+                j++;
+            if (j == n)
+                return true;
+        }
+        return false;
+    }
+
+    private long parseLong(int from, int to, int radix) throws IOException {
+        long v = 0;
+        int i = from;
+        for (; i < to; i++) {
+            int d = Character.digit((char) lineBuf[i], radix);
+            if (d < 0)
+                break;
+            v = v * radix + d;
+        }
+        if (i == from)
+            throw new IOException("Malformed number in response");
+        return v;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    /**
+     * The servo endpoint answered with something other than 200.
+     */
+    public static class ServoStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int position;
+        public final int status;
+
+        ServoStatusException(int position, int status) {
+            super("Error:" + status);
+            this.position = position;
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Connection to one servo endpoint which drives the servos on several pins, so the fans behind
+ * the same Pi can share it.
+ *
+ * Implementations need not be thread safe; ServoConnectionPool serializes the fans using a link.
+ */
+public interface ServoLink extends Closeable {
+    /**
+     * Moves the servo on pin through count positions (in percent), in order.
+     * Throws if the commands could not be delivered.
+     */
+    void setPositions(int pin, int[] positions, int count) throws IOException;
+
+    @Override
+    void close();
+}
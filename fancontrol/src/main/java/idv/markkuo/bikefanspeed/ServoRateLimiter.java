@@ -0,0 +1,96 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Decides whether a new servo position is worth sending.
+ *
+ * A position is only emitted when it differs from the last emitted one by more than the deadband,
+ * and when the command budget allows it. The budget is a token bucket refilled at maxRate tokens
+ * per second holding at most one second worth of commands.
+ */
+public class ServoRateLimiter {
+    private final int deadband;
+    private final double maxRate;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+    private boolean started = false;
+    private int lastPosition = -1;
+
+    private long emitted = 0;
+    private long suppressedByDeadband = 0;
+    private long suppressedByBudget = 0;
+
+    /**
+     * @param deadband position change in percent below which nothing is sent
+     * @param maxRate  maximum commands per second
+     */
+    public ServoRateLimiter(int deadband, double maxRate) {
+        if (deadband < 0 || !(maxRate > 0.0))
+            throw new IllegalArgumentException("Invalid deadband or rate");
+        this.deadband = deadband;
+        this.maxRate = maxRate;
+        this.capacity = Math.max(1.0, maxRate);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Returns true if position should be sent now, at time (ms).
+     */
+    public boolean offer(long time, int position) {
+        refill(time);
+        if (lastPosition >= 0 && Math.abs(position - lastPosition) <= deadband) {
+            suppressedByDeadband++;
+            return false;
+        }
+        if (tokens < 1.0) {
+            suppressedByBudget++;
+            return false;
+        }
+        tokens -= 1.0;
+        lastPosition = position;
+        emitted++;
+        return true;
+    }
+
+    // last emitted position, or -1
+    public int getLastPosition() {
+        return lastPosition;
+    }
+
+    // forget the last position so the next one is always sent
+    public void reset() {
+        lastPosition = -1;
+    }
+
+    public long getEmittedCount() {
+        return emitted;
+    }
+
+    public long getSuppressedByDeadbandCount() {
+        return suppressedByDeadband;
+    }
+
+    public long getSuppressedByBudgetCount() {
+        return suppressedByBudget;
+    }
+
+    @Override
+    public String toString() {
+        return "emitted:" + emitted + ", within deadband:" + suppressedByDeadband
+                + ", over budget:" + suppressedByBudget;
+    }
+
+    private void refill(long time) {
+        if (!started) {
+            started = true;
+            lastRefill = time;
+            return;
+        }
+        long dt = time - lastRefill;
+        if (dt > 0) {
+            tokens = Math.min(capacity, tokens + dt * maxRate / 1000.0);
+            lastRefill = time;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package idv.markkuo.bikefanspeed;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the ride so far, updated with every speed and power sample in constant time and
+ * memory; no samples are kept.
+ *
+ * Averages are weighted by time: a sample counts for the time since the previous sample of its
+ * source, and a longer gap than MAX_GAP_MS (a sensor dropout, or the source not being decoded
+ * after a switch between speed and power) is not counted at all. Normalized power is the fourth
+ * root of the mean fourth power of a 30 s rolling power; the rolling power is exponentially
+ * weighted, which needs no window of samples. Time and energy at each fan speed go to the fan
+ * speed at the time of the sample.
+ *
+ * Thread safe: speed and power both come from the sensor processing thread, and the methods are
+ * synchronized because the UI and the notification read the stats meanwhile.
+ */
+public class SessionStats {
+    static final long MAX_GAP_MS = 5000;
+    static final long NP_WINDOW_MS = 30000;
+
+    private static final int LEVELS = FanSpeed.values().length;
+
+    private long samples = 0;
+
+    // speed, km/h
+    private long lastSpeedTime = -1;
+    private long speedTime = 0;
+    private double speedSum = 0.0;
+    private float maxSpeed = 0.0f;
+    private double distance = 0.0;
+
+    // power, W
+    private long lastPowerTime = -1;
+    private long powerTime = 0;
+    private double energy = 0.0;
+    private float maxPower = 0.0f;
+    private double rollingPower = 0.0;
+    private double rollingPower4Sum = 0.0;
+
+    // fan speed of the last sample of either source
+    private long lastTime = -1;
+    private FanSpeed lastFan = FanSpeed.FAN_STOP;
+    private final long[] fanTime = new long[LEVELS];
+    private final double[] fanEnergy = new double[LEVELS];
+
+    /**
+     * Adds a speed sample (km/h) taken at time (ms) while the fan was at fan.
+     */
+    public synchronized void onSpeed(long time, float speed, FanSpeed fan) {
+        if (speed < 0.0f)
+            return;
+        onFan(time, fan);
+        long dt = interval(lastSpeedTime, time);
+        lastSpeedTime = time;
+        maxSpeed = Math.max(maxSpeed, speed);
+        speedTime += dt;
+        speedSum += (double) speed * dt;
+        distance += (double) speed * dt / 3600000.0;
+    }
+
+    /**
+     * Adds a power sample (W) taken at time (ms) while the fan was at fan.
+     */
+    public synchronized void onPower(long time, float power, FanSpeed fan) {
+        if (power < 0.0f)
+            return;
+        onFan(time, fan);
+        long dt = interval(lastPowerTime, time);
+        lastPowerTime = time;
+        maxPower = Math.max(maxPower, power);
+        if (powerTime == 0)
+            rollingPower = power;
+        else
+            rollingPower += (1.0 - Math.exp(-(double) dt / NP_WINDOW_MS)) * (power - rollingPower);
+        powerTime += dt;
+        double joules = (double) power * dt / 1000.0;
+        energy += joules;
+        fanEnergy[fan.ordinal()] += joules;
+        double p2 = rollingPower * rollingPower;
+        rollingPower4Sum += p2 * p2 * dt;
+    }
+
+    public synchronized void reset() {
+        samples = 0;
+        lastSpeedTime = -1;
+        speedTime = 0;
+        speedSum = 0.0;
+        maxSpeed = 0.0f;
+        distance = 0.0;
+        lastPowerTime = -1;
+        powerTime = 0;
+        energy = 0.0;
+        maxPower = 0.0f;
+        rollingPower = 0.0;
+        rollingPower4Sum = 0.0;
+        lastTime = -1;
+        lastFan = FanSpeed.FAN_STOP;
+        for (int i = 0; i < LEVELS; i++) {
+            fanTime[i] = 0;
+            fanEnergy[i] = 0.0;
+        }
+    }
+
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    // km/h, 0 without speed
+    public synchronized float getAverageSpeed() {
+        return speedTime == 0 ? 0.0f : (float) (speedSum / speedTime);
+    }
+
+    public synchronized float getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    // km
+    public synchronized double getDistance() {
+        return distance;
+    }
+
+    // W, 0 without power
+    public synchronized float getAveragePower() {
+        return powerTime == 0 ? 0.0f : (float) (energy * 1000.0 / powerTime);
+    }
+
+    public synchronized float getMaxPower() {
+        return maxPower;
+    }
+
+    // W, 0 without power
+    public synchronized float getNormalizedPower() {
+        return powerTime == 0 ? 0.0f : (float) Math.sqrt(Math.sqrt(rollingPower4Sum / powerTime));
+    }
+
+    // kJ
+    public synchronized double getEnergy() {
+        return energy / 1000.0;
+    }
+
+    // ms spent at a fan speed
+    public synchronized long getTimeAt(FanSpeed fan) {
+        return fanTime[fan.ordinal()];
+    }
+
+    // kJ ridden at a fan speed
+    public synchronized double getEnergyAt(FanSpeed fan) {
+        return fanEnergy[fan.ordinal()] / 1000.0;
+    }
+
+    /**
+     * One line for the notification, e.g. "12.3km avg 25.1km/h, NP 195W".
+     */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%.1fkm avg %.1fkm/h", distance, getAverageSpeed()));
+        if (powerTime > 0)
+            sb.append(String.format(Locale.US, ", NP %.0fW", getNormalizedPower()));
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%.2fkm, speed avg %.1f max %.1fkm/h", distance,
+                getAverageSpeed(), maxSpeed));
+        sb.append(String.format(Locale.US, "\npower avg %.0f max %.0f NP %.0fW, %.0fkJ", getAveragePower(),
+                maxPower, getNormalizedPower(), getEnergy()));
+        for (FanSpeed fan : FanSpeed.values()) {
+            sb.append(fan.ordinal() == 0 ? '\n' : ' ').append(fan).append(' ');
+            appendDuration(sb, fanTime[fan.ordinal()]);
+            sb.append(String.format(Locale.US, " %.0fkJ", fanEnergy[fan.ordinal()] / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    // counts the time since the last sample of either source to the fan speed then
+    private void onFan(long time, FanSpeed fan) {
+        samples++;
+        fanTime[lastFan.ordinal()] += interval(lastTime, time);
+        if (time >= lastTime)
+            lastTime = time;
+        lastFan = fan;
+    }
+
+    // time since the last sample, 0 for the first one and after a gap
+    private static long interval(long last, long time) {
+        if (last < 0)
+            return 0;
+        long dt = time - last;
+        return dt > 0 && dt <= MAX_GAP_MS ? dt : 0;
+    }
+
+    private static void appendDuration(StringBuilder sb, long ms) {
+        long s = ms / 1000;
+        sb.append(s / 60).append(':');
+        if (s % 60 < 10)
+            sb.append('0');
+        sb.append(s % 60);
+    }
+}
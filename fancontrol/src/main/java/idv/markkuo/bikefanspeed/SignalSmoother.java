@@ -0,0 +1,113 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Smooths a sensor signal (speed or power) before it is compared against the fan thresholds.
+ *
+ * ROLLING_MEAN averages the samples of the last window ms using a primitive ring buffer and a
+ * running sum, EWMA applies an exponential moving average with window ms as time constant, NONE
+ * passes samples through. No allocation happens per sample.
+ */
+public class SignalSmoother {
+    public enum Mode {
+        NONE,
+        ROLLING_MEAN,
+        EWMA,
+    }
+
+    // enough for a 10s window at 8Hz
+    private static final int DEFAULT_CAPACITY = 128;
+
+    private final Mode mode;
+    private final long window;
+
+    // rolling mean ring buffer
+    private final long[] times;
+    private final float[] values;
+    private int head = 0;
+    private int size = 0;
+    private double sum = 0.0;
+
+    // ewma state
+    private boolean hasValue = false;
+    private long lastTime;
+    private double ewma;
+
+    public SignalSmoother(Mode mode, long windowMs) {
+        this(mode, windowMs, DEFAULT_CAPACITY);
+    }
+
+    public SignalSmoother(Mode mode, long windowMs, int capacity) {
+        if (mode != Mode.NONE && windowMs <= 0)
+            throw new IllegalArgumentException("Invalid smoothing window:" + windowMs);
+        this.mode = mode;
+        this.window = windowMs;
+        int n = mode == Mode.ROLLING_MEAN ? capacity : 0;
+        times = new long[n];
+        values = new float[n];
+    }
+
+    public static SignalSmoother none() {
+        return new SignalSmoother(Mode.NONE, 0);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Adds a sample taken at time (ms) and returns the smoothed value.
+     */
+    public float add(long time, float value) {
+        switch (mode) {
+            case ROLLING_MEAN:
+                return addRolling(time, value);
+            case EWMA:
+                return addEwma(time, value);
+            default:
+                return value;
+        }
+    }
+
+    public void reset() {
+        head = 0;
+        size = 0;
+        sum = 0.0;
+        hasValue = false;
+    }
+
+    private float addRolling(long time, float value) {
+        // drop samples which fell out of the window, or the oldest one when full
+        while (size > 0 && (size == times.length || time - times[head] >= window)) {
+            sum -= values[head];
+            head = (head + 1) % times.length;
+            size--;
+        }
+        int tail = (head + size) % times.length;
+        times[tail] = time;
+        values[tail] = value;
+        sum += value;
+        size++;
+        if (size == 1)
+            sum = value; // get rid of accumulated rounding errors
+        return (float) (sum / size);
+    }
+
+    private float addEwma(long time, float value) {
+        if (!hasValue) {
+            hasValue = true;
+            ewma = value;
+        } else {
+            long dt = time - lastTime;
+            if (dt > 0) {
+                double alpha = 1.0 - Math.exp(-(double) dt / window);
+                ewma += alpha * (value - ewma);
+            }
+        }
+        lastTime = time;
+        return (float) ewma;
+    }
+}
@@ -0,0 +1,151 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * A hashed timer wheel: timeouts hang in one of a fixed number of slots by their deadline tick,
+ * so scheduling, rescheduling and cancelling are O(1) and need no allocation, whatever the number
+ * of timeouts. advance() only looks at the slots of the ticks which passed.
+ *
+ * Not thread safe: owned by one thread, e.g. the SensorProcessor which also advances it.
+ */
+public class TimerWheel {
+    public static final long DEFAULT_TICK_MS = 100;
+    public static final int DEFAULT_SLOTS = 64;
+
+    /**
+     * Something to run once its deadline passed; one instance is rescheduled over and over.
+     */
+    public abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        // -1 while not scheduled
+        private int slot = -1;
+        private long deadlineTick;
+
+        /**
+         * Called from advance() once the deadline passed, at wheel time now (ms). May schedule
+         * itself again.
+         */
+        protected abstract void expired(long now);
+
+        public final boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final Timeout[] slots;
+    // last tick advance() went through
+    private long currentTick;
+    private long now;
+    private int size = 0;
+
+    /**
+     * @param slots rounded up to a power of two
+     * @param now   current time (ms)
+     */
+    public TimerWheel(long tickMs, int slots, long now) {
+        if (tickMs <= 0 || slots <= 0)
+            throw new IllegalArgumentException("Invalid timer wheel parameters");
+        this.tickMs = tickMs;
+        int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new Timeout[size];
+        this.now = now;
+        this.currentTick = now / tickMs;
+    }
+
+    /**
+     * Runs timeout delayMs after the time of the last advance(), at the first tick at or after
+     * that. Moves it if it was scheduled already. The wheel does not read a clock itself, so the
+     * owner advances it to the current time before scheduling after an idle spell.
+     */
+    public void schedule(Timeout timeout, long delayMs) {
+        unlink(timeout);
+        long tick = (now + Math.max(delayMs, 0) + tickMs - 1) / tickMs;
+        timeout.deadlineTick = Math.max(tick, currentTick + 1);
+        link(timeout, (int) (timeout.deadlineTick & mask));
+    }
+
+    public void cancel(Timeout timeout) {
+        unlink(timeout);
+    }
+
+    /**
+     * Moves the wheel to time now (ms) and runs the timeouts which became due. After a long pause
+     * every slot is visited once, not once per missed tick.
+     */
+    public void advance(long now) {
+        if (now <= this.now)
+            return;
+        this.now = now;
+        long target = now / tickMs;
+        if (target <= currentTick)
+            return;
+        long from = Math.max(currentTick + 1, target - mask);
+        currentTick = target;
+        // collected first, an expiring timeout may reschedule or cancel others
+        Timeout due = null;
+        for (long tick = from; tick <= target; tick++) {
+            Timeout t = slots[(int) (tick & mask)];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadlineTick <= target) {
+                    unlink(t);
+                    t.next = due;
+                    due = t;
+                }
+                t = next;
+            }
+        }
+        while (due != null) {
+            Timeout t = due;
+            due = t.next;
+            t.next = null;
+            t.expired(now);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    // time of the last advance()
+    public long getTime() {
+        return now;
+    }
+
+    private void link(Timeout t, int slot) {
+        Timeout head = slots[slot];
+        t.prev = null;
+        t.next = head;
+        if (head != null)
+            head.prev = t;
+        slots[slot] = t;
+        t.slot = slot;
+        size++;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.slot < 0)
+            return;
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            slots[t.slot] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        t.slot = -1;
+        size--;
+    }
+}
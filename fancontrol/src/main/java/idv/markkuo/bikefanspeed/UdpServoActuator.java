@@ -0,0 +1,105 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Fire-and-forget servo transport: every position is one 8 byte UDP datagram.
+ *
+ * <pre>
+ *  0      1        2     3         4..7
+ * +------+--------+-----+---------+----------------------+
+ * | 'S'  | ver. 1 | pin | pos (%) | sequence (uint32 BE) |
+ * +------+--------+-----+---------+----------------------+
+ * </pre>
+ *
+ * The sequence number grows by one per datagram, so the receiver can drop datagrams which arrive
+ * out of order (compare with serial number arithmetic, (int) (seq - last) > 0). It starts from the
+ * wall clock in 10 ms units so it also keeps growing across app restarts.
+ */
+public class UdpServoActuator implements FanActuator, ServoLink {
+    public static final int PACKET_SIZE = 8;
+    public static final byte MAGIC = 'S';
+    public static final byte VERSION = 1;
+
+    private final String host;
+    private final int port;
+    private final int pin;
+
+    private final byte[] buf = new byte[PACKET_SIZE];
+    private final DatagramPacket packet = new DatagramPacket(buf, PACKET_SIZE);
+    private DatagramSocket socket = null;
+    private int sequence = (int) (System.currentTimeMillis() / 10);
+    private long sentCount = 0;
+
+    public UdpServoActuator(String host, int port, int pin) {
+        if (pin < 0 || pin > 255)
+            throw new IllegalArgumentException("Invalid servo pin:" + pin);
+        this.host = host;
+        this.port = port;
+        this.pin = pin;
+    }
+
+    @Override
+    public void setPositions(int[] positions, int count) throws IOException {
+        setPositions(pin, positions, count);
+    }
+
+    // the sequence number is shared by all pins of this endpoint
+    @Override
+    public void setPositions(int pin, int[] positions, int count) throws IOException {
+        if (pin < 0 || pin > 255)
+            throw new IllegalArgumentException("Invalid servo pin:" + pin);
+        if (socket == null)
+            open();
+        try {
+            for (int i = 0; i < count; i++) {
+                encode(pin, positions[i], ++sequence);
+                socket.send(packet);
+                sentCount++;
+            }
+        } catch (IOException e) {
+            // e.g. the network changed, resolve and bind again next time
+            close();
+            throw e;
+        }
+    }
+
+    // sequence number of the last datagram sent
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    @Override
+    public void close() {
+        if (socket != null)
+            socket.close();
+        socket = null;
+    }
+
+    private void open() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            throw new IOException("Unable to resolve " + host);
+        socket = new DatagramSocket();
+        socket.connect(address);
+        packet.setSocketAddress(address);
+    }
+
+    private void encode(int pin, int position, int seq) {
+        buf[0] = MAGIC;
+        buf[1] = VERSION;
+        buf[2] = (byte) pin;
+        buf[3] = (byte) Math.min(Math.max(position, 0), 255);
+        buf[4] = (byte) (seq >>> 24);
+        buf[5] = (byte) (seq >>> 16);
+        buf[6] = (byte) (seq >>> 8);
+        buf[7] = (byte) seq;
+    }
+}
@@ -0,0 +1,102 @@
+package idv.markkuo.bikefanspeed;
+
+/**
+ * Computes wheel speed in km/h from raw ANT+ speed sensor data (cumulative wheel revolutions and
+ * the sensor's event time in 1/1024 s) using primitive math only, so nothing is allocated per
+ * sample.
+ *
+ * Both counters are 16 bit on the wire. The ANT+ plugin already extends them, but a delta which
+ * goes backwards is still treated as a single rollover so raw values can be fed in directly.
+ */
+public class WheelSpeedCalculator {
+    // 700x23c circumference in meter
+    public static final float DEFAULT_CIRCUMFERENCE = 2.095f;
+
+    // sensor event time unit, 1/1024 second
+    public static final int TICKS_PER_SECOND = 1024;
+    private static final long TIME_ROLLOVER = 65536;
+    private static final long REVOLUTION_ROLLOVER = 65536;
+
+    // m/s to km/h ratio
+    private static final double MS_TO_KMS_RATIO = 3.6;
+
+    // no new wheel revolution for this long means the wheel has stopped
+    private static final long STOP_TIMEOUT_MS = 3000;
+
+    private volatile float circumference;
+
+    private boolean hasLast = false;
+    private long lastEventTime;
+    private long lastRevolutions;
+    private long lastChangeTimestamp;
+    private float speed = 0.0f;
+
+    public WheelSpeedCalculator() {
+        this(DEFAULT_CIRCUMFERENCE);
+    }
+
+    public WheelSpeedCalculator(float circumference) {
+        setCircumference(circumference);
+    }
+
+    public float getCircumference() {
+        return circumference;
+    }
+
+    // wheel circumference in meter
+    public void setCircumference(float circumference) {
+        if (!(circumference > 0.0f))
+            throw new IllegalArgumentException("Invalid wheel circumference:" + circumference);
+        this.circumference = circumference;
+    }
+
+    /**
+     * Feeds one raw sample and returns the current speed in km/h.
+     *
+     * @param estTimestamp   time the sample was received, in ms
+     * @param eventTime      sensor time of the last wheel event, in 1/1024 s
+     * @param revolutions    cumulative wheel revolutions
+     */
+    public float update(long estTimestamp, long eventTime, long revolutions) {
+        if (!hasLast) {
+            hasLast = true;
+            lastEventTime = eventTime;
+            lastRevolutions = revolutions;
+            lastChangeTimestamp = estTimestamp;
+            return speed;
+        }
+
+        long revs = revolutions - lastRevolutions;
+        if (revs < 0)
+            revs += REVOLUTION_ROLLOVER;
+        long ticks = eventTime - lastEventTime;
+        if (ticks < 0)
+            ticks += TIME_ROLLOVER;
+
+        if (revs > 0 && ticks > 0) {
+            speed = (float) (circumference * (double) revs * TICKS_PER_SECOND / ticks * MS_TO_KMS_RATIO);
+            lastEventTime = eventTime;
+            lastRevolutions = revolutions;
+            lastChangeTimestamp = estTimestamp;
+        } else if (estTimestamp - lastChangeTimestamp >= STOP_TIMEOUT_MS) {
+            // the sensor keeps repeating its last event while the wheel is not turning
+            speed = 0.0f;
+        }
+        return speed;
+    }
+
+    // converts a speed in m/s to km/h
+    public static float msToKmh(float metersPerSecond) {
+        return (float) (metersPerSecond * MS_TO_KMS_RATIO);
+    }
+
+    // last computed speed in km/h
+    public float getSpeed() {
+        return speed;
+    }
+
+    public void reset() {
+        hasLast = false;
+        speed = 0.0f;
+    }
+}
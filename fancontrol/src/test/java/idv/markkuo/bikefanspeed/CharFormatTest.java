@@ -0,0 +1,32 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CharFormatTest {
+    private final char[] buf = new char[32];
+
+    @Test
+    public void formatsLikeStringFormat() {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            float value = random.nextFloat() * 2000.0f - 100.0f;
+            int n = CharFormat.formatFixed(value, 2, buf);
+            assertEquals(String.format(Locale.US, "%.2f", (double) value), new String(buf, 0, n));
+        }
+        assertEquals("0.00", new String(buf, 0, CharFormat.formatFixed(0.0f, 2, buf)));
+        assertEquals("10.05", new String(buf, 0, CharFormat.formatFixed(10.05f, 2, buf)));
+        assertEquals("3", new String(buf, 0, CharFormat.formatFixed(3.2f, 0, buf)));
+    }
+
+    @Test
+    public void formatsLong() {
+        assertEquals("0", new String(buf, 0, CharFormat.formatLong(0, buf)));
+        assertEquals("1234567890123", new String(buf, 0, CharFormat.formatLong(1234567890123L, buf)));
+        assertEquals("-42", new String(buf, 0, CharFormat.formatLong(-42, buf)));
+    }
+}
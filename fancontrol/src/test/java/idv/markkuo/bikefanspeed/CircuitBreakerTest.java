@@ -0,0 +1,79 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterFailuresAndProbesOnce() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allow(i));
+            breaker.onFailure(i);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow(500));
+        // a single trial once the open time is over
+        assertTrue(breaker.allow(1002));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allow(1003));
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow(1004));
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void failedTrialOpensForLonger() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.onFailure(0);
+        assertTrue(breaker.allow(1000));
+        breaker.onFailure(1000);
+        assertFalse(breaker.allow(2500));
+        assertTrue(breaker.allow(3000));
+        assertEquals(2, breaker.getOpenCount());
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000);
+        breaker.onFailure(0);
+        breaker.onSuccess();
+        breaker.onFailure(1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void guardedActuatorSkipsIoWhileOpen() {
+        final AtomicInteger calls = new AtomicInteger();
+        FanActuator down = new FanActuator() {
+            @Override
+            public void setPositions(int[] positions, int count) throws IOException {
+                calls.incrementAndGet();
+                throw new IOException("connect timed out");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        GuardedActuator actuator = new GuardedActuator(down, new CircuitBreaker(2, 60000));
+        int[] positions = {55};
+        for (int i = 0; i < 10; i++) {
+            try {
+                actuator.setPositions(positions, 1);
+                fail();
+            } catch (CircuitBreaker.OpenException e) {
+                assertTrue(i >= 2);
+            } catch (IOException e) {
+                assertTrue(i < 2);
+            }
+        }
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,108 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ControlCheckpointTest {
+
+    @Test
+    public void roundTrips() throws IOException {
+        ControlCheckpoint checkpoint = new ControlCheckpoint(1587200000000L, true, true,
+                FanCurve.POSITION_FAN_2, true, 31.5f, 215.0f, false);
+        byte[] data = checkpoint.encode();
+        assertEquals(30, ControlCheckpoint.SIZE);
+        assertEquals(ControlCheckpoint.SIZE, data.length);
+        ControlCheckpoint read = ControlCheckpoint.decode(data);
+        assertEquals(1587200000000L, read.time);
+        assertTrue(read.manualFanControl);
+        assertTrue(read.usePower);
+        assertEquals(FanCurve.POSITION_FAN_2, read.position);
+        assertTrue(read.positionKnown);
+        assertEquals(31.5f, read.lastSpeed, 0.0f);
+        assertEquals(215.0f, read.lastPower, 0.0f);
+        assertFalse(read.clean);
+        assertEquals(FanSpeed.FAN_2, read.getFanSpeed());
+        assertTrue(read.sameState(checkpoint));
+    }
+
+    @Test
+    public void rejectsTornOrForeignFiles() {
+        byte[] data = new ControlCheckpoint(1000, false, false, -1, true, -1.0f, -1.0f, true).encode();
+        byte[][] invalid = {new byte[0], new byte[data.length], data.clone(), Arrays.copyOf(data, 20)};
+        // one bit flipped in the speed
+        invalid[2][20] ^= 1;
+        for (byte[] bad : invalid) {
+            try {
+                ControlCheckpoint.decode(bad);
+                fail("decoded " + bad.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void samplesAloneAreNoChange() {
+        ControlCheckpoint a = new ControlCheckpoint(1000, false, false, 55, true, 20.0f, -1.0f, false);
+        assertTrue(a.sameState(new ControlCheckpoint(9000, false, false, 55, true, 25.0f, 100.0f, false)));
+        assertFalse(a.sameState(new ControlCheckpoint(1000, false, true, 55, true, 20.0f, -1.0f, false)));
+        assertFalse(a.sameState(new ControlCheckpoint(1000, false, false, 85, true, 20.0f, -1.0f, false)));
+        assertFalse(a.sameState(new ControlCheckpoint(1000, false, false, 55, false, 20.0f, -1.0f, false)));
+        assertFalse(a.sameState(null));
+    }
+
+    @Test
+    public void restoredDispatcherStopsARunningFan() throws Exception {
+        final List<Integer> moves = new ArrayList<>();
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(new FanActuator() {
+            @Override
+            public void setPositions(int[] positions, int count) {
+                synchronized (moves) {
+                    for (int i = 0; i < count; i++)
+                        moves.add(positions[i]);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+                fail("servo error " + error);
+            }
+        });
+        // left at FAN_2 by the run before
+        dispatcher.restore(FanCurve.POSITION_FAN_2, true);
+        assertEquals(FanSpeed.FAN_2, dispatcher.getFanSpeed());
+        dispatcher.start();
+        try {
+            // FAN_2 is where it is already
+            dispatcher.requestAuto(FanSpeed.FAN_2);
+            assertTrue(dispatcher.awaitIdle(2000));
+            dispatcher.requestAuto(FanSpeed.FAN_STOP);
+            assertTrue(dispatcher.awaitIdle(2000));
+            synchronized (moves) {
+                assertEquals(FanCurve.POSITION_STOP, (int) moves.get(moves.size() - 1));
+                assertFalse(moves.toString(), moves.contains(FanCurve.POSITION_FAN_2));
+            }
+            assertEquals(FanSpeed.FAN_STOP, dispatcher.getFanSpeed());
+            try {
+                dispatcher.restore(FanCurve.POSITION_FAN_1, true);
+                fail("restored while running");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FanChannelTest {
+    @Test
+    public void parsesRiders() {
+        List<FanChannel.Config> riders = FanChannel.Config.parseList(
+                "Alice,12345,0,udp://192.168.1.201:9000,11; Bob, 0, 4567, http://pi.local:8080, 12;");
+        assertEquals(2, riders.size());
+        FanChannel.Config alice = riders.get(0);
+        assertEquals("Alice", alice.name);
+        assertEquals(12345, alice.speedDevice);
+        assertEquals(0, alice.powerDevice);
+        assertEquals(ServoConnectionPool.UDP, alice.transport);
+        assertEquals("192.168.1.201", alice.host);
+        assertEquals(9000, alice.port);
+        assertEquals(11, alice.pin);
+        FanChannel.Config bob = riders.get(1);
+        assertEquals(4567, bob.powerDevice);
+        assertEquals(ServoConnectionPool.HTTP, bob.transport);
+        assertEquals("pi.local", bob.host);
+        assertEquals(12, bob.pin);
+        assertTrue(FanChannel.Config.parseList(" ").isEmpty());
+    }
+
+    @Test
+    public void rejectsInvalidRiders() {
+        String[] invalid = {
+                "Alice,12345,0,udp://192.168.1.201:9000",
+                "Alice,0,0,udp://192.168.1.201:9000,11",
+                "Alice,12345,0,tcp://192.168.1.201:9000,11",
+                "Alice,12345,0,192.168.1.201:9000,11",
+                "Alice,12345,0,udp://192.168.1.201:x,11",
+                "Alice,12345,0,udp://192.168.1.201:9000,256",
+        };
+        for (String text : invalid) {
+            try {
+                FanChannel.Config.parseList(text);
+                fail("accepted " + text);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void followsPowerWithoutSpeedSensor() throws Exception {
+        FanChannelGroup group = new FanChannelGroup(1, new PipelineStats());
+        try {
+            FanChannel speed = group.add(new FanChannel.Config("a", 1, 2, ServoConnectionPool.UDP, "127.0.0.1", 9, 1), null);
+            FanChannel power = group.add(new FanChannel.Config("b", 0, 2, ServoConnectionPool.UDP, "127.0.0.1", 9, 2), null);
+            assertFalse(speed.getDispatcher().isUsePower());
+            assertTrue(power.getDispatcher().isUsePower());
+            // both pins on one endpoint share a link
+            assertEquals(1, group.getPool().getLinkCount());
+        } finally {
+            group.stop();
+        }
+        assertEquals(0, group.getPool().getLinkCount());
+    }
+}
@@ -0,0 +1,255 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FanCommandDispatcherTest {
+    private static final FanCommandDispatcher.Listener LISTENER = new FanCommandDispatcher.Listener() {
+        @Override
+        public void onFanSpeedChanged(FanSpeed speed) {
+        }
+
+        @Override
+        public void onServoError(int position, String error) {
+            fail("servo error " + error);
+        }
+    };
+
+    // remembers every position with its System.nanoTime()
+    private static class RecordingActuator implements FanActuator {
+        private final List<long[]> moves = new ArrayList<>();
+
+        @Override
+        public synchronized void setPositions(int[] positions, int count) throws IOException {
+            for (int i = 0; i < count; i++)
+                moves.add(new long[]{positions[i], System.nanoTime()});
+        }
+
+        synchronized int[] positions() {
+            int[] p = new int[moves.size()];
+            for (int i = 0; i < p.length; i++)
+                p[i] = (int) moves.get(i)[0];
+            return p;
+        }
+
+        // time of the first move to position
+        synchronized long timeOf(int position) {
+            for (long[] move : moves) {
+                if (move[0] == position)
+                    return move[1];
+            }
+            return -1;
+        }
+
+        synchronized void clear() {
+            moves.clear();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // fails the first commands, like a Pi which is not up yet
+    private static class FlakyActuator extends RecordingActuator {
+        private int failuresLeft;
+
+        FlakyActuator(int failures) {
+            failuresLeft = failures;
+        }
+
+        @Override
+        public synchronized void setPositions(int[] positions, int count) throws IOException {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IOException("unreachable");
+            }
+            super.setPositions(positions, count);
+        }
+    }
+
+    private static int[] plan(FanSpeed from, FanSpeed to) {
+        int[] positions = new int[2 * FanTransitionPlanner.MAX_STEP_MOVES];
+        int[] delays = new int[2 * FanTransitionPlanner.MAX_STEP_MOVES];
+        return Arrays.copyOf(positions, FanTransitionPlanner.plan(from, to, positions, delays));
+    }
+
+    private static void waitFor(RecordingActuator servo, int moves) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (servo.positions().length < moves && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertTrue(servo.positions().length >= moves);
+    }
+
+    @Test
+    public void reachesEveryTargetFromEveryLevel() throws Exception {
+        for (FanSpeed from : FanSpeed.values()) {
+            for (FanSpeed to : FanSpeed.values()) {
+                RecordingActuator servo = new RecordingActuator();
+                FanCommandDispatcher dispatcher = new FanCommandDispatcher(servo, LISTENER);
+                dispatcher.start();
+                try {
+                    dispatcher.requestManual(from);
+                    assertTrue(dispatcher.awaitIdle(2000));
+                    servo.clear();
+                    dispatcher.requestManual(to);
+                    assertTrue(dispatcher.awaitIdle(2000));
+                    assertEquals(from + "->" + to, to, dispatcher.getFanSpeed());
+                    assertArrayEquals(from + "->" + to, plan(from, to), servo.positions());
+                } finally {
+                    dispatcher.stop();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void newTargetReplacesRestOfPlan() throws Exception {
+        RecordingActuator servo = new RecordingActuator();
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(servo, LISTENER);
+        dispatcher.start();
+        try {
+            dispatcher.requestManual(FanSpeed.FAN_2);
+            assertTrue(dispatcher.awaitIdle(2000));
+            servo.clear();
+            // rewinds to 45 and 55, then waits before stopping
+            dispatcher.requestManual(FanSpeed.FAN_STOP);
+            waitFor(servo, 2);
+            long start = System.nanoTime();
+            dispatcher.requestManual(FanSpeed.FAN_2);
+            assertTrue(dispatcher.awaitIdle(2000));
+            assertArrayEquals(new int[]{45, 55, 85}, servo.positions());
+            assertEquals(FanSpeed.FAN_2, dispatcher.getFanSpeed());
+            // without waiting for the rest of the rewind
+            long late = TimeUnit.NANOSECONDS.toMillis(servo.timeOf(85) - start);
+            assertTrue("took " + late + "ms", late < FanTransitionPlanner.REWIND_DELAY_MS / 2);
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void sameTargetKeepsPlanGoing() throws Exception {
+        RecordingActuator servo = new RecordingActuator();
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(servo, LISTENER);
+        dispatcher.start();
+        try {
+            dispatcher.requestManual(FanSpeed.FAN_1);
+            assertTrue(dispatcher.awaitIdle(2000));
+            servo.clear();
+            dispatcher.requestManual(FanSpeed.FAN_STOP);
+            waitFor(servo, 1);
+            // the three-step mode repeats its level with every sample
+            for (int i = 0; i < 10; i++) {
+                dispatcher.requestManual(FanSpeed.FAN_STOP);
+                Thread.sleep(20);
+            }
+            assertTrue(dispatcher.awaitIdle(2000));
+            assertArrayEquals(new int[]{55, 10}, servo.positions());
+            long wait = TimeUnit.NANOSECONDS.toMillis(servo.timeOf(10) - servo.timeOf(55));
+            assertTrue("waited " + wait + "ms", wait >= FanTransitionPlanner.REWIND_DELAY_MS - 1);
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void waitsWithoutBlockingSharedWorker() throws Exception {
+        ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+        RecordingActuator servoA = new RecordingActuator();
+        RecordingActuator servoB = new RecordingActuator();
+        FanCommandDispatcher a = new FanCommandDispatcher(servoA, LISTENER, new PipelineStats(), worker);
+        FanCommandDispatcher b = new FanCommandDispatcher(servoB, LISTENER, new PipelineStats(), worker);
+        a.start();
+        b.start();
+        try {
+            a.requestManual(FanSpeed.FAN_1);
+            assertTrue(a.awaitIdle(2000));
+            a.requestManual(FanSpeed.FAN_STOP);
+            waitFor(servoA, 2);
+            // a waits for its rewind, b gets the only worker thread meanwhile
+            long start = System.nanoTime();
+            b.requestManual(FanSpeed.FAN_1);
+            assertTrue(b.awaitIdle(2000));
+            long late = TimeUnit.NANOSECONDS.toMillis(servoB.timeOf(55) - start);
+            assertTrue("took " + late + "ms", late < FanTransitionPlanner.REWIND_DELAY_MS / 2);
+            assertEquals(-1, servoA.timeOf(10));
+            assertTrue(a.awaitIdle(2000));
+            assertEquals(FanSpeed.FAN_STOP, a.getFanSpeed());
+            assertEquals(1, a.getStats().transitionSleep.getCount());
+        } finally {
+            a.stop();
+            b.stop();
+            worker.shutdown();
+        }
+    }
+
+    @Test
+    public void failedMoveIsRetriedUntilAcknowledged() throws Exception {
+        FlakyActuator servo = new FlakyActuator(2);
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(servo, new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+            }
+        });
+        dispatcher.start();
+        try {
+            dispatcher.requestManual(FanSpeed.FAN_1);
+            Thread.sleep(FanCommandDispatcher.RETRY_BASE_MS / 2);
+            // nothing went through yet, so nothing is taken as reached
+            assertEquals(FanSpeed.FAN_STOP, dispatcher.getFanSpeed());
+            assertFalse(dispatcher.isPositionKnown());
+            // sent again without another request, after 250 and 500ms
+            assertTrue(dispatcher.awaitIdle(3000));
+            assertEquals(FanSpeed.FAN_1, dispatcher.getFanSpeed());
+            assertTrue(dispatcher.isPositionKnown());
+            assertArrayEquals(new int[]{55}, servo.positions());
+            assertEquals(2, dispatcher.getStats().failed.get());
+            assertEquals(2, dispatcher.getStats().retried.get());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void unknownPositionIsNotSkipped() throws Exception {
+        FlakyActuator servo = new FlakyActuator(1);
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(servo, new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+            }
+        });
+        dispatcher.start();
+        try {
+            dispatcher.requestManual(FanSpeed.FAN_2);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (dispatcher.isPositionKnown() && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            // the fan may be anywhere after the failure, so even the stop it was acknowledged at
+            // is sent, with the rewind from FAN_2
+            dispatcher.requestManual(FanSpeed.FAN_STOP);
+            assertTrue(dispatcher.awaitIdle(3000));
+            assertEquals(FanSpeed.FAN_STOP, dispatcher.getFanSpeed());
+            assertArrayEquals(plan(FanSpeed.FAN_2, FanSpeed.FAN_STOP), servo.positions());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FanControlTest {
+
+    private static FanCommandDispatcher dispatcher() {
+        return new FanCommandDispatcher(new FanActuator() {
+            @Override
+            public void setPositions(int[] positions, int count) throws IOException {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+                fail("servo error " + error);
+            }
+        });
+    }
+
+    private static ProportionalFanController curve() {
+        return new ProportionalFanController(FanCurve.linear(10.0f, 50.0f, 30, 90), SignalSmoother.none(),
+                new ServoRateLimiter(3, 10.0));
+    }
+
+    @Test
+    public void curveResendsItsPositionAfterCoasting() throws Exception {
+        FanCommandDispatcher dispatcher = dispatcher();
+        dispatcher.start();
+        try {
+            ProportionalFanController speedCurve = curve();
+            FanControl control = FanControl.create(dispatcher, true, 0.1f, 0,
+                    SignalSmoother.none(), SignalSmoother.none(), speedCurve, curve());
+            control.onSpeed(0, 45.0f);
+            assertTrue(dispatcher.awaitIdle(2000));
+            int position = speedCurve.getTargetPosition();
+            assertEquals(position, dispatcher.getPosition());
+            assertEquals(FanSpeed.FAN_2, dispatcher.getFanSpeed());
+
+            // the sensor goes silent for a while
+            assertTrue(control.coastDown(false));
+            assertTrue(dispatcher.awaitIdle(2000));
+            assertEquals(FanSpeed.FAN_1, dispatcher.getFanSpeed());
+
+            // and comes back at the same speed, well within the deadband of the last position sent
+            control.onSpeed(5000, 45.0f);
+            assertTrue(dispatcher.awaitIdle(2000));
+            assertEquals(position, dispatcher.getPosition());
+            assertEquals(FanSpeed.FAN_2, dispatcher.getFanSpeed());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FanCurveTest {
+
+    @Test
+    public void interpolatesAndClamps() {
+        FanCurve curve = FanCurve.parse("3:10, 3:30, 23:80");
+        assertEquals(10, curve.positionFor(0.0f));
+        assertEquals(10, curve.positionFor(2.99f));
+        assertEquals(30, curve.positionFor(3.0f));
+        assertEquals(55, curve.positionFor(13.0f));
+        assertEquals(80, curve.positionFor(23.0f));
+        assertEquals(80, curve.positionFor(60.0f));
+    }
+
+    @Test
+    public void threeStepPresetMatchesFanSpeeds() {
+        FanCurve curve = FanCurve.threeStep(80.0f, 180.0f);
+        assertEquals(FanCurve.POSITION_STOP, curve.positionFor(79.9f));
+        assertEquals(FanCurve.POSITION_FAN_1, curve.positionFor(80.0f));
+        assertEquals(FanCurve.POSITION_FAN_1, curve.positionFor(179.9f));
+        assertEquals(FanCurve.POSITION_FAN_2, curve.positionFor(180.0f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsortedCurve() {
+        FanCurve.parse("10:50,5:20");
+    }
+
+    @Test
+    public void rateLimiterAppliesDeadbandAndBudget() {
+        ServoRateLimiter limiter = new ServoRateLimiter(3, 1.0);
+        assertTrue(limiter.offer(0, 50));
+        // within the deadband
+        assertFalse(limiter.offer(100, 53));
+        // out of budget until a second has passed
+        assertFalse(limiter.offer(200, 60));
+        assertTrue(limiter.offer(1000, 60));
+        assertEquals(60, limiter.getLastPosition());
+        assertEquals(2, limiter.getEmittedCount());
+        assertEquals(1, limiter.getSuppressedByDeadbandCount());
+        assertEquals(1, limiter.getSuppressedByBudgetCount());
+    }
+
+    @Test
+    public void budgetCapsCommandRate() {
+        ProportionalFanController controller = new ProportionalFanController(
+                FanCurve.linear(0.0f, 100.0f, 0, 100), SignalSmoother.none(), new ServoRateLimiter(0, 2.0));
+        int sent = 0;
+        // a signal changing on every 50ms sample for 10s
+        for (long t = 0; t <= 10000; t += 50) {
+            if (controller.update(t, (t / 50) % 100) >= 0)
+                sent++;
+        }
+        // 2 per second plus the initial burst
+        assertTrue("sent " + sent, sent <= 2 * 10 + 2);
+        assertTrue("sent " + sent, sent >= 2 * 10);
+    }
+}
@@ -0,0 +1,65 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FanLevelSelectorTest {
+
+    @Test
+    public void rollingMeanAveragesWindow() {
+        SignalSmoother smoother = new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000);
+        assertEquals(10.0f, smoother.add(0, 10.0f), 1e-6f);
+        assertEquals(15.0f, smoother.add(1000, 20.0f), 1e-6f);
+        assertEquals(20.0f, smoother.add(2000, 30.0f), 1e-6f);
+        // the first sample is out of the window now
+        assertEquals(30.0f, smoother.add(3000, 40.0f), 1e-6f);
+    }
+
+    @Test
+    public void ewmaFollowsStep() {
+        SignalSmoother smoother = new SignalSmoother(SignalSmoother.Mode.EWMA, 1000);
+        smoother.add(0, 0.0f);
+        // one time constant gets ~63% of the way
+        assertEquals(63.2f, smoother.add(1000, 100.0f), 0.1f);
+    }
+
+    @Test
+    public void hysteresisStopsFlapping() {
+        FanLevelSelector selector = new FanLevelSelector(3.0f, 10.0f, 0.15f, 0, SignalSmoother.none());
+        selector.update(0, 12.0f);
+        assertEquals(FanSpeed.FAN_2, selector.getLevel());
+        // hovering around the high threshold
+        long t = 0;
+        for (int i = 0; i < 100; i++) {
+            t += 250;
+            selector.update(t, i % 2 == 0 ? 9.6f : 10.2f);
+            assertEquals(FanSpeed.FAN_2, selector.getLevel());
+        }
+        assertEquals(FanSpeed.FAN_1, selector.update(t + 250, 8.4f));
+        assertEquals(2, selector.getChangeCount());
+        assertTrue(selector.getRawChangeCount() > 90);
+        assertEquals(selector.getRawChangeCount() - 2, selector.getSavedCount());
+    }
+
+    @Test
+    public void holdsLevelForMinimumDwell() {
+        FanLevelSelector selector = new FanLevelSelector(3.0f, 10.0f, 0.0f, 5000, SignalSmoother.none());
+        assertEquals(FanSpeed.FAN_1, selector.update(0, 5.0f));
+        assertEquals(FanSpeed.FAN_1, selector.update(1000, 1.0f));
+        assertEquals(FanSpeed.FAN_1, selector.update(4999, 1.0f));
+        assertEquals(FanSpeed.FAN_STOP, selector.update(5000, 1.0f));
+    }
+
+    @Test
+    public void smoothingIgnoresSpikes() {
+        FanLevelSelector selector = new FanLevelSelector(80.0f, 180.0f, 0.1f, 0,
+                new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000));
+        long t = 0;
+        for (int i = 0; i < 40; i++, t += 250)
+            selector.update(t, 150.0f);
+        // a single 400W spike does not move the 3s mean above 180W
+        assertEquals(FanSpeed.FAN_1, selector.update(t, 400.0f));
+        assertEquals(FanSpeed.FAN_1, selector.getLevel());
+    }
+}
@@ -0,0 +1,71 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FanPolicyTest {
+
+    @Test
+    public void levelsAreFoundByBinarySearch() {
+        FanPolicy policy = new FanPolicy(FanPolicy.Metric.SPEED,
+                new float[]{0, 3, 10, 20, 30}, new int[]{10, 40, 55, 70, 85});
+        assertEquals(0, policy.levelFor(-1.0f));
+        assertEquals(0, policy.levelFor(2.99f));
+        assertEquals(1, policy.levelFor(3.0f));
+        assertEquals(2, policy.levelFor(19.9f));
+        assertEquals(4, policy.levelFor(30.0f));
+        assertEquals(4, policy.levelFor(1000.0f));
+        assertEquals(70, policy.positionFor(25.0f));
+        // 40 is closest to FAN_1, 70 to FAN_2
+        assertEquals(FanSpeed.FAN_1, policy.speedFor(5.0f));
+        assertEquals(FanSpeed.FAN_2, policy.speedFor(25.0f));
+        assertEquals(3.0f, policy.getLow(), 0.0f);
+        assertEquals(20.0f, policy.getHigh(), 0.0f);
+    }
+
+    @Test
+    public void defaultsMatchThresholds() {
+        FanPolicy policy = FanPolicy.defaultFor(FanPolicy.Metric.POWER);
+        assertEquals(FanThresholds.POWER_LOW, policy.getLow(), 0.0f);
+        assertEquals(FanThresholds.POWER_HIGH, policy.getHigh(), 0.0f);
+        FanCurve steps = FanCurve.threeStep(FanThresholds.POWER_LOW, FanThresholds.POWER_HIGH);
+        FanCurve curve = policy.toCurve();
+        for (float watts = 0; watts < 400; watts += 5)
+            assertEquals(steps.positionFor(watts), curve.positionFor(watts));
+    }
+
+    @Test
+    public void policyWithoutFan2NeverReachesIt() {
+        FanPolicy policy = new FanPolicy(FanPolicy.Metric.SPEED, new float[]{0, 5}, new int[]{10, 55});
+        assertEquals(Float.MAX_VALUE, policy.getHigh(), 0.0f);
+        FanLevelSelector selector = new FanLevelSelector(policy, 0.15f, 0, SignalSmoother.none());
+        assertEquals(FanSpeed.FAN_1, selector.update(0, 50.0f));
+        assertEquals(FanSpeed.FAN_STOP, selector.update(1000, 1.0f));
+    }
+
+    @Test
+    public void onlyThreeStepPositionsAreThreeStep() {
+        assertTrue(FanPolicy.defaultFor(FanPolicy.Metric.SPEED).isThreeStep());
+        // other thresholds, and two levels at the same fan speed
+        assertTrue(new FanPolicy(FanPolicy.Metric.POWER, new float[]{0, 50, 120, 250},
+                new int[]{10, 55, 55, 85}).isThreeStep());
+        // the three-step mode could not send 40 or 70
+        assertFalse(new FanPolicy(FanPolicy.Metric.SPEED, new float[]{0, 3, 10, 20, 30},
+                new int[]{10, 40, 55, 70, 85}).isThreeStep());
+        assertEquals(FanCurve.POSITION_FAN_1, FanTransitionPlanner.positionOf(FanSpeed.FAN_1));
+    }
+
+    @Test
+    public void invalidPoliciesAreRejected() {
+        float[][] bounds = {{}, {1, 3}, {0, 3, 3}, {0, 3}, {0, 3}};
+        int[][] positions = {{}, {10, 55}, {10, 55, 85}, {55, 10}, {10, 101}};
+        for (int i = 0; i < bounds.length; i++) {
+            try {
+                new FanPolicy(FanPolicy.Metric.SPEED, bounds[i], positions[i]);
+                fail("accepted policy " + i);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
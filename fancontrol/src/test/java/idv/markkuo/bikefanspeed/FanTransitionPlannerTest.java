@@ -0,0 +1,63 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FanTransitionPlannerTest {
+    private final int[] positions = new int[4];
+    private final int[] delays = new int[4];
+
+    private int[] plan(FanSpeed from, FanSpeed to) {
+        return Arrays.copyOf(positions, FanTransitionPlanner.plan(from, to, positions, delays));
+    }
+
+    @Test
+    public void neverJumpsBetweenStopAndFan2() {
+        assertEquals(FanSpeed.FAN_1, FanTransitionPlanner.nextStep(FanSpeed.FAN_STOP, FanSpeed.FAN_2));
+        assertEquals(FanSpeed.FAN_1, FanTransitionPlanner.nextStep(FanSpeed.FAN_2, FanSpeed.FAN_STOP));
+        assertArrayEquals(new int[]{55, 85}, plan(FanSpeed.FAN_STOP, FanSpeed.FAN_2));
+        assertArrayEquals(new int[]{45, 55, 10}, plan(FanSpeed.FAN_2, FanSpeed.FAN_STOP));
+        assertEquals(FanTransitionPlanner.REWIND_DELAY_MS, delays[2]);
+    }
+
+    @Test
+    public void plansSingleSteps() {
+        assertArrayEquals(new int[0], plan(FanSpeed.FAN_1, FanSpeed.FAN_1));
+        assertArrayEquals(new int[]{55}, plan(FanSpeed.FAN_STOP, FanSpeed.FAN_1));
+        assertArrayEquals(new int[]{45}, plan(FanSpeed.FAN_2, FanSpeed.FAN_1));
+        assertArrayEquals(new int[]{85}, plan(FanSpeed.FAN_1, FanSpeed.FAN_2));
+        assertArrayEquals(new int[]{55, 10}, plan(FanSpeed.FAN_1, FanSpeed.FAN_STOP));
+        assertEquals(0, delays[0]);
+        assertEquals(FanTransitionPlanner.REWIND_DELAY_MS, delays[1]);
+    }
+
+    @Test
+    public void plansEveryPair() {
+        // expected positions by from and to, in FanSpeed order
+        int[][][] expected = {
+                {{}, {55}, {55, 85}},
+                {{55, 10}, {}, {85}},
+                {{45, 55, 10}, {45}, {}},
+        };
+        for (FanSpeed from : FanSpeed.values()) {
+            for (FanSpeed to : FanSpeed.values()) {
+                String pair = from + "->" + to;
+                int[] moves = plan(from, to);
+                assertArrayEquals(pair, expected[from.ordinal()][to.ordinal()], moves);
+                FanSpeed level = from;
+                for (int i = 0; i < moves.length; i++) {
+                    FanSpeed next = FanTransitionPlanner.levelFor(moves[i]);
+                    // one level at a time
+                    assertTrue(pair, Math.abs(next.ordinal() - level.ordinal()) <= 1);
+                    // only the final stop waits for the rewind
+                    assertEquals(pair, next == FanSpeed.FAN_STOP ? FanTransitionPlanner.REWIND_DELAY_MS : 0, delays[i]);
+                    level = next;
+                }
+                assertEquals(pair, to, level);
+            }
+        }
+    }
+}
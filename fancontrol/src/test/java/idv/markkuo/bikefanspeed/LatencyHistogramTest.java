@@ -0,0 +1,56 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsAreContiguous() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        for (int i = 1; i < LatencyHistogram.BUCKETS; i++) {
+            long lower = LatencyHistogram.upperBound(i - 1) + 1;
+            assertEquals(i, LatencyHistogram.bucketOf(lower));
+            assertEquals(i, LatencyHistogram.bucketOf(LatencyHistogram.upperBound(i)));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(0.5));
+        // 1 to 10000 us
+        for (int us = 1; us <= 10000; us++)
+            h.record(us * 1000L);
+        assertEquals(10000, h.getCount());
+        assertEquals(10000, h.getMax());
+        assertEquals(5000, h.getMean());
+        long p50 = h.getPercentile(0.5);
+        long p99 = h.getPercentile(0.99);
+        assertTrue("p50 " + p50, p50 >= 5000 && p50 <= 5000 * 1.125);
+        assertTrue("p99 " + p99, p99 >= 9900 && p99 <= 10000);
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws Exception {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        h.record(i % 5000 * 1000L);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(400000, h.getCount());
+        assertEquals(4999, h.getMax());
+    }
+}
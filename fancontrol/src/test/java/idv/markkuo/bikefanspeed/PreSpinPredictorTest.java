@@ -0,0 +1,72 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PreSpinPredictorTest {
+    private static PreSpinPredictor predictor() {
+        return new PreSpinPredictor(FanThresholds.SPEED_LOW, FanThresholds.SPEED_HIGH, 3000,
+                PreSpinPredictor.DEFAULT_WINDOW_MS);
+    }
+
+    @Test
+    public void rampSpinsUpBeforeThreshold() {
+        PreSpinPredictor preSpin = predictor();
+        // 1 km/h per second, the threshold is crossed at 3 s
+        long first = -1;
+        for (long t = 0; t <= 3000 && first < 0; t += 250) {
+            if (preSpin.update(t, t / 1000.0f, FanSpeed.FAN_STOP) == FanSpeed.FAN_1)
+                first = t;
+        }
+        assertTrue("pre-spun at " + first, first >= 0 && first < 2000);
+        assertEquals(1, preSpin.getPreSpinCount());
+        assertEquals(1.0f, preSpin.getSlope(), 0.01f);
+    }
+
+    @Test
+    public void noiseBelowThresholdDoesNotSpinUp() {
+        PreSpinPredictor preSpin = predictor();
+        Random random = new Random(1);
+        for (long t = 0; t < 120000; t += 250)
+            assertEquals(FanSpeed.FAN_STOP, preSpin.update(t, 1.5f + random.nextFloat() - 0.5f, FanSpeed.FAN_STOP));
+        assertEquals(0, preSpin.getPreSpinCount());
+    }
+
+    @Test
+    public void falseStartFallsBack() {
+        PreSpinPredictor preSpin = predictor();
+        long t = 0;
+        for (; t <= 2000; t += 250)
+            preSpin.update(t, t / 1000.0f, FanSpeed.FAN_STOP);
+        assertEquals(1, preSpin.getPreSpinCount());
+        // the rider eases off before the selector follows
+        FanSpeed level = FanSpeed.FAN_1;
+        long end = t + 10000;
+        for (; t < end && level != FanSpeed.FAN_STOP; t += 250)
+            level = preSpin.update(t, 0.5f, FanSpeed.FAN_STOP);
+        assertEquals(FanSpeed.FAN_STOP, level);
+        assertEquals(1, preSpin.getFalseStartCount());
+    }
+
+    @Test
+    public void selectorCatchingUpIsNoFalseStart() {
+        PreSpinPredictor preSpin = predictor();
+        for (long t = 0; t <= 8000; t += 250) {
+            float speed = t / 1000.0f;
+            preSpin.update(t, speed, speed >= FanThresholds.SPEED_LOW ? FanSpeed.FAN_1 : FanSpeed.FAN_STOP);
+        }
+        assertEquals(0, preSpin.getFalseStartCount());
+    }
+
+    @Test
+    public void evaluatorShowsLeadOnSyntheticRide() {
+        RideTrace trace = RideTrace.synthetic(30 * 60000, 4, 1);
+        PreSpinEvaluator.Result result = PreSpinEvaluator.evaluate(trace, false, 3000);
+        assertTrue(result.toString(), result.steps > 0);
+        assertTrue(result.toString(), result.anticipated > 0);
+        assertTrue(result.toString(), result.getMeanLead() > 0);
+    }
+}
@@ -0,0 +1,139 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class RidePyramidTest {
+    // 2020-01-01 00:00 UTC
+    private static final long START = 1577836800000L;
+    // 3 hours at 4 Hz
+    private static final int RECORDS = 3 * 3600 * 4;
+    // a sensor dropout from 1:00:00 to 1:00:30
+    private static final long GAP_FROM = 3600000;
+    private static final long GAP_TO = 3630000;
+
+    private File ride;
+    private File index;
+
+    @Before
+    public void setUp() throws Exception {
+        ride = File.createTempFile("ride", ".ride");
+        index = File.createTempFile("ride", ".pyr");
+        RideRecorder recorder = new RideRecorder(ride);
+        for (int i = 0; i < RECORDS; i++) {
+            long t = i * 250L;
+            if (t >= GAP_FROM && t < GAP_TO)
+                continue;
+            recorder.append(START + t, speedAt(i), i < 4 ? -1.0f : 150.0f + i % 100,
+                    FanSpeed.values()[(i / 40) % 3], 55);
+        }
+        recorder.close();
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(ride.delete());
+        assertTrue(index.delete());
+    }
+
+    private static float speedAt(int i) {
+        return 20.0f + (i % 37) * 0.5f;
+    }
+
+    @Test
+    public void buildsEveryLevelInOnePass() throws Exception {
+        long records = RidePyramid.build(ride, index);
+        assertEquals(RECORDS - (GAP_TO - GAP_FROM) / 250, records);
+        RidePyramid pyramid = RidePyramid.open(index);
+        assertEquals(START, pyramid.getStartTime());
+        assertEquals(START + (RECORDS - 1) * 250L, pyramid.getEndTime());
+        assertEquals(4, pyramid.getLevelCount());
+        assertEquals(10800, pyramid.getBucketCount(0));
+        assertEquals(1080, pyramid.getBucketCount(1));
+        assertEquals(180, pyramid.getBucketCount(2));
+        assertEquals(18, pyramid.getBucketCount(3));
+        // a few hundred KB for three hours, the ride itself is 864 KB
+        assertTrue(index.length() < 400 * 1024);
+    }
+
+    @Test
+    public void bucketsMatchTheRecords() throws Exception {
+        RidePyramid.build(ride, index);
+        RidePyramid pyramid = RidePyramid.open(index);
+        long[] times = new long[8];
+        float[] min = new float[8];
+        float[] max = new float[8];
+        float[] mean = new float[8];
+
+        // the 10 s bucket at 0:20:00 holds records 4800..4839
+        long from = START + 1200000;
+        assertEquals(1, pyramid.read(1, RidePyramid.Series.SPEED, from, from, times, min, max, mean));
+        assertEquals(from, times[0]);
+        float lo = Float.MAX_VALUE, hi = 0.0f;
+        double sum = 0.0;
+        for (int i = 4800; i < 4840; i++) {
+            lo = Math.min(lo, speedAt(i));
+            hi = Math.max(hi, speedAt(i));
+            sum += speedAt(i);
+        }
+        assertEquals(lo, min[0], 0.0f);
+        assertEquals(hi, max[0], 0.0f);
+        assertEquals(sum / 40, mean[0], 1e-4);
+        // ten seconds at each fan speed in turn
+        assertEquals(1, pyramid.read(1, RidePyramid.Series.FAN, from, from, times, min, max, mean));
+        assertEquals(FanSpeed.FAN_STOP.ordinal(), (int) min[0]);
+        assertEquals(FanSpeed.FAN_STOP.ordinal(), (int) max[0]);
+
+        // power unknown in the first second only
+        assertEquals(2, pyramid.read(0, RidePyramid.Series.POWER, START, START + 1000, times, min, max, mean));
+        assertTrue(Float.isNaN(mean[0]));
+        assertEquals(154.0f, min[1], 0.0f);
+
+        // the dropout is a gap at 1 s, and partly filled at 1 min
+        assertEquals(3, pyramid.read(0, RidePyramid.Series.SPEED, START + GAP_FROM - 1000, START + GAP_FROM + 1000,
+                times, min, max, mean));
+        assertFalse(Float.isNaN(mean[0]));
+        assertTrue(Float.isNaN(mean[1]));
+        assertTrue(Float.isNaN(mean[2]));
+        assertEquals(1, pyramid.read(2, RidePyramid.Series.SPEED, START + GAP_FROM, START + GAP_FROM, times, min, max, mean));
+        assertFalse(Float.isNaN(mean[0]));
+    }
+
+    @Test
+    public void screenWidthReadsPickTheLevel() throws Exception {
+        RidePyramid.build(ride, index);
+        RidePyramid pyramid = RidePyramid.open(index);
+        int width = 1080;
+        long[] times = new long[width];
+        float[] min = new float[width];
+        float[] max = new float[width];
+        float[] mean = new float[width];
+        // the whole ride fits at 10 s, the last 15 minutes at 1 s
+        int level = pyramid.levelFor(pyramid.getStartTime(), pyramid.getEndTime(), width);
+        assertEquals(10000, pyramid.getBucketMs(level));
+        assertEquals(1080, pyramid.read(level, RidePyramid.Series.SPEED, pyramid.getStartTime(), pyramid.getEndTime(),
+                times, min, max, mean));
+        long from = pyramid.getEndTime() - 15 * 60000;
+        assertEquals(0, pyramid.levelFor(from, pyramid.getEndTime(), width));
+        assertEquals(901, pyramid.read(0, RidePyramid.Series.SPEED, from, pyramid.getEndTime(), times, min, max, mean));
+        // outside the ride
+        assertEquals(0, pyramid.read(0, RidePyramid.Series.SPEED, START - 10000, START - 5000, times, min, max, mean));
+        assertEquals(3, pyramid.levelFor(START, START + 48 * 3600000L, width));
+    }
+
+    @Test
+    public void indexesAnEmptyRide() throws Exception {
+        RideRecorder recorder = new RideRecorder(ride);
+        recorder.close();
+        assertEquals(0, RidePyramid.build(ride, index));
+        RidePyramid pyramid = RidePyramid.open(index);
+        assertEquals(0, pyramid.getBucketCount(0));
+        assertEquals(0, pyramid.read(0, RidePyramid.Series.SPEED, 0, Long.MAX_VALUE / 2, new long[4],
+                new float[4], new float[4], new float[4]));
+    }
+}
@@ -0,0 +1,127 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class RideRecorderTest {
+    // 2020-01-01 00:00 UTC
+    private static final long START = 1577836800000L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("ride", ".ride");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void growsAndExportsCsv() throws Exception {
+        // a one page chunk has to grow several times
+        RideRecorder recorder = new RideRecorder(file, 4096);
+        recorder.append(START, -1.0f, 150.0f, FanSpeed.FAN_STOP, -1);
+        for (int i = 1; i < 1000; i++)
+            recorder.append(START + i * 250, 12.5f, 150.0f, FanSpeed.FAN_1, 55);
+        assertEquals(1000, recorder.getCount());
+
+        // readable before close, as after a crash
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1000, RideExporter.writeCsv(file, out));
+        recorder.close();
+        assertEquals(RideRecorder.HEADER_SIZE + 1000 * RideRecorder.RECORD_SIZE, file.length());
+
+        String[] lines = out.toString("US-ASCII").split("\n");
+        assertEquals(1001, lines.length);
+        assertEquals("time,speed,power,fan,position", lines[0]);
+        assertEquals(START + ",,150,0,", lines[1]);
+        assertEquals((START + 999 * 250) + ",12.50,150,1,55", lines[1000]);
+    }
+
+    @Test
+    public void exportsValidFit() throws Exception {
+        RideRecorder recorder = new RideRecorder(file);
+        // 10 seconds at 4 Hz
+        for (int i = 0; i < 40; i++)
+            recorder.append(START + i * 250, 36.0f, 200.0f, FanSpeed.FAN_2, 85);
+        recorder.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(10, RideExporter.writeFit(file, out));
+        byte[] fit = out.toByteArray();
+        assertEquals(14, fit[0]);
+        assertEquals(".FIT", new String(fit, 8, 4, "US-ASCII"));
+        long dataSize = (fit[4] & 0xff) | (fit[5] & 0xff) << 8 | (fit[6] & 0xff) << 16 | (fit[7] & 0xff) << 24;
+        assertEquals(fit.length - 14 - 2, dataSize);
+        // a CRC over data followed by its own CRC is zero
+        assertEquals(0, RideExporter.crc(0, fit, 0, 14));
+        assertEquals(0, RideExporter.crc(0, fit, 0, fit.length));
+
+        // last record: 10 m/s and 200 W
+        int last = fit.length - 2 - 9;
+        assertEquals(1, fit[last]);
+        assertEquals(RideExporter.fitTime(START + 9000), (fit[last + 1] & 0xff) | (fit[last + 2] & 0xff) << 8
+                | (fit[last + 3] & 0xff) << 16 | (long) (fit[last + 4] & 0xff) << 24);
+        assertEquals(10000, (fit[last + 5] & 0xff) | (fit[last + 6] & 0xff) << 8);
+        assertEquals(200, (fit[last + 7] & 0xff) | (fit[last + 8] & 0xff) << 8);
+    }
+
+    @Test
+    public void exportsThreeHourRideQuickly() throws Exception {
+        RideRecorder recorder = new RideRecorder(file);
+        int n = 3 * 3600 * 4;
+        for (int i = 0; i < n; i++)
+            recorder.append(START + i * 250, 25.0f + (i % 100) * 0.1f, 180.0f + i % 50, FanSpeed.FAN_1, 55);
+        recorder.close();
+
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        // warm up
+        RideExporter.writeCsv(file, discard);
+        RideExporter.writeFit(file, discard);
+        long start = System.nanoTime();
+        assertEquals(n, RideExporter.writeCsv(file, discard));
+        assertEquals(n / 4, RideExporter.writeFit(file, discard));
+        long ms = (System.nanoTime() - start) / 1000000;
+        // well under a second for a 3 hour ride once warmed up
+        assertTrue(ms + "ms", ms < 1000);
+    }
+
+    @Test
+    public void appendDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        RideRecorder recorder = new RideRecorder(file);
+        long time = START;
+        for (int i = 0; i < 20000; i++)
+            recorder.append(time += 250, 25.0f, 180.0f, FanSpeed.FAN_1, 55);
+
+        long overhead = bean.getThreadAllocatedBytes(tid);
+        overhead = bean.getThreadAllocatedBytes(tid) - overhead;
+        long before = bean.getThreadAllocatedBytes(tid);
+        // stays within the first chunk
+        for (int i = 0; i < 20000; i++)
+            recorder.append(time += 250, 25.0f, 180.0f, FanSpeed.FAN_1, 55);
+        long allocated = bean.getThreadAllocatedBytes(tid) - before - overhead;
+        recorder.close();
+        assertEquals(0, allocated);
+    }
+}
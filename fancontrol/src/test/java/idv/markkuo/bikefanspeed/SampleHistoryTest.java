@@ -0,0 +1,65 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleHistoryTest {
+
+    @Test
+    public void copiesTheWindowOldestFirst() {
+        SampleHistory history = new SampleHistory(10);
+        // rounded up to 16, a quarter of it kept from readers
+        assertEquals(12, history.getCapacity());
+        assertEquals(-1, history.getLastTime());
+        long[] times = new long[16];
+        float[] values = new float[16];
+        byte[] fans = new byte[16];
+        assertEquals(0, history.copy(0, times, values, fans));
+
+        for (int i = 0; i < 40; i++)
+            history.add(i * 250L, i, i < 30 ? FanSpeed.FAN_1 : FanSpeed.FAN_2);
+        assertEquals(40, history.getWriteCount());
+        assertEquals(39 * 250L, history.getLastTime());
+
+        // the last 2 s
+        assertEquals(9, history.copy(history.getLastTime() - 2000, times, values, fans));
+        for (int k = 0; k < 9; k++) {
+            assertEquals((31 + k) * 250L, times[k]);
+            assertEquals(31 + k, values[k], 0.0f);
+            assertEquals(FanSpeed.FAN_2.ordinal(), fans[k]);
+        }
+        // more than is kept
+        assertEquals(12, history.copy(0, times, values, fans));
+        assertEquals(28 * 250L, times[0]);
+        assertEquals(FanSpeed.FAN_1.ordinal(), fans[0]);
+        // more than the arrays hold
+        assertEquals(4, history.copy(0, new long[4], new float[4], new byte[4]));
+    }
+
+    @Test
+    public void readerNeverSeesATornWindow() throws Exception {
+        final SampleHistory history = new SampleHistory(64);
+        final int samples = 200000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < samples; i++)
+                    history.add(i, i, FanSpeed.values()[i % 3]);
+            }
+        });
+        writer.start();
+        long[] times = new long[64];
+        float[] values = new float[64];
+        byte[] fans = new byte[64];
+        while (writer.isAlive()) {
+            int n = history.copy(0, times, values, fans);
+            for (int k = 1; k < n; k++)
+                assertEquals(times[k - 1] + 1, times[k]);
+            for (int k = 0; k < n; k++)
+                assertEquals((float) times[k], values[k], 0.0f);
+        }
+        writer.join();
+        assertEquals(samples - 1, history.getLastTime());
+    }
+}
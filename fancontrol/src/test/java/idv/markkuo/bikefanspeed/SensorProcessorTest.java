@@ -0,0 +1,188 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SensorProcessorTest {
+
+    // counts events and checks each source arrives in order
+    private static class Counter implements SensorRing.Consumer {
+        final long[] last = new long[2];
+        final int[] count = new int[2];
+        volatile boolean ordered = true;
+        final CountDownLatch done;
+
+        Counter(int expected) {
+            done = new CountDownLatch(expected);
+            last[0] = last[1] = -1;
+        }
+
+        @Override
+        public void onEvent(int source, int kind, long time, float value, long a, long b, long queued) {
+            if (time <= last[source] || a != time * 2 || value != time)
+                ordered = false;
+            last[source] = time;
+            count[source]++;
+            done.countDown();
+        }
+    }
+
+    // 1us of CPU and 64 bytes more at every call
+    private static class FakeMeter implements SensorProcessor.Meter {
+        long cpu = 0;
+        long alloc = 0;
+
+        @Override
+        public long cpuNanos() {
+            return cpu += 1000;
+        }
+
+        @Override
+        public long allocatedBytes() {
+            return alloc += 64;
+        }
+    }
+
+    // the current thread on a desktop JVM; Android has no java.lang.management
+    private static class JvmMeter implements SensorProcessor.Meter {
+        private final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        @Override
+        public long cpuNanos() {
+            return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : -1;
+        }
+
+        @Override
+        public long allocatedBytes() {
+            if (bean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+            return -1;
+        }
+    }
+
+    @Test
+    public void ringRoundsUpAndDropsWhenFull() {
+        SensorRing ring = new SensorRing(5);
+        assertEquals(8, ring.capacity());
+        for (int i = 0; i < 8; i++)
+            assertTrue(ring.offer(0, SensorRing.SPEED, i, i, i * 2, 0));
+        assertFalse(ring.offer(0, SensorRing.SPEED, 8, 8, 16, 0));
+        assertEquals(1, ring.getDroppedCount());
+
+        Counter counter = new Counter(8);
+        assertEquals(3, ring.drain(counter, 3));
+        assertEquals(5, ring.drain(counter, 100));
+        assertTrue(ring.isEmpty());
+        assertTrue(counter.ordered);
+        assertEquals(8, counter.count[0]);
+        // slots are reused after wrapping around
+        assertTrue(ring.offer(0, SensorRing.SPEED, 9, 9, 18, 0));
+        assertEquals(1, ring.drain(counter, 100));
+        assertTrue(counter.ordered);
+    }
+
+    @Test
+    public void twoProducersArriveInOrder() throws InterruptedException {
+        final int perSource = 20000;
+        final Counter counter = new Counter(2 * perSource);
+        final SensorProcessor processor = new SensorProcessor(new SensorRing(64), counter,
+                new JvmMeter(), "test", Thread.NORM_PRIORITY - 1);
+        processor.start();
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < 2; p++) {
+            final int source = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perSource; i++) {
+                        // a full ring drops, so wait like a slow sensor would
+                        while (!processor.offer(source, SensorRing.POWER, i, i, i * 2, 0))
+                            Thread.yield();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread t : producers)
+            t.join();
+        assertTrue(counter.done.await(10, TimeUnit.SECONDS));
+        processor.stop(1000);
+        assertFalse(processor.isAlive());
+        assertTrue(counter.ordered);
+        assertEquals(2 * perSource, processor.getEventCount());
+        assertTrue(processor.getMaxAllocatedPerBudget() >= processor.getAllocatedPerBudget());
+    }
+
+    @Test
+    public void budgetIsPerThousandEvents() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2500);
+        SensorProcessor processor = new SensorProcessor(new SensorRing(4096), new SensorRing.Consumer() {
+            @Override
+            public void onEvent(int source, int kind, long time, float value, long a, long b, long queued) {
+                done.countDown();
+            }
+        }, new FakeMeter(), "test", Thread.NORM_PRIORITY);
+        assertEquals(-1, processor.getCpuNanosPerBudget());
+        // queued before the thread runs, so it takes them in full batches
+        for (int i = 0; i < 2500; i++)
+            processor.offer(0, SensorRing.SPEED, i, 0.0f, 0, 0);
+        processor.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        processor.stop(1000);
+        assertEquals(2500, processor.getEventCount());
+        // two windows of 1024 events, one meter call each, scaled to 1000 events
+        assertEquals(1000L * 1000 / 1024, processor.getCpuNanosPerBudget());
+        assertEquals(64L * 1000 / 1024, processor.getAllocatedPerBudget());
+        assertEquals(0, processor.getDroppedCount());
+    }
+
+    @Test
+    public void lostSensorWaitsForRoom() throws InterruptedException {
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int[] kinds = new int[8];
+        final CountDownLatch done = new CountDownLatch(3);
+        final SensorProcessor processor = new SensorProcessor(new SensorRing(2), new SensorRing.Consumer() {
+            @Override
+            public void onEvent(int source, int kind, long time, float value, long a, long b, long queued) {
+                holding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                kinds[(int) time] = kind;
+                done.countDown();
+            }
+        }, new FakeMeter(), "test", Thread.NORM_PRIORITY);
+        processor.start();
+        // the slot held by the consumer is freed after it returns, one more fills the ring
+        assertTrue(processor.offer(0, SensorRing.SPEED, 0, 0.0f, 0, 0));
+        assertTrue(holding.await(10, TimeUnit.SECONDS));
+        assertTrue(processor.offer(0, SensorRing.SPEED, 1, 0.0f, 0, 0));
+        assertFalse(processor.offer(0, SensorRing.SPEED, 7, 0.0f, 0, 0));
+        Thread dead = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processor.put(0, SensorRing.SPEED_LOST, 2);
+            }
+        });
+        dead.start();
+        dead.join(100);
+        assertTrue(dead.isAlive());
+        release.countDown();
+        dead.join(10000);
+        assertFalse(dead.isAlive());
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        processor.stop(1000);
+        assertEquals(SensorRing.SPEED_LOST, kinds[2]);
+        assertEquals(1, processor.getDroppedCount());
+    }
+}
@@ -0,0 +1,205 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs ServoHttpClient against a local stub of the Pi servo http server.
+ */
+public class ServoHttpClientTest {
+    private StubServer server;
+    private ServoHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        client = new ServoHttpClient("127.0.0.1", server.getPort(), 11, 500, 500);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void reusesOneConnection() throws Exception {
+        for (int i = 0; i < 20; i++)
+            client.setPosition(10 + i);
+        assertEquals(1, client.getConnectCount());
+        assertEquals(1, server.accepted.get());
+        assertEquals(20, server.positions.size());
+        assertEquals("10", server.positions.get(0));
+        assertEquals("29", server.positions.get(19));
+    }
+
+    @Test
+    public void pipelinesMultiStepMove() throws Exception {
+        client.setPositions(new int[]{45, 55}, 2);
+        client.setPositions(new int[]{10}, 1);
+        assertEquals(1, server.accepted.get());
+        assertEquals(3, server.positions.size());
+        assertEquals("45", server.positions.get(0));
+        assertEquals("55", server.positions.get(1));
+        assertEquals("10", server.positions.get(2));
+    }
+
+    @Test
+    public void drainsChunkedResponses() throws Exception {
+        server.chunked = true;
+        for (int i = 0; i < 5; i++)
+            client.setPosition(55);
+        assertEquals(1, server.accepted.get());
+        assertEquals(5, server.positions.size());
+    }
+
+    @Test
+    public void reconnectsWhenServerClosesConnection() throws Exception {
+        server.closeAfterResponse = true;
+        client.setPosition(55);
+        client.setPosition(85);
+        assertEquals(2, server.accepted.get());
+        assertEquals(2, server.positions.size());
+    }
+
+    @Test
+    public void reconnectsAfterIdleConnectionIsDropped() throws Exception {
+        client.setPosition(55);
+        server.dropConnections();
+        client.setPosition(85);
+        assertEquals(2, client.getConnectCount());
+        assertEquals("85", server.positions.get(server.positions.size() - 1));
+    }
+
+    @Test
+    public void reportsErrorStatus() throws Exception {
+        server.status = 500;
+        try {
+            client.setPosition(55);
+            fail("expected an error status");
+        } catch (ServoHttpClient.ServoStatusException e) {
+            assertEquals(500, e.status);
+            assertEquals(55, e.position);
+        }
+        // the connection is still usable afterwards
+        server.status = 200;
+        client.setPosition(10);
+        assertEquals(1, server.accepted.get());
+    }
+
+    @Test
+    public void timesOutOnHungServer() throws Exception {
+        server.hang = true;
+        long start = System.nanoTime();
+        try {
+            client.setPosition(55);
+            fail("expected a timeout");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 < 3000);
+    }
+
+    // very small http/1.1 server answering GET /servo?pin=X&pos=Y like the one on the Pi
+    static class StubServer implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<String> positions = Collections.synchronizedList(new ArrayList<String>());
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        volatile int status = 200;
+        volatile boolean chunked = false;
+        volatile boolean closeAfterResponse = false;
+        volatile boolean hang = false;
+
+        StubServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread t = new Thread(this, "StubServer");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void dropConnections() throws IOException {
+            synchronized (sockets) {
+                for (Socket s : sockets)
+                    s.close();
+                sockets.clear();
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            dropConnections();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket s = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    sockets.add(s);
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(s);
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket s) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII"));
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("GET "))
+                        continue;
+                    String path = line.split(" ")[1];
+                    // skip headers
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    }
+                    if (hang)
+                        continue;
+                    positions.add(path.substring(path.indexOf("pos=") + 4));
+                    String body = status == 200 ? "OK" : "Bad servo";
+                    String resp = "HTTP/1.1 " + status + " X\r\n";
+                    if (chunked)
+                        resp += "Transfer-Encoding: chunked\r\n\r\n" + Integer.toHexString(body.length()) + "\r\n" + body + "\r\n0\r\n\r\n";
+                    else
+                        resp += (closeAfterResponse ? "Connection: close\r\n" : "") + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+                    out.write(resp.getBytes("US-ASCII"));
+                    out.flush();
+                    if (closeAfterResponse) {
+                        s.close();
+                        return;
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
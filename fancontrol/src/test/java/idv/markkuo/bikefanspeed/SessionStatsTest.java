@@ -0,0 +1,66 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionStatsTest {
+
+    @Test
+    public void speedAveragesOverTimeAndSkipsGaps() {
+        SessionStats stats = new SessionStats();
+        // 36 km/h for 100 s at 4 Hz is 1 km
+        long t = 0;
+        for (; t <= 100000; t += 250)
+            stats.onSpeed(t, 36.0f, FanSpeed.FAN_2);
+        // a dropout, then 10 s at 18 km/h
+        t += 60000;
+        for (long end = t + 10000; t <= end; t += 250)
+            stats.onSpeed(t, 18.0f, FanSpeed.FAN_1);
+        assertEquals(1.05, stats.getDistance(), 1e-6);
+        assertEquals((36.0f * 100 + 18.0f * 10) / 110, stats.getAverageSpeed(), 1e-3f);
+        assertEquals(36.0f, stats.getMaxSpeed(), 0.0f);
+        assertEquals(110000, stats.getTimeAt(FanSpeed.FAN_2) + stats.getTimeAt(FanSpeed.FAN_1));
+    }
+
+    @Test
+    public void normalizedPowerWeighsEfforts() {
+        SessionStats steady = new SessionStats();
+        SessionStats intervals = new SessionStats();
+        for (long t = 0; t <= 600000; t += 1000) {
+            steady.onPower(t, 200.0f, FanSpeed.FAN_1);
+            // one minute on, one off
+            intervals.onPower(t, (t / 60000) % 2 == 0 ? 400.0f : 0.0f, FanSpeed.FAN_1);
+        }
+        assertEquals(200.0f, steady.getNormalizedPower(), 0.01f);
+        assertEquals(200.0f, steady.getAveragePower(), 0.01f);
+        assertEquals(120.0, steady.getEnergy(), 0.01);
+        assertEquals(200.0f, intervals.getAveragePower(), 1.0f);
+        assertTrue("NP " + intervals.getNormalizedPower(), intervals.getNormalizedPower() > 250.0f);
+    }
+
+    @Test
+    public void fanTimeAndEnergyFollowFanSpeed() {
+        SessionStats stats = new SessionStats();
+        for (long t = 0; t <= 20000; t += 1000)
+            stats.onPower(t, 100.0f, t < 10000 ? FanSpeed.FAN_STOP : FanSpeed.FAN_2);
+        assertEquals(10000, stats.getTimeAt(FanSpeed.FAN_STOP));
+        assertEquals(10000, stats.getTimeAt(FanSpeed.FAN_2));
+        assertEquals(0, stats.getTimeAt(FanSpeed.FAN_1));
+        assertEquals(0.9, stats.getEnergyAt(FanSpeed.FAN_STOP), 1e-9);
+        assertEquals(1.1, stats.getEnergyAt(FanSpeed.FAN_2), 1e-9);
+    }
+
+    @Test
+    public void keepsBothSourcesAcrossSwitch() {
+        SessionStats stats = new SessionStats();
+        for (long t = 0; t <= 10000; t += 1000)
+            stats.onSpeed(t, 30.0f, FanSpeed.FAN_1);
+        // switched to power: speed samples stop, its average stays
+        for (long t = 11000; t <= 20000; t += 1000)
+            stats.onPower(t, 150.0f, FanSpeed.FAN_1);
+        assertEquals(30.0f, stats.getAverageSpeed(), 1e-3f);
+        assertEquals(150.0f, stats.getAveragePower(), 1e-3f);
+        assertEquals(20000, stats.getTimeAt(FanSpeed.FAN_1));
+    }
+}
@@ -0,0 +1,198 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    // remembers the wheel time of every expiry
+    private static class Recorder extends TimerWheel.Timeout {
+        final List<Long> expiries = new ArrayList<>();
+
+        @Override
+        protected void expired(long now) {
+            expiries.add(now);
+        }
+    }
+
+    @Test
+    public void expiresAtTheFirstTickAfterTheDelay() {
+        TimerWheel wheel = new TimerWheel(100, 8, 1000);
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        wheel.schedule(a, 250);
+        // longer than a revolution of 800ms
+        wheel.schedule(b, 2000);
+        assertEquals(2, wheel.size());
+        wheel.advance(1299);
+        assertTrue(a.expiries.isEmpty());
+        wheel.advance(1300);
+        assertEquals(1, a.expiries.size());
+        assertFalse(a.isScheduled());
+        // b shares a slot with earlier ticks but waits for its round
+        for (long t = 1400; t < 3000; t += 100)
+            wheel.advance(t);
+        assertTrue(b.expiries.isEmpty());
+        wheel.advance(3000);
+        assertEquals(Long.valueOf(3000), b.expiries.get(0));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void rescheduleMovesAndCancelRemoves() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        wheel.schedule(a, 500);
+        wheel.schedule(b, 500);
+        // like a sample arriving before the silence is over
+        wheel.advance(400);
+        wheel.schedule(a, 500);
+        wheel.cancel(b);
+        assertEquals(1, wheel.size());
+        wheel.advance(800);
+        assertTrue(a.expiries.isEmpty());
+        wheel.advance(900);
+        assertEquals(1, a.expiries.size());
+        assertTrue(b.expiries.isEmpty());
+    }
+
+    @Test
+    public void catchesUpAfterALongPause() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        Recorder[] timeouts = new Recorder[20];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new Recorder();
+            wheel.schedule(timeouts[i], 100 * (i + 1));
+        }
+        Recorder later = new Recorder();
+        wheel.schedule(later, 1000000);
+        // one jump over many revolutions
+        wheel.advance(60000);
+        for (Recorder r : timeouts)
+            assertEquals(1, r.expiries.size());
+        assertTrue(later.isScheduled());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void firstSampleAfterAnIdleSpellGetsAFullSilence() throws Exception {
+        TimerWheel wheel = new TimerWheel(50, 64, SensorProcessor.now());
+        final AtomicInteger silent = new AtomicInteger();
+        final SensorWatchdog watchdog = new SensorWatchdog("speed", wheel, 300, new SensorWatchdog.Listener() {
+            @Override
+            public boolean onSilent(SensorWatchdog watchdog, int steps) {
+                silent.incrementAndGet();
+                return false;
+            }
+        });
+        SensorProcessor processor = new SensorProcessor(new SensorRing(16), new SensorRing.Consumer() {
+            @Override
+            public void onEvent(int source, int kind, long time, float value, long a, long b, long queued) {
+                watchdog.onSample(time);
+            }
+        }, new FakeMeter(), wheel, "Sensor", Thread.NORM_PRIORITY);
+        processor.start();
+        try {
+            processor.offer(0, SensorRing.SPEED, 1, 20.0f, 0, 0);
+            awaitCount(silent, 1);
+            // the wheel is empty and the thread parked for longer than the silence
+            Thread.sleep(1000);
+            long resumed = SensorProcessor.now();
+            processor.offer(0, SensorRing.SPEED, 2, 20.0f, 0, 0);
+            awaitCount(silent, 2);
+            assertTrue(SensorProcessor.now() - resumed >= 300);
+        } finally {
+            processor.stop(1000);
+        }
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (count.get() < expected && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(expected, count.get());
+    }
+
+    private static class FakeMeter implements SensorProcessor.Meter {
+        @Override
+        public long cpuNanos() {
+            return -1;
+        }
+
+        @Override
+        public long allocatedBytes() {
+            return -1;
+        }
+    }
+
+    @Test
+    public void watchdogCoastsTheFanDown() throws Exception {
+        final List<Integer> moves = new ArrayList<>();
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(new FanActuator() {
+            @Override
+            public void setPositions(int[] positions, int count) throws IOException {
+                synchronized (moves) {
+                    for (int i = 0; i < count; i++)
+                        moves.add(positions[i]);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+                fail("servo error " + error);
+            }
+        });
+        dispatcher.start();
+        try {
+            final FanControl control = TraceReplayer.defaultControl(false, 0).create(dispatcher);
+            TimerWheel wheel = new TimerWheel(100, 64, 0);
+            final List<Integer> steps = new ArrayList<>();
+            SensorWatchdog watchdog = new SensorWatchdog("speed", wheel, 1000, new SensorWatchdog.Listener() {
+                @Override
+                public boolean onSilent(SensorWatchdog watchdog, int step) {
+                    steps.add(step);
+                    return control.coastDown(false);
+                }
+            });
+            dispatcher.requestAuto(FanSpeed.FAN_2);
+            assertTrue(dispatcher.awaitIdle(2000));
+            watchdog.onSample(12345);
+            wheel.advance(999);
+            assertTrue(steps.isEmpty());
+            wheel.advance(1000);
+            assertTrue(dispatcher.awaitIdle(2000));
+            assertEquals(FanSpeed.FAN_1, dispatcher.getFanSpeed());
+            wheel.advance(2000);
+            assertTrue(dispatcher.awaitIdle(2000));
+            assertEquals(FanSpeed.FAN_STOP, dispatcher.getFanSpeed());
+            // stopped, nothing left to do until the next sample
+            assertFalse(watchdog.isScheduled());
+            wheel.advance(10000);
+            assertEquals(2, steps.size());
+            assertEquals(1, watchdog.getSilentCount());
+            assertEquals(12345, watchdog.getLastTimestamp());
+            // through the usual transition from FAN_2 to FAN_1
+            synchronized (moves) {
+                assertTrue(moves.toString(), moves.contains(45));
+            }
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TraceReplayerTest {
+    @Test
+    public void replaysHourLongRideInSeconds() throws Exception {
+        RideTrace trace = RideTrace.synthetic(3600000, 4, 42);
+        assertEquals(3600 * 4, trace.size());
+        TraceReplayer.Report report = new TraceReplayer(trace, TraceReplayer.AS_FAST_AS_POSSIBLE, false)
+                .run(TraceReplayer.defaultControl(false));
+        // far faster than real time, even on a loaded machine
+        assertTrue("replayed in " + report.wallTime + "ms", report.wallTime < trace.getDuration() / 10);
+        assertTrue(report.commands > 0);
+        // every move reaches the stub
+        assertTrue(report.commands >= report.executed);
+        long total = 0;
+        for (long t : report.timeInState)
+            total += t;
+        assertEquals(trace.getDuration(), total);
+        assertTrue(report.timeInState[FanSpeed.FAN_2.ordinal()] > 0);
+    }
+
+    @Test
+    public void pacesReplay() throws Exception {
+        // 10 s of ride at 20x
+        RideTrace trace = RideTrace.synthetic(10000, 4, 1);
+        TraceReplayer.Report report = new TraceReplayer(trace, 20.0, true)
+                .run(TraceReplayer.defaultControl(true));
+        assertTrue("replayed in " + report.wallTime + "ms", report.wallTime >= trace.getDuration() / 20);
+    }
+
+    @Test
+    public void replaysGymWithSharedWorkerAndSocket() throws Exception {
+        RideTrace[] traces = new RideTrace[8];
+        for (int i = 0; i < traces.length; i++)
+            traces[i] = RideTrace.synthetic(300000, 4, i + 1);
+        int threads = Thread.activeCount();
+        TraceReplayer.Report report = new TraceReplayer(traces, 50.0, false)
+                .run(TraceReplayer.defaultControl(false));
+        assertEquals(8, report.fans);
+        assertEquals(8 * 300 * 4, report.samples);
+        // all fans send through one socket, and every one of them got its commands
+        assertEquals(1, report.servoSockets);
+        for (long commands : report.commandsByFan)
+            assertTrue(commands > 0);
+        assertTrue(report.commands >= report.executed);
+        // the worker threads are gone again
+        assertTrue(Thread.activeCount() <= threads + 1);
+    }
+
+    @Test
+    public void replaysRecordedRide() throws Exception {
+        File file = File.createTempFile("ride", ".ride");
+        try {
+            RideRecorder recorder = new RideRecorder(file);
+            // 30 s riding and 30 s stopped at 4 Hz
+            for (int i = 0; i < 240; i++)
+                recorder.append(250L * i, i < 120 ? 25.0f : 0.0f, -1.0f, FanSpeed.FAN_STOP, -1);
+            recorder.close();
+            RideTrace trace = RideTrace.load(file);
+            assertEquals(240, trace.size());
+            // paced, as fast as possible would coalesce the whole ride into its last request
+            TraceReplayer.Report report = new TraceReplayer(trace, 50.0, false)
+                    .run(TraceReplayer.defaultControl(false));
+            // up through FAN_1 to FAN_2, and back down to stop with the rewind
+            assertEquals(4, report.executed);
+            assertEquals(5, report.commands);
+            assertTrue(report.timeInState[FanSpeed.FAN_2.ordinal()] >= 20000);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
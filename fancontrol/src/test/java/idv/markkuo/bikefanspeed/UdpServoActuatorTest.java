@@ -0,0 +1,96 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs UdpServoActuator against a local stub receiver.
+ */
+public class UdpServoActuatorTest {
+    private DatagramSocket receiver;
+    private UdpServoActuator actuator;
+    // arrival time (ns), length, magic, version, pin, position and sequence of each datagram received
+    private final BlockingQueue<long[]> received = new ArrayBlockingQueue<>(4096);
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[64];
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        receiver.receive(p);
+                        long now = System.nanoTime();
+                        int seq = ((buf[4] & 0xff) << 24) | ((buf[5] & 0xff) << 16) | ((buf[6] & 0xff) << 8) | (buf[7] & 0xff);
+                        received.offer(new long[]{now, p.getLength(), buf[0], buf[1], buf[2] & 0xff, buf[3] & 0xff, seq});
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+        }, "StubReceiver");
+        t.setDaemon(true);
+        t.start();
+        actuator = new UdpServoActuator("127.0.0.1", receiver.getLocalPort(), 11);
+    }
+
+    @After
+    public void tearDown() {
+        actuator.close();
+        receiver.close();
+    }
+
+    @Test
+    public void encodesPinPositionAndSequence() throws Exception {
+        actuator.setPositions(new int[]{45, 55}, 2);
+        long[] first = received.poll(1, TimeUnit.SECONDS);
+        long[] second = received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(UdpServoActuator.PACKET_SIZE, first[1]);
+        assertEquals(UdpServoActuator.MAGIC, first[2]);
+        assertEquals(UdpServoActuator.VERSION, first[3]);
+        assertEquals(11, first[4]);
+        assertEquals(45, first[5]);
+        assertEquals(55, second[5]);
+        // sequence grows by one per datagram
+        assertEquals(1, (int) second[6] - (int) first[6]);
+        assertEquals((int) second[6], actuator.getSequence());
+    }
+
+    @Test
+    public void measuresCommandLatency() throws Exception {
+        int n = 500;
+        int[] position = new int[1];
+        long sequence = -1;
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int i = 0; i < n; i++) {
+            position[0] = i % 100;
+            long start = System.nanoTime();
+            actuator.setPositions(position, 1);
+            long[] r = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull("datagram " + i + " lost", r);
+            latency.record(r[0] - start);
+            assertEquals(position[0], r[5]);
+            if (sequence >= 0)
+                assertEquals(sequence + 1, r[6]);
+            sequence = r[6];
+        }
+        assertEquals(n, actuator.getSentCount());
+        assertEquals(n, latency.getCount());
+        // tens of us on loopback; generous, it only catches a send that blocks or waits
+        assertTrue(latency.toString(), latency.getPercentile(0.5) < 50000);
+    }
+}
@@ -0,0 +1,100 @@
+package idv.markkuo.bikefanspeed;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WheelSpeedCalculatorTest {
+    // same constants the BigDecimal based speed path uses
+    private static final BigDecimal CIRCUMFERENCE = new BigDecimal(2.095);
+    private static final BigDecimal MS_TO_KMS_RATIO = new BigDecimal(3.6);
+    private static final BigDecimal TICKS_PER_SECOND = new BigDecimal(1024);
+
+    // speed in km/h the way the BigDecimal path computes it
+    private static float referenceSpeed(long revs, long ticks) {
+        BigDecimal seconds = new BigDecimal(ticks).divide(TICKS_PER_SECOND, MathContext.DECIMAL64);
+        return CIRCUMFERENCE.multiply(new BigDecimal(revs))
+                .divide(seconds, MathContext.DECIMAL64)
+                .multiply(MS_TO_KMS_RATIO).floatValue();
+    }
+
+    @Test
+    public void matchesBigDecimalSpeed() {
+        WheelSpeedCalculator calc = new WheelSpeedCalculator();
+        Random random = new Random(42);
+        long now = 0;
+        // start close to the 16 bit limits so both counters roll over
+        long eventTime = 65000;
+        long revolutions = 65530;
+        calc.update(now, eventTime, revolutions);
+        for (int i = 0; i < 10000; i++) {
+            long revs = 1 + random.nextInt(4);
+            long ticks = 200 + random.nextInt(2000);
+            now += 250;
+            eventTime = (eventTime + ticks) % 65536;
+            revolutions = (revolutions + revs) % 65536;
+            float speed = calc.update(now, eventTime, revolutions);
+            float expected = referenceSpeed(revs, ticks);
+            assertEquals("sample " + i, expected, speed, expected * 1e-5f);
+        }
+    }
+
+    @Test
+    public void usesConfiguredCircumference() {
+        WheelSpeedCalculator calc = new WheelSpeedCalculator(1.0f);
+        calc.update(0, 0, 0);
+        // 1 m in 1 s = 3.6 km/h
+        assertEquals(3.6f, calc.update(1000, 1024, 1), 1e-4f);
+        calc.setCircumference(2.0f);
+        assertEquals(7.2f, calc.update(2000, 2048, 2), 1e-4f);
+    }
+
+    @Test
+    public void stopsWhenWheelStopsTurning() {
+        WheelSpeedCalculator calc = new WheelSpeedCalculator();
+        calc.update(0, 0, 0);
+        float speed = calc.update(250, 1024, 1);
+        assertTrue(speed > 0.0f);
+        // the sensor repeats its last event
+        assertEquals(speed, calc.update(1000, 1024, 1), 0.0f);
+        assertEquals(0.0f, calc.update(3250, 1024, 1), 0.0f);
+    }
+
+    @Test
+    public void hotPathDoesNotAllocate() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        WheelSpeedCalculator calc = new WheelSpeedCalculator();
+        // warm up so the JIT has compiled the path
+        long eventTime = 0, revolutions = 0, now = 0;
+        float sum = 0;
+        for (int i = 0; i < 200000; i++) {
+            eventTime = (eventTime + 500) % 65536;
+            revolutions = (revolutions + 1) % 65536;
+            now += 250;
+            sum += calc.update(now, eventTime, revolutions);
+        }
+
+        long overhead = bean.getThreadAllocatedBytes(tid);
+        overhead = bean.getThreadAllocatedBytes(tid) - overhead;
+        // a late JIT recompile of the loop itself can allocate a few bytes, so take the best run
+        long allocated = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < 3 && allocated != 0; attempt++) {
+            long before = bean.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < 100000; i++) {
+                eventTime = (eventTime + 500) % 65536;
+                revolutions = (revolutions + 1) % 65536;
+                now += 250;
+                sum += calc.update(now, eventTime, revolutions);
+            }
+            allocated = Math.min(allocated, bean.getThreadAllocatedBytes(tid) - before - overhead);
+        }
+        assertTrue(sum > 0);
+        assertEquals(0, allocated);
+    }
+}
@@ -0,0 +1,130 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs a trace through the three-step fan decision with and without pre-spin and reports how
+ * much earlier the fan went up, and how often it went up for nothing.
+ *
+ * Only the decisions are compared, no servo is involved: every step up of the plain decision
+ * counts as anticipated if the pre-spin decision was at that level already, with the time it
+ * had been there as the lag removed. A pre-spin that falls back below the level before the plain
+ * decision gets there is a false start.
+ *
+ * Usage: PreSpinEvaluator &lt;ride file | synthetic:minutes&gt; [horizon s] [speed | power]
+ */
+public class PreSpinEvaluator {
+    public static class Result {
+        // steps up of the plain decision
+        public long steps;
+        // of which the pre-spin decision was there before
+        public long anticipated;
+        public long totalLead;
+        public long maxLead;
+        public long falseStarts;
+
+        // mean time in ms the fan went up earlier, over all steps up
+        public long getMeanLead() {
+            return steps == 0 ? 0 : totalLead / steps;
+        }
+
+        @Override
+        public String toString() {
+            return "steps up:" + steps + ", anticipated:" + anticipated + ", lag removed mean:"
+                    + getMeanLead() + "ms max:" + maxLead + "ms, false starts:" + falseStarts;
+        }
+    }
+
+    private PreSpinEvaluator() {
+    }
+
+    /**
+     * @param horizon pre-spin horizon in ms
+     */
+    public static Result evaluate(RideTrace trace, boolean usePower, long horizon) {
+        FanControl plain = createControl(usePower, 0);
+        FanControl preSpin = createControl(usePower, horizon);
+        Result result = new Result();
+
+        FanSpeed[] levels = FanSpeed.values();
+        // since when the pre-spin decision has been at or above each level, -1 if below
+        long[] since = new long[levels.length];
+        // the plain decision reached the level while the pre-spin one was there
+        boolean[] reached = new boolean[levels.length];
+        Arrays.fill(since, -1);
+        FanSpeed last = FanSpeed.FAN_STOP;
+        for (int i = 0; i < trace.size(); i++) {
+            long time = trace.getTime(i);
+            float value = usePower ? trace.getPower(i) : trace.getSpeed(i);
+            if (value < 0.0f)
+                continue;
+            if (usePower) {
+                plain.onPower(time, value);
+                preSpin.onPower(time, value);
+            } else {
+                plain.onSpeed(time, value);
+                preSpin.onSpeed(time, value);
+            }
+            FanSpeed early = preSpin.getTargetLevel();
+            for (int l = 1; l < levels.length; l++) {
+                if (early.ordinal() >= l) {
+                    if (since[l] < 0) {
+                        since[l] = time;
+                        reached[l] = false;
+                    }
+                } else if (since[l] >= 0) {
+                    if (!reached[l])
+                        result.falseStarts++;
+                    since[l] = -1;
+                }
+            }
+            FanSpeed level = plain.getTargetLevel();
+            for (int l = last.ordinal() + 1; l <= level.ordinal(); l++) {
+                result.steps++;
+                if (since[l] >= 0) {
+                    reached[l] = true;
+                    long lead = time - since[l];
+                    if (lead > 0) {
+                        result.anticipated++;
+                        result.totalLead += lead;
+                        result.maxLead = Math.max(result.maxLead, lead);
+                    }
+                }
+            }
+            last = level;
+        }
+        return result;
+    }
+
+    // the replay's default three-step control on a dispatcher which is never started
+    private static FanControl createControl(boolean usePower, long horizon) {
+        FanCommandDispatcher dispatcher = new FanCommandDispatcher(new FanActuator() {
+            @Override
+            public void setPositions(int[] positions, int count) {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, null);
+        dispatcher.setUsePower(usePower);
+        return TraceReplayer.defaultControl(false, horizon).create(dispatcher);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PreSpinEvaluator <ride file | synthetic:minutes> [horizon s] [speed | power]");
+            System.exit(1);
+        }
+        RideTrace trace;
+        if (args[0].startsWith("synthetic:"))
+            trace = RideTrace.synthetic(Long.parseLong(args[0].substring("synthetic:".length())) * 60000, 4, 1);
+        else
+            trace = RideTrace.load(new File(args[0]));
+        long horizon = args.length > 1 ? Math.round(Double.parseDouble(args[1]) * 1000) : 3000;
+        boolean power = args.length > 2 && args[2].equals("power");
+        System.out.println(evaluate(trace, power, horizon));
+    }
+}
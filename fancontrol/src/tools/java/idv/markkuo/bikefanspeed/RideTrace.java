@@ -0,0 +1,114 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Speed and power samples with their sensor timestamps, to be replayed into the fan control.
+ * Speed or power is negative where the sample has none.
+ */
+public class RideTrace {
+    private final long[] times;
+    private final float[] speeds;
+    private final float[] powers;
+
+    public RideTrace(long[] times, float[] speeds, float[] powers) {
+        if (times.length != speeds.length || times.length != powers.length)
+            throw new IllegalArgumentException("Trace arrays differ in length");
+        this.times = times;
+        this.speeds = speeds;
+        this.powers = powers;
+    }
+
+    /**
+     * Loads a ride recorded by RideRecorder.
+     */
+    public static RideTrace load(File ride) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(ride, "r")) {
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            if (raf.length() < RideRecorder.HEADER_SIZE || in.getInt(0) != RideRecorder.MAGIC)
+                throw new IOException("Not a ride file:" + ride);
+            long count = Math.min(in.getLong(RideRecorder.COUNT_OFFSET),
+                    (raf.length() - RideRecorder.HEADER_SIZE) / RideRecorder.RECORD_SIZE);
+            int n = (int) Math.max(count, 0);
+            long[] times = new long[n];
+            float[] speeds = new float[n];
+            float[] powers = new float[n];
+            for (int i = 0; i < n; i++) {
+                int offset = RideRecorder.HEADER_SIZE + i * RideRecorder.RECORD_SIZE;
+                times[i] = in.getLong(offset);
+                speeds[i] = in.getFloat(offset + 8);
+                powers[i] = in.getFloat(offset + 12);
+            }
+            return new RideTrace(times, speeds, powers);
+        }
+    }
+
+    /**
+     * A made up ride of the given length (ms) at rate samples per second: warm up, riding around
+     * both thresholds with noise, a few stops at the lights and a cool down. The same seed gives
+     * the same ride.
+     */
+    public static RideTrace synthetic(long duration, int rate, long seed) {
+        Random random = new Random(seed);
+        int n = (int) (duration * rate / 1000);
+        long[] times = new long[n];
+        float[] speeds = new float[n];
+        float[] powers = new float[n];
+        long start = 1577836800000L;
+        float target = 0.0f;
+        float speed = 0.0f;
+        long segmentEnd = 0;
+        for (int i = 0; i < n; i++) {
+            long t = (long) i * 1000 / rate;
+            if (t >= segmentEnd) {
+                // a new segment every 20 s to 3 min
+                segmentEnd = t + 20000 + random.nextInt(160000);
+                float f = random.nextFloat();
+                if (t < 120000 || duration - t < 120000)
+                    target = FanThresholds.SPEED_HIGH * 0.8f;
+                else if (f < 0.1f)
+                    target = 0.0f;
+                else if (f < 0.3f)
+                    target = FanThresholds.SPEED_HIGH * (0.8f + 0.4f * random.nextFloat());
+                else
+                    target = 20.0f + 20.0f * random.nextFloat();
+            }
+            // follow the target with some inertia, and wobble around it
+            speed += (target - speed) * (2.0f / rate) * 0.1f;
+            float s = Math.max(0.0f, speed + (float) random.nextGaussian() * 0.5f);
+            times[i] = start + t;
+            speeds[i] = s;
+            powers[i] = Math.max(0.0f, s * 7.0f + (float) random.nextGaussian() * 20.0f);
+        }
+        return new RideTrace(times, speeds, powers);
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    // sensor timestamp of sample i, ms
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public float getSpeed(int i) {
+        return speeds[i];
+    }
+
+    public float getPower(int i) {
+        return powers[i];
+    }
+
+    // ms from the first to the last sample
+    public long getDuration() {
+        return times.length == 0 ? 0 : times[times.length - 1] - times[0];
+    }
+}
@@ -0,0 +1,259 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays speed/power traces through the fan control, the dispatcher and the UDP servo transport
+ * into a local servo stub, in real time, N times faster or as fast as possible. With several
+ * traces every trace is a rider of gym mode with its own fan on its own servo pin, all in one
+ * FanChannelGroup.
+ *
+ * The report counts the servo commands which reached the stub, their latency from the sample
+ * that caused them, and the ride time the fan decision spent at each fan speed.
+ *
+ * Usage: TraceReplayer &lt;ride file | synthetic:minutes&gt; [speedup | max] [step | curve] [speed | power] [riders]
+ */
+public class TraceReplayer {
+    public static final double AS_FAST_AS_POSSIBLE = 0.0;
+
+    public static class Report {
+        public long samples;
+        public int fans;
+        // ride time of all fans together
+        public long traceDuration;
+        public long wallTime;
+        // servo commands received by the stub, in total and by fan
+        public long commands;
+        public long[] commandsByFan;
+        // sockets the commands came from
+        public int servoSockets;
+        // fan speed changes and curve moves executed by the dispatcher
+        public long executed;
+        public long submitted;
+        public long coalesced;
+        // sample to servo command latency in us
+        public long latencyP50;
+        public long latencyP99;
+        public long latencyMax;
+        // ride time in ms the decision spent at each fan speed, by ordinal
+        public final long[] timeInState = new long[FanSpeed.values().length];
+        // latency of each stage inside the dispatcher
+        public final PipelineStats stages = new PipelineStats();
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("samples:").append(samples)
+                    .append(", fans:").append(fans)
+                    .append(", ride:").append(traceDuration / 1000).append("s")
+                    .append(", replayed in:").append(wallTime).append("ms\n")
+                    .append("servo commands:").append(commands)
+                    .append(" from ").append(servoSockets).append(" socket(s)")
+                    .append(", executed:").append(executed)
+                    .append(", submitted:").append(submitted)
+                    .append(", coalesced:").append(coalesced).append('\n')
+                    .append("latency p50:").append(latencyP50).append("us")
+                    .append(", p99:").append(latencyP99).append("us")
+                    .append(", max:").append(latencyMax).append("us\n");
+            for (FanSpeed speed : FanSpeed.values()) {
+                long t = timeInState[speed.ordinal()];
+                sb.append(speed).append(':').append(t / 1000).append("s (")
+                        .append(traceDuration > 0 ? t * 100 / traceDuration : 0).append("%) ");
+            }
+            sb.append('\n').append(stages.dump());
+            return sb.toString();
+        }
+    }
+
+    private final RideTrace[] traces;
+    private final double speedup;
+    private final boolean usePower;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * @param speedup  1 for real time, N for N times faster, AS_FAST_AS_POSSIBLE for no pacing
+     * @param usePower drive the fan from power instead of speed
+     */
+    public TraceReplayer(RideTrace trace, double speedup, boolean usePower) {
+        this(new RideTrace[]{trace}, speedup, usePower);
+    }
+
+    /**
+     * One fan per trace, on servo pins 0 to N-1; the traces are replayed on the same clock.
+     */
+    public TraceReplayer(RideTrace[] traces, double speedup, boolean usePower) {
+        if (speedup < 0.0)
+            throw new IllegalArgumentException("Invalid speedup:" + speedup);
+        if (traces.length == 0 || traces.length > 256)
+            throw new IllegalArgumentException("Invalid number of traces:" + traces.length);
+        this.traces = traces;
+        this.speedup = speedup;
+        this.usePower = usePower;
+    }
+
+    public Report run(FanControl.Factory factory) throws IOException, InterruptedException {
+        final int fans = traces.length;
+        // nanoTime of the sample behind the latest request, by fan
+        final AtomicLongArray lastRequest = new AtomicLongArray(fans);
+        UdpServoStub stub = new UdpServoStub(new UdpServoStub.Listener() {
+            @Override
+            public void onPosition(int pin, int position, long arrival) {
+                if (pin < fans)
+                    latency.record(arrival - lastRequest.get(pin));
+            }
+        });
+        Report report = new Report();
+        latency.reset();
+        FanChannelGroup group = new FanChannelGroup(FanChannelGroup.DEFAULT_THREADS, report.stages);
+        FanCommandDispatcher.Listener listener = new FanCommandDispatcher.Listener() {
+            @Override
+            public void onFanSpeedChanged(FanSpeed speed) {
+            }
+
+            @Override
+            public void onServoError(int position, String error) {
+                System.err.println("Servo error at " + position + ":" + error);
+            }
+        };
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        FanChannel[] channels = new FanChannel[fans];
+        for (int f = 0; f < fans; f++) {
+            channels[f] = group.add(new FanChannel.Config("rider" + (f + 1), usePower ? 0 : f + 1,
+                    usePower ? f + 1 : 0, ServoConnectionPool.UDP, host, stub.getPort(), f), listener);
+            channels[f].setControl(factory.create(channels[f].getDispatcher()));
+        }
+
+        // next sample of each trace
+        int[] next = new int[fans];
+        long first = Long.MAX_VALUE;
+        for (RideTrace trace : traces) {
+            if (trace.size() > 0)
+                first = Math.min(first, trace.getTime(0));
+            report.samples += trace.size();
+            report.traceDuration += trace.getDuration();
+        }
+        long start = System.nanoTime();
+        try {
+            for (long s = 0; s < report.samples; s++) {
+                // the earliest sample of all traces
+                int f = -1;
+                for (int j = 0; j < fans; j++) {
+                    if (next[j] < traces[j].size() && (f < 0 || traces[j].getTime(next[j]) < traces[f].getTime(next[f])))
+                        f = j;
+                }
+                RideTrace trace = traces[f];
+                int i = next[f]++;
+                long time = trace.getTime(i);
+                if (speedup > 0.0) {
+                    long due = start + (long) ((time - first) * 1000000.0 / speedup);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                }
+                FanChannel channel = channels[f];
+                FanControl control = channel.getControl();
+                FanCommandDispatcher dispatcher = channel.getDispatcher();
+                long sampled = System.nanoTime();
+                long submitted = dispatcher.getSubmittedCount();
+                FanSpeed level = control.getTargetLevel();
+                // set before the decision, the worker may send the command before it returns
+                long previous = lastRequest.getAndSet(f, sampled);
+                if (usePower) {
+                    if (trace.getPower(i) >= 0.0f)
+                        channel.onPower(time, trace.getPower(i));
+                } else if (trace.getSpeed(i) >= 0.0f) {
+                    channel.onSpeed(time, trace.getSpeed(i));
+                }
+                report.stages.decision.record(System.nanoTime() - sampled);
+                // the three-step mode repeats its level every sample, only a new one counts
+                FanSpeed target = control.getTargetLevel();
+                if (control.usesFanCurve() ? dispatcher.getSubmittedCount() == submitted : target == level)
+                    lastRequest.compareAndSet(f, sampled, previous);
+                if (i + 1 < trace.size())
+                    report.timeInState[target.ordinal()] += trace.getTime(i + 1) - time;
+            }
+            if (!group.awaitIdle(10000))
+                System.err.println("Dispatcher still busy");
+            // the last datagrams may still be on their way to the stub
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            long received = -1;
+            while (stub.getReceivedCount() != received && System.nanoTime() < deadline) {
+                received = stub.getReceivedCount();
+                Thread.sleep(20);
+            }
+        } finally {
+            group.stop();
+            stub.close();
+        }
+
+        report.wallTime = (System.nanoTime() - start) / 1000000;
+        report.fans = fans;
+        report.commands = stub.getReceivedCount();
+        report.commandsByFan = new long[fans];
+        for (int f = 0; f < fans; f++) {
+            FanCommandDispatcher dispatcher = channels[f].getDispatcher();
+            report.commandsByFan[f] = stub.getReceivedCount(f);
+            report.executed += dispatcher.getExecutedCount();
+            report.submitted += dispatcher.getSubmittedCount();
+            report.coalesced += dispatcher.getCoalescedCount();
+        }
+        report.servoSockets = stub.getSenderCount();
+        report.latencyP50 = latency.getPercentile(0.5);
+        report.latencyP99 = latency.getPercentile(0.99);
+        report.latencyMax = latency.getMax();
+        return report;
+    }
+
+    /**
+     * Three-step mode or the default linear fan curve, with the app's default settings.
+     */
+    public static FanControl.Factory defaultControl(boolean useFanCurve) {
+        return defaultControl(useFanCurve, 0);
+    }
+
+    /**
+     * Same as above, with pre-spin looking preSpinHorizon ms ahead, or without it if 0.
+     */
+    public static FanControl.Factory defaultControl(final boolean useFanCurve, final long preSpinHorizon) {
+        return new FanControl.Factory() {
+            @Override
+            public FanControl create(FanCommandDispatcher dispatcher) {
+                return FanControl.create(dispatcher, useFanCurve, 0.15f, 5000,
+                        new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000),
+                        new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000),
+                        new ProportionalFanController(
+                                FanCurve.linear(FanThresholds.SPEED_LOW, FanThresholds.SPEED_HIGH * 2, 30, FanCurve.POSITION_FAN_2),
+                                new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000), new ServoRateLimiter(3, 2.0)),
+                        new ProportionalFanController(
+                                FanCurve.linear(FanThresholds.POWER_LOW, FanThresholds.POWER_HIGH * 2, 30, FanCurve.POSITION_FAN_2),
+                                new SignalSmoother(SignalSmoother.Mode.ROLLING_MEAN, 3000), new ServoRateLimiter(3, 2.0)),
+                        preSpinHorizon);
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplayer <ride file | synthetic:minutes> [speedup | max] [step | curve] [speed | power] [riders]");
+            System.exit(1);
+        }
+        RideTrace[] traces = new RideTrace[args.length > 4 ? Integer.parseInt(args[4]) : 1];
+        for (int i = 0; i < traces.length; i++) {
+            // every synthetic rider rides differently, a recorded ride is ridden by all of them
+            if (args[0].startsWith("synthetic:"))
+                traces[i] = RideTrace.synthetic(Long.parseLong(args[0].substring("synthetic:".length())) * 60000, 4, i + 1);
+            else
+                traces[i] = i > 0 ? traces[0] : RideTrace.load(new File(args[0]));
+        }
+        double speedup = args.length > 1 && !args[1].equals("max") ? Double.parseDouble(args[1]) : AS_FAST_AS_POSSIBLE;
+        boolean curve = args.length > 2 && args[2].equals("curve");
+        boolean power = args.length > 3 && args[3].equals("power");
+        System.out.println(new TraceReplayer(traces, speedup, power).run(defaultControl(curve)));
+    }
+}
@@ -0,0 +1,113 @@
+package idv.markkuo.bikefanspeed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Local stand-in for the Pi: receives UdpServoActuator datagrams on the loopback interface and
+ * keeps the last position, so the whole control loop can run without hardware. Like the Pi, it
+ * drives a servo per pin.
+ */
+public class UdpServoStub implements Closeable {
+    public interface Listener {
+        // called on the stub thread with System.nanoTime() of the arrival
+        void onPosition(int pin, int position, long arrival);
+    }
+
+    private final DatagramSocket socket;
+    private final Listener listener;
+    private final Thread thread;
+
+    private volatile int lastPosition = -1;
+    private volatile long received = 0;
+    private volatile long rejected = 0;
+    private final AtomicLongArray receivedByPin = new AtomicLongArray(256);
+    // source addresses seen, only touched by the stub thread
+    private final Set<SocketAddress> senders = new HashSet<>();
+    private volatile int senderCount = 0;
+
+    public UdpServoStub(Listener listener) throws IOException {
+        this.listener = listener;
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "UdpServoStub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    // a new actuator sending to this stub
+    public UdpServoActuator createActuator(int pin) {
+        return new UdpServoActuator(InetAddress.getLoopbackAddress().getHostAddress(), getPort(), pin);
+    }
+
+    public int getLastPosition() {
+        return lastPosition;
+    }
+
+    // valid datagrams received
+    public long getReceivedCount() {
+        return received;
+    }
+
+    // valid datagrams received for the servo on pin
+    public long getReceivedCount(int pin) {
+        return receivedByPin.get(pin);
+    }
+
+    // distinct source addresses (sockets) the datagrams came from
+    public int getSenderCount() {
+        return senderCount;
+    }
+
+    // datagrams which were not servo commands
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    private void receive() {
+        byte[] buf = new byte[64];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        try {
+            while (true) {
+                socket.receive(packet);
+                long arrival = System.nanoTime();
+                if (packet.getLength() != UdpServoActuator.PACKET_SIZE
+                        || buf[0] != UdpServoActuator.MAGIC || buf[1] != UdpServoActuator.VERSION) {
+                    rejected++;
+                    continue;
+                }
+                int pin = buf[2] & 0xff;
+                int position = buf[3] & 0xff;
+                lastPosition = position;
+                if (senders.add(packet.getSocketAddress()))
+                    senderCount = senders.size();
+                receivedByPin.incrementAndGet(pin);
+                received++;
+                if (listener != null)
+                    listener.onPosition(pin, position, arrival);
+            }
+        } catch (IOException ignored) {
+            // closed
+        }
+    }
+}